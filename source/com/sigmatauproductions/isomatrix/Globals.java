@@ -28,6 +28,9 @@
  */
 package com.sigmatauproductions.isomatrix;
 
+import com.sigmatauproductions.isomatrix.util.AssetManager;
+import com.sigmatauproductions.isomatrix.util.AsyncLogger;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import org.newdawn.slick.Color;
@@ -53,11 +56,36 @@ public final class Globals {
      */
     public static final String newline = System.getProperty("line.separator");
     /**
-     * Contains the log of the current session.
+     * The file the log of the current session is written to.  The logs of
+     * earlier sessions are kept alongside it, numbered.
      */
-    private static StringBuilder log = new StringBuilder(ISOMATRIX_VERSION
-            + " - Began logging at " + new java.util.Date().toString()
-            + newline);
+    public static final String LOG_FILE = "isomatrix.log";
+    /**
+     * The number of messages that can wait to be written before further
+     * ones are dropped.
+     */
+    public static final int LOG_CAPACITY = 8192;
+    /**
+     * The size past which the log file is rotated.
+     */
+    public static final long LOG_MAX_BYTES = 4L * 1024 * 1024;
+    /**
+     * The number of rotated log files kept.
+     */
+    public static final int LOG_FILES_KEPT = 3;
+    /**
+     * Writes the log of the current session in the background.
+     */
+    private static final AsyncLogger log = new AsyncLogger(new File(LOG_FILE),
+            LOG_CAPACITY, LOG_MAX_BYTES, LOG_FILES_KEPT, ISOMATRIX_VERSION
+            + " - Began logging at " + new java.util.Date().toString());
+    
+    static {
+        // Debug builds echo the log to the console, as they always have.
+        log.setEcho(() -> DEBUG_ENABLED);
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close,
+                "Logger shutdown"));
+    }
     /**
      * Contains the current username of whoever is logged in, as reported by
      * the system environment variables.  Warning: This can be spoofed and may
@@ -114,21 +142,25 @@ public final class Globals {
      * classpath.
      */
     public static final String GUI_DIR = RESOURCE_DIR + "gui/";
+    /**
+     * The number of bytes of textures no longer in use that are kept loaded
+     * in case they are needed again.
+     */
+    public static final long ASSET_CACHE_BYTES = 64L * 1024 * 1024;
+    /**
+     * Loads and shares the images used by the engine and the game.
+     */
+    private static AssetManager assets = null;
     
     public static final Color TILE_MOUSEOVER_COLOR = new Color(100,100,255);
     
     /**
-     * Logs the specified warning to the debug log.
+     * Logs the specified warning to the debug log.  Like every other logging
+     * method, this may be called from any thread, and only queues the warning
+     * to be written in the background.
      */
     public static void logWarning(String warning) {
-        log.append(new java.util.Date().toString());
-        log.append(" ** Warning: ");
-        log.append(warning);
-        log.append(newline);
-
-        if (DEBUG_ENABLED) {
-            System.out.println("** Warning: " + warning);
-        }
+        log.log(AsyncLogger.Level.WARNING, warning);
     }
 
     /**
@@ -138,40 +170,34 @@ public final class Globals {
      * file named {@code debut.txt}.
      */
     public static void logError(String err, boolean stacktrace) {
-        log.append(new java.util.Date().toString());
-        log.append(" *** Error: ");
-        log.append(err);
-        log.append(newline);
-
         // If it's a debug log, log the stacktrace--or if we've explicitly
         // requested one
         if (stacktrace || DEBUG_ENABLED) {
-            log.append("*** Stack trace:");
-            log.append(newline);
+            StringBuilder trace = new StringBuilder(err);
+            trace.append(newline);
+            trace.append("*** Stack trace:");
             StackTraceElement[] error = Thread.currentThread().getStackTrace();
             for (int i = 0; i < error.length; i++) {
-                log.append("*** ");
-                log.append(error[i]);
-                log.append(newline);
+                trace.append(newline);
+                trace.append("*** ");
+                trace.append(error[i]);
             }
-
-            // ... and print it to the console.
-            System.out.print("*** Error: ");
-            System.out.println(err);
-            System.out.println("*** Stack trace:");
-            StackTraceElement[] e = Thread.currentThread().getStackTrace();
-            for (int i = 0; i < e.length; i++) {
-                System.out.println("*** " + e[i]);
+            log.log(AsyncLogger.Level.ERROR, trace.toString());
+            if (!DEBUG_ENABLED) {
+                // Requested traces reach the console even without the echo.
+                System.out.println("*** Error: " + trace);
             }
-            System.out.println();
+        } else {
+            log.log(AsyncLogger.Level.ERROR, err);
         }
 
         // Spew a debug log to a file if a serious error occurs (but only under
         // the supervision of a debug build)
         if (DEBUG_ENABLED) {
-            log.append("Spewing debug log...");
+            log.log(AsyncLogger.Level.MESSAGE, "Spewing debug log...");
+            log.flush(1000);
             try (PrintWriter spew = new PrintWriter("debug.txt")) {
-                spew.println(log.toString());
+                spew.println(log.getRecent());
                 spew.flush();
             } catch (FileNotFoundException e) {
                 System.err.println("CRITICAL: Could not spew debug "
@@ -187,23 +213,54 @@ public final class Globals {
      * Logs the specified message to the debug log.
      */
     public static void logMessage(String message) {
-        log.append(new java.util.Date().toString());
-        log.append(" * ");
-        log.append(message);
-        log.append(newline);
+        log.log(AsyncLogger.Level.MESSAGE, message);
+    }
+    
+    /**
+     * Sets the lowest level of message that is logged; anything below it is
+     * dropped without being queued.
+     */
+    public static void setLogLevel(AsyncLogger.Level level) {
+        log.setLevel(level);
+    }
+    
+    /**
+     * Returns the number of messages dropped because they were logged faster
+     * than they could be written.
+     */
+    public static long getDroppedLogMessages() {
+        return log.getDropped();
+    }
+    
+    /**
+     * Waits for every message logged so far to be written, for at most the
+     * specified number of milliseconds.
+     */
+    public static boolean flushLog(long timeoutMillis) {
+        return log.flush(timeoutMillis);
+    }
 
-        if (DEBUG_ENABLED) {
-            System.out.println("* " + message);
+    /**
+     * Returns the asset manager shared by the engine and the game, creating
+     * it on first use.
+     */
+    public static synchronized AssetManager getAssets() {
+        if (assets == null) {
+            assets = new AssetManager(Math.max(1,
+                    Runtime.getRuntime().availableProcessors()),
+                    ASSET_CACHE_BYTES);
         }
+        return assets;
     }
 
     /**
-     * Returns the debug log in the form of a String.
+     * Returns the most recent lines of the debug log in the form of a String.
+     * Messages still waiting to be written are not included.
      *
      * @return
      */
     public static String getLog() {
-        return log.toString();
+        return log.getRecent();
     }
     
     /**
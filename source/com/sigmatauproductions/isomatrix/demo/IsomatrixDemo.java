@@ -32,7 +32,7 @@ package com.sigmatauproductions.isomatrix.demo;
 import com.sigmatauproductions.isomatrix.event.*;
 import com.sigmatauproductions.isomatrix.tiles.*;
 import com.sigmatauproductions.isomatrix.util.*;
-import java.util.Random;
+import java.util.SplittableRandom;
 import org.newdawn.slick.*;
 
 public class IsomatrixDemo extends BasicGame {
@@ -67,17 +67,21 @@ public class IsomatrixDemo extends BasicGame {
         map.offset.x = 924;
         map.offset.y = 64;
         
-        float randomFactor = (new Random().nextFloat()*100f);
-        heightmap = FastNoise.getNoiseImage(128, 128, randomFactor, 8, true);
+        WorldSeed seed = new WorldSeed();
+        SplittableRandom random = seed.forStage(WorldSeed.Stage.TERRAIN);
+        float randomFactor = ((float) random.nextDouble() * 100f);
+        heightmap = FastNoise.getNoiseImage(128, 128, randomFactor, 8, true,
+                random);
         
         map.loadHeightmap(heightmap, 0, 9);
-        map.randomizeFlats();
+        map.randomizeFlats(seed.forStage(WorldSeed.Stage.FLATS));
         
         input = gc.getInput();
     }
 
     @Override
     public void update(GameContainer gc, int delta) throws SlickException {
+        EventHandler.drainInbox();
         EventHandler.update(delta);
     }
 
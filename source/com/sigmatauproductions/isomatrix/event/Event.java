@@ -56,9 +56,33 @@ abstract public class Event {
     private int delay = 1;
     
     /**
-     * The amount of milliseconds since the last recurrence of the event.
+     * The amount of milliseconds since the last recurrence of the event, as of
+     * when it was last taken out of the {@link EventHandler}.  While queued,
+     * the lifetime is worked out from {@code start} instead.
      */
-    private int lifetime = 0;
+    int lifetime = 0;
+    
+    /**
+     * The time on the {@link EventHandler}'s clock at which the lifetime of
+     * the event was zero.
+     */
+    long start = 0;
+    
+    /**
+     * The time on the {@link EventHandler}'s clock at which the event is next
+     * due, and the order it was scheduled in, while it is queued.
+     */
+    long deadline = 0;
+    long sequence = 0;
+    
+    /**
+     * The position of the event in the {@link EventHandler}'s queue, or one of
+     * {@code UNSCHEDULED} or {@code FIRING}.
+     */
+    int index = UNSCHEDULED;
+    
+    static final int UNSCHEDULED = -1;
+    static final int FIRING = -2;
     
     /**
      * Measures whether or not the event is capable of recurring.
@@ -136,7 +160,13 @@ abstract public class Event {
      * @param l 
      */
     protected void addToLifetime(int l) {
-        this.lifetime += (l >= 0) ? l : 0;
+        if (l <= 0) { return; }
+        if (index == UNSCHEDULED) {
+            this.lifetime += l;
+        } else {
+            start -= l;
+            EventHandler.reschedule(this);
+        }
     }
     
     /**
@@ -144,7 +174,8 @@ abstract public class Event {
      * @return 
      */
     public int getLifetime() {
-        return lifetime;
+        return (index == UNSCHEDULED) ? lifetime
+                : (int) (EventHandler.getTime() - start);
     }
     
     /**
@@ -152,6 +183,10 @@ abstract public class Event {
      */
     protected void resetLifetime() {
         this.lifetime = 0;
+        if (index != UNSCHEDULED) {
+            start = EventHandler.getTime();
+            EventHandler.reschedule(this);
+        }
     }
     
     /**
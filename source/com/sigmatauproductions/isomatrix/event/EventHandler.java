@@ -28,8 +28,8 @@
  */
 package com.sigmatauproductions.isomatrix.event;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A static class designed to track and execute an arbitrary number of
@@ -40,47 +40,300 @@ import java.util.List;
  * 
  * where {@code delta} equals the number of milliseconds that have elapsed since
  * the last frame, also known as the <i>delta-time</i> variable.
+ * <p>
+ * Rather than aging every event each frame, the handler keeps a clock of the
+ * milliseconds it has been updated for, and a binary heap of events ordered
+ * by the time they are next due.  Adding and removing an event costs
+ * O(log n), and each update only looks at the events that are due, so
+ * thousands of long-running recurring events cost next to nothing on frames
+ * where none of them fire.  Events due at the same time are executed in the
+ * order they were scheduled.
+ * <p>
+ * The handler belongs to the game thread, and every method but
+ * {@link #postEvent(Event)} must only be called from it.  Other threads, such
+ * as background simulation or loading, post their events into an inbox
+ * instead, which the game thread drains into the queue with
+ * {@link #drainInbox()} at the start of every update.  Posting never locks or
+ * retries, and neither does draining.
  * 
  * @author Will
  */
 public final class EventHandler {
+    
+    /**
+     * The events waiting to be executed, as a binary min-heap ordered by
+     * {@link #isBefore(Event, Event)}.  Each event knows its own position.
+     */
+    private static Event[] events = new Event[16];
+    
+    /**
+     * The number of events in the heap.
+     */
+    private static int count = 0;
+    
+    /**
+     * The number of milliseconds the handler has been updated for.
+     */
+    private static long time = 0;
+    
     /**
-     * Tracks the actual {@link Event} objects.
+     * The number of events scheduled so far, used to break ties between
+     * events due at the same time.
      */
-    private static List<Event> events = new ArrayList<>();
+    private static long scheduled = 0;
     
     /**
-     * Adds the specified event to the event queue.
+     * The inbox of events posted by other threads, as a linked queue with
+     * many producers and one consumer.  Producers swap themselves in as the
+     * tail and then link the old tail to themselves; the game thread
+     * consumes from the head, which is always an already consumed node.
+     */
+    private static final AtomicReference<Posted> inboxTail =
+            new AtomicReference<>(new Posted(null));
+    private static Posted inboxHead = inboxTail.get();
+    
+    private EventHandler() {}
+    
+    /**
+     * Adds the specified event to the event queue.  Adding an event that is
+     * already queued does nothing.
      * @param e 
      */
     public static void addEvent(Event e) {
-        if (e != null) { events.add(e); }
+        if (e == null || e.index != Event.UNSCHEDULED) { return; }
+        e.start = time - e.lifetime;
+        schedule(e);
+    }
+    
+    /**
+     * Posts the specified event to be added to the event queue the next time
+     * the game thread drains the inbox.  Unlike every other method here, this
+     * may be called from any thread, and is wait-free.
+     * @param e 
+     */
+    public static void postEvent(Event e) {
+        if (e == null) { return; }
+        Posted node = new Posted(e);
+        Posted previous = inboxTail.getAndSet(node);
+        previous.next = node;
+    }
+    
+    /**
+     * Adds every event posted so far to the event queue, in the order they
+     * were posted.  An event whose poster is still in the middle of
+     * {@code postEvent()} is left for the next drain.
+     * @return The number of events drained.
+     */
+    public static int drainInbox() {
+        int drained = 0;
+        Posted next = inboxHead.next;
+        while (next != null) {
+            Event e = next.event;
+            // The new head stays reachable, so drop the event it holds.
+            next.event = null;
+            inboxHead = next;
+            addEvent(e);
+            drained++;
+            next = next.next;
+        }
+        return drained;
+    }
+    
+    /**
+     * Removes the specified event from the event queue, so that it doesn't
+     * execute again.  An event may remove itself from its own
+     * {@code operation()} to stop recurring.
+     * @param e
+     * @return Returns false if the event wasn't queued.
+     */
+    public static boolean removeEvent(Event e) {
+        if (e == null || e.index == Event.UNSCHEDULED) { return false; }
+        e.lifetime = (int) (time - e.start);
+        if (e.index == Event.FIRING) {
+            e.index = Event.UNSCHEDULED;
+            return true;
+        }
+        removeAt(e.index);
+        return true;
+    }
+    
+    /**
+     * Returns true if the specified event is queued.
+     * @param e
+     * @return 
+     */
+    public static boolean isQueued(Event e) {
+        return e != null && e.index != Event.UNSCHEDULED;
+    }
+    
+    /**
+     * Returns the number of events in the queue.
+     * @return 
+     */
+    public static int getEventCount() {
+        return count;
+    }
+    
+    /**
+     * Returns the number of milliseconds the handler has been updated for.
+     * @return 
+     */
+    public static long getTime() {
+        return time;
     }
     
     /**
      * Intended to be called every frame and provided the delta-time, this
-     * method iterates through and executes events whose time has elapsed.
+     * method executes the events whose time has elapsed.  Like before, an
+     * event executes at most once per update, however long the update was.
      * @param delta 
      */
     public static void update(int delta) {
-        for(int i=0; i<events.size(); i++){
-            events.get(i).addToLifetime(delta);
-            if (events.get(i).getLifetime() > events.get(i).getDelay()) {
-                events.get(i).execute();
-                if (events.get(i).isRecurring()) {
-                    if (events.get(i).getRecurrences() < 0) {
-                        events.get(i).resetLifetime();
-                    } else if (events.get(i).getRecurrences() > 0) {
-                        events.get(i).decrement();
-                        events.get(i).resetLifetime();
-                    }
-                    if (events.get(i).getRecurrences() == 0) {
-                        events.remove(i);
-                    }
-                } else {
-                    events.remove(i);
+        time += (delta >= 0) ? delta : 0;
+        while (count > 0 && events[0].deadline <= time) {
+            Event e = events[0];
+            removeAt(0);
+            e.index = Event.FIRING;
+            boolean removed;
+            try {
+                e.execute();
+            } finally {
+                // Any other index means the event removed or added itself
+                // again, and has already seen to its own scheduling.
+                removed = (e.index != Event.FIRING);
+                if (!removed) { e.index = Event.UNSCHEDULED; }
+            }
+            if (removed) {
+                // An event that added itself back waits for the next update
+                // at the earliest, or it could fire forever.
+                if (e.index >= 0 && e.deadline <= time) {
+                    removeAt(e.index);
+                    schedule(e, time + 1);
+                }
+                continue;
+            }
+            
+            if (e.isRecurring()) {
+                if (e.getRecurrences() < 0) {
+                    e.start = time;
+                } else if (e.getRecurrences() > 0) {
+                    e.decrement();
+                    e.start = time;
+                }
+                if (e.getRecurrences() != 0) {
+                    // Even with a negative delay, it waits for the next
+                    // update.
+                    schedule(e, time + 1);
+                    continue;
                 }
             }
+            e.lifetime = (int) (time - e.start);
+        }
+    }
+    
+    /**
+     * Called by {@link Event} when its lifetime is changed while it is
+     * queued, to move it to its new place in the queue.
+     */
+    static void reschedule(Event e) {
+        if (e.index < 0) { return; }
+        removeAt(e.index);
+        schedule(e);
+    }
+    
+    /**
+     * Used internally to add an event whose start is set to the heap.  An
+     * event is due once its lifetime exceeds its delay.
+     */
+    private static void schedule(Event e) {
+        schedule(e, Long.MIN_VALUE);
+    }
+    
+    /**
+     * Used internally to add an event whose start is set to the heap, due no
+     * earlier than the specified time.
+     */
+    private static void schedule(Event e, long earliest) {
+        e.deadline = Math.max(e.start + e.getDelay() + 1, earliest);
+        e.sequence = scheduled++;
+        if (count == events.length) {
+            events = Arrays.copyOf(events, count * 2);
+        }
+        events[count] = e;
+        e.index = count;
+        count++;
+        siftUp(count - 1);
+    }
+    
+    /**
+     * Used internally to take the event at the specified position out of the
+     * heap.
+     */
+    private static void removeAt(int i) {
+        Event removed = events[i];
+        count--;
+        Event last = events[count];
+        events[count] = null;
+        removed.index = Event.UNSCHEDULED;
+        if (i == count) { return; }
+        events[i] = last;
+        last.index = i;
+        if (i > 0 && isBefore(last, events[(i - 1) >>> 1])) {
+            siftUp(i);
+        } else {
+            siftDown(i);
+        }
+    }
+    
+    private static void siftUp(int i) {
+        Event e = events[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!isBefore(e, events[parent])) { break; }
+            events[i] = events[parent];
+            events[i].index = i;
+            i = parent;
+        }
+        events[i] = e;
+        e.index = i;
+    }
+    
+    private static void siftDown(int i) {
+        Event e = events[i];
+        int half = count >>> 1;
+        while (i < half) {
+            int child = (2 * i) + 1;
+            if (child + 1 < count && isBefore(events[child + 1], events[child])) {
+                child++;
+            }
+            if (!isBefore(events[child], e)) { break; }
+            events[i] = events[child];
+            events[i].index = i;
+            i = child;
+        }
+        events[i] = e;
+        e.index = i;
+    }
+    
+    /**
+     * Returns true if the first event is due before the second, or at the
+     * same time but was scheduled first.
+     */
+    private static boolean isBefore(Event a, Event b) {
+        return (a.deadline != b.deadline) ? a.deadline < b.deadline
+                : a.sequence < b.sequence;
+    }
+    
+    /**
+     * A node of the inbox.
+     */
+    private static final class Posted {
+        
+        private Event event;
+        private volatile Posted next = null;
+        
+        Posted(Event event) {
+            this.event = event;
         }
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.game;
+
+import com.sigmatauproductions.isomatrix.Globals;
+import com.sigmatauproductions.isomatrix.event.EventHandler;
+import com.sigmatauproductions.isomatrix.props.Prop;
+import com.sigmatauproductions.isomatrix.tiles.Heightmap;
+import com.sigmatauproductions.isomatrix.tiles.MapFile;
+import com.sigmatauproductions.isomatrix.tiles.TileMap;
+import com.sigmatauproductions.isomatrix.tiles.Tileset;
+import com.sigmatauproductions.isomatrix.util.WorldSeed;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.SplittableRandom;
+import org.newdawn.slick.SlickException;
+
+/**
+ * Runs the {@link EventHandler} and, optionally, a {@link Simulation} without
+ * a window, a GL context or a render loop, as fast as the CPU allows.
+ *
+ * Each tick does what a tick of a {@link SimulationClock} started by
+ * {@link IsomatrixGame#startSimulation(Simulation, int, int)} does: drain the
+ * event inbox, update the event handler by the length of a tick, then tick
+ * the simulation.  There is no waiting between ticks, so an hour of game time
+ * takes however long its ticks take to compute.  Together with
+ * {@link Tileset#headless(String)}, this allows soak tests, batch world
+ * generation and benchmarks on machines without a GPU.
+ * <p>
+ * The runner must be the only thing using the event handler while it runs.
+ * Running the class itself generates a world and soaks it:
+ * <pre>
+ * java ... HeadlessRunner [tileset] [size] [seed] [ticks] [output file]
+ * </pre>
+ *
+ * @param <S> The type of state published by the simulation.
+ * @author sigtau
+ */
+public final class HeadlessRunner<S> {
+    
+    private final Simulation<S> simulation;
+    private final int tickMillis;
+    
+    private long ticks = 0;
+    private long lastRunNanos = 0;
+    private long lastRunTicks = 0;
+    
+    /**
+     * Creates a runner for the specified simulation.
+     * @param simulation The simulation to tick, or null to only run events.
+     * @param tickMillis The length of a tick, in milliseconds of game time.
+     */
+    public HeadlessRunner(Simulation<S> simulation, int tickMillis) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Ticks must be at least one "
+                    + "millisecond long, not " + tickMillis);
+        }
+        this.simulation = simulation;
+        this.tickMillis = tickMillis;
+    }
+    
+    /**
+     * Runs the specified number of ticks back to back.
+     * @param count
+     * @return The state the simulation published after the last tick, or
+     *         null if there is no simulation or no ticks were run.
+     */
+    public S run(long count) {
+        long start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            EventHandler.drainInbox();
+            EventHandler.update(tickMillis);
+            if (simulation != null) {
+                simulation.tick(tickMillis);
+            }
+        }
+        ticks += Math.max(count, 0);
+        lastRunTicks = Math.max(count, 0);
+        lastRunNanos = System.nanoTime() - start;
+        return (simulation != null && count > 0) ? simulation.publish() : null;
+    }
+    
+    /**
+     * Runs as many ticks as fit in the specified number of milliseconds of
+     * game time.
+     * @param millis
+     * @return The state the simulation published after the last tick, or
+     *         null if there is no simulation or no ticks were run.
+     */
+    public S runFor(long millis) {
+        return run(millis / tickMillis);
+    }
+    
+    /**
+     * Returns the length of a tick, in milliseconds of game time.
+     * @return 
+     */
+    public int getTickMillis() {
+        return tickMillis;
+    }
+    
+    /**
+     * Returns the number of ticks run so far.
+     * @return 
+     */
+    public long getTicks() {
+        return ticks;
+    }
+    
+    /**
+     * Returns the milliseconds of game time run so far.
+     * @return 
+     */
+    public long getSimulatedMillis() {
+        return ticks * tickMillis;
+    }
+    
+    /**
+     * Returns how long the last run took, in nanoseconds of real time.
+     * @return 
+     */
+    public long getLastRunNanos() {
+        return lastRunNanos;
+    }
+    
+    /**
+     * Returns the rate the last run went at, in ticks per second of real
+     * time.
+     * @return 
+     */
+    public double getTicksPerSecond() {
+        return (lastRunNanos == 0) ? 0 : lastRunTicks * 1e9 / lastRunNanos;
+    }
+    
+    /**
+     * Generates a world on a headless tileset, optionally saves it, and soaks
+     * the event handler for the specified number of ticks.
+     * @param args The tileset directory, the size of the map, the seed in
+     *             hex, the number of ticks, and the file to save to; all
+     *             optional.
+     * @throws SlickException
+     * @throws IOException 
+     */
+    public static void main(String[] args)
+            throws SlickException, IOException {
+        String tilesetName = (args.length > 0) ? args[0] : "temperate";
+        int size = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+        WorldSeed seed = (args.length > 2) ? WorldSeed.parse(args[2])
+                : new WorldSeed();
+        long tickCount = (args.length > 3) ? Long.parseLong(args[3]) : 100000;
+        
+        long start = System.nanoTime();
+        Tileset tileset = Tileset.headless(tilesetName);
+        SplittableRandom terrain = seed.forStage(WorldSeed.Stage.TERRAIN);
+        float factor = (float) terrain.nextDouble() * 100f;
+        Heightmap heightmap = Heightmap.fromNoise(size, size, factor, 8,
+                true, terrain);
+        TileMap map = new TileMap(tileset, size, size);
+        map.applyHeightmap(heightmap, 0, 9);
+        map.randomizeFlats(seed.forStage(WorldSeed.Stage.FLATS));
+        Globals.logMessage("Generated a " + size + "x" + size + " world from "
+                + "seed " + seed + " in "
+                + ((System.nanoTime() - start) / 1000000) + "ms.");
+        
+        if (args.length > 4) {
+            start = System.nanoTime();
+            MapFile.write(map, new File(args[4]),
+                    Collections.<Prop>emptyList());
+            Globals.logMessage("Saved to " + args[4] + " in "
+                    + ((System.nanoTime() - start) / 1000000) + "ms.");
+        }
+        
+        HeadlessRunner<Void> runner = new HeadlessRunner<>(null, 50);
+        runner.run(tickCount);
+        Globals.logMessage("Ran " + runner.getTicks() + " ticks ("
+                + (runner.getSimulatedMillis() / 1000) + "s of game time) in "
+                + (runner.getLastRunNanos() / 1000000) + "ms, "
+                + (long) runner.getTicksPerSecond() + " ticks per second.");
+    }
+}
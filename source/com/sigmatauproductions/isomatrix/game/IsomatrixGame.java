@@ -104,6 +104,12 @@ abstract public class IsomatrixGame extends BasicGame {
      */
     private List<IsomatrixState> states = new ArrayList<>();
     
+    /**
+     * The clock ticking the game's simulation on its own thread, or null if
+     * the game simulates on the render loop.
+     */
+    private SimulationClock<?> simulation = null;
+    
     /**
      * Initializes the game and places it into the default, idle state.
      * @param name
@@ -134,7 +140,9 @@ abstract public class IsomatrixGame extends BasicGame {
     }
     
     /**
-     * Called once per frame, this method updates the currently active state.
+     * Called once per frame, this method uploads a few of the images
+     * prefetched by the {@link AssetManager}, then updates the currently
+     * active state.
      * @param gc
      * @param delta
      * @throws SlickException 
@@ -142,6 +150,11 @@ abstract public class IsomatrixGame extends BasicGame {
     @Override
     public final void update(GameContainer gc, int delta)
             throws SlickException {
+        if (simulation != null && simulation.getFailure() != null) {
+            throw new SlickException("The simulation failed.",
+                    simulation.getFailure());
+        }
+        Globals.getAssets().uploadPending(AssetManager.UPLOADS_PER_FRAME);
         autoUpdate(delta);
         states.get(activeState).update(gc, delta);
     }
@@ -162,13 +175,72 @@ abstract public class IsomatrixGame extends BasicGame {
     }
     
     /**
-     * Updates the current events in the {@link EventHandler}.
+     * Queues the events posted by other threads, then updates the current
+     * events in the {@link EventHandler}.  While a simulation is running,
+     * this is done on the simulation thread instead, once per tick.
      * @param delta 
      */
     public final void autoUpdate(int delta) {
+        if (simulation != null) { return; }
+        EventHandler.drainInbox();
         EventHandler.update(delta);
     }
     
+    /**
+     * Starts ticking the specified simulation at a fixed rate on its own
+     * thread, stopping the one running before, if any.  Each tick first
+     * updates the {@link EventHandler} by the length of a tick, so from then
+     * on the handler belongs to the simulation thread, and every other
+     * thread, this one included, must use {@code EventHandler.postEvent()}.
+     * States read what the simulation publishes from the returned clock.
+     * @param simulation
+     * @param ticksPerSecond The number of ticks per second, at most 1000.
+     * @param maxCatchUp The most ticks to run back to back when the
+     *                   simulation falls behind.
+     * @return The clock ticking the simulation.
+     */
+    public final <S> SimulationClock<S> startSimulation(
+            final Simulation<S> simulation, int ticksPerSecond,
+            int maxCatchUp) {
+        stopSimulation();
+        SimulationClock<S> clock = new SimulationClock<>(new Simulation<S>() {
+            @Override
+            public void tick(int millis) {
+                EventHandler.drainInbox();
+                EventHandler.update(millis);
+                simulation.tick(millis);
+            }
+            
+            @Override
+            public S publish() {
+                return simulation.publish();
+            }
+        }, ticksPerSecond, maxCatchUp);
+        this.simulation = clock;
+        clock.start();
+        return clock;
+    }
+    
+    /**
+     * Stops the running simulation, if any, after its current tick, and hands
+     * the {@link EventHandler} back to the render loop.
+     */
+    public final void stopSimulation() {
+        if (simulation != null) {
+            simulation.stop();
+            simulation = null;
+        }
+    }
+    
+    /**
+     * Returns the clock ticking the game's simulation, or null if there is
+     * none.
+     * @return 
+     */
+    public final SimulationClock<?> getSimulation() {
+        return simulation;
+    }
+    
     /**
      * Adds a state to the game for consideration and allows the programmer to
      * specify whether it should be immediately switched to.
@@ -225,17 +297,16 @@ abstract public class IsomatrixGame extends BasicGame {
                 + "isomatrix.cfg...");
         try {
             config = new ConfigFile(Globals.RESOURCE_DIR + "isomatrix.cfg");
-            int width = Integer.parseInt(config.getValueByProperty("reswidth"));
-            int height = Integer.parseInt(config
-                    .getValueByProperty("resheight"));
-            boolean fullscreen = Boolean.parseBoolean(config
-                    .getValueByProperty("fullscreen"));
-            boolean showfps = Boolean.parseBoolean(config
-                    .getValueByProperty("showfps"));
-            boolean capFrameRate = Boolean.parseBoolean(config
-                    .getValueByProperty("useframecap"));
-            int targetFrameRate = Integer.parseInt(config
-                    .getValueByProperty("framecap"));
+            int width = config.getInt("reswidth", IsomatrixGame.width);
+            int height = config.getInt("resheight", IsomatrixGame.height);
+            boolean fullscreen = config.getBoolean("fullscreen",
+                    IsomatrixGame.fullscreen);
+            boolean showfps = config.getBoolean("showfps",
+                    IsomatrixGame.showFPS);
+            boolean capFrameRate = config.getBoolean("useframecap",
+                    IsomatrixGame.capFrameRate);
+            int targetFrameRate = config.getInt("framecap",
+                    IsomatrixGame.targetFrameRate);
             if (width < 800 || height < 600) {
                 Globals.logWarning("Abnormally low resolution detected in "
                         + "isomatrix.cfg, switching to 800x600.");
@@ -254,9 +325,6 @@ abstract public class IsomatrixGame extends BasicGame {
         } catch (FileNotFoundException e) {
             Globals.logError("Could not load isomatrix.cfg!  "
                     + "Using default config values.", true);
-        } catch (NumberFormatException e) {
-            Globals.logWarning("Parsing error in isomatrix.cfg!  "
-                    + "Using default config values.");
         }
     }
     
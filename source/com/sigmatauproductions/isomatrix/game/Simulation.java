@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.game;
+
+/**
+ * The part of a game that advances in fixed steps on its own thread, driven
+ * by a {@link SimulationClock}.
+ *
+ * The simulation owns its state: only the simulation thread may change it.
+ * After every batch of ticks the clock asks it to {@code publish()} what the
+ * renderer needs, which must either be immutable or never be touched by the
+ * simulation again, such as the back buffer of a double-buffered pair.
+ *
+ * @param <S> The type of state published to the renderer.
+ * @author sigtau
+ */
+public interface Simulation<S> {
+    
+    /**
+     * Advances the simulation by one tick.
+     * @param millis The length of the tick, in milliseconds of game time.
+     *               When a second isn't a whole number of ticks, this
+     *               varies by one between ticks, so that a second of ticks
+     *               always adds up to 1000.
+     */
+    void tick(int millis);
+    
+    /**
+     * Returns the current state of the simulation for the renderer to read.
+     * Called on the simulation thread after one or more ticks.
+     * @return 
+     */
+    S publish();
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.game;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a {@link Simulation} at a fixed tick rate on its own thread, apart from
+ * the render loop.
+ *
+ * Slick updates and renders in the same loop with a variable delta, so the
+ * time spent simulating comes straight out of the frame.  The clock instead
+ * ticks the simulation {@code ticksPerSecond} times a second of real time,
+ * with ticks timed to the nanosecond, on a thread of its own, and hands the
+ * renderer the state the simulation publishes after each batch of ticks.
+ * When a second doesn't divide into ticks of whole milliseconds, the ticks
+ * take turns at the two nearest lengths, such as 16, 17 and 17 at 60 ticks a
+ * second, so that game time keeps pace with real time.  The renderer can run
+ * faster than the simulation, using {@link #getAlpha()} to interpolate
+ * between ticks.
+ * <p>
+ * If ticks take longer than their interval, the clock catches up by running
+ * several in a row, but never more than {@code maxCatchUp} at once; any
+ * further backlog is dropped and counted, so a slow patch slows the
+ * simulation down rather than sending it into a spiral of ever more ticks.
+ * <p>
+ * If the simulation throws, the clock stops and keeps what was thrown for
+ * {@link #getFailure()}.
+ *
+ * @param <S> The type of state published by the simulation.
+ * @author sigtau
+ */
+public final class SimulationClock<S> {
+    
+    private final Simulation<S> simulation;
+    
+    private final int ticksPerSecond;
+    
+    /**
+     * The length of a tick, in nanoseconds.
+     */
+    private final long tickNanos;
+    
+    /**
+     * The most ticks run back to back to catch up.
+     */
+    private final int maxCatchUp;
+    
+    /**
+     * The thread ticking the simulation, or null if it isn't running.
+     */
+    private Thread thread = null;
+    
+    private volatile boolean running = false;
+    
+    /**
+     * The last state published, along with when it was published.
+     */
+    private volatile Published<S> published = null;
+    
+    private volatile Throwable failure = null;
+    private volatile long ticks = 0;
+    private volatile long droppedTicks = 0;
+    private volatile long lastTickNanos = 0;
+    
+    /**
+     * Creates a clock for the specified simulation, which isn't started yet.
+     * @param simulation
+     * @param ticksPerSecond The number of ticks per second, at most 1000.
+     * @param maxCatchUp The most ticks to run back to back when behind.
+     */
+    public SimulationClock(Simulation<S> simulation, int ticksPerSecond,
+            int maxCatchUp) {
+        if (simulation == null) {
+            throw new IllegalArgumentException("No simulation given.");
+        }
+        if (ticksPerSecond < 1 || ticksPerSecond > 1000) {
+            throw new IllegalArgumentException("Tick rate must be between 1 "
+                    + "and 1000, not " + ticksPerSecond);
+        }
+        this.simulation = simulation;
+        this.ticksPerSecond = ticksPerSecond;
+        this.tickNanos = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+        this.maxCatchUp = Math.max(1, maxCatchUp);
+    }
+    
+    /**
+     * Starts ticking the simulation, unless it already is.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        failure = null;
+        thread = new Thread(this::run, "Simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops ticking the simulation, waiting for the tick in progress to
+     * finish.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Used internally as the body of the simulation thread.
+     */
+    private void run() {
+        long next = System.nanoTime();
+        // The position of the next tick within the second, which sets how
+        // many whole milliseconds it is given.
+        int phase = 0;
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                int batch = 0;
+                while (now - next >= 0 && batch < maxCatchUp && running) {
+                    long start = System.nanoTime();
+                    simulation.tick(tickMillis(phase));
+                    phase = (phase + 1 == ticksPerSecond) ? 0 : phase + 1;
+                    lastTickNanos = System.nanoTime() - start;
+                    ticks++;
+                    next += tickNanos;
+                    batch++;
+                }
+                if (now - next >= 0) {
+                    // Still behind after catching up as far as allowed.
+                    long behind = ((now - next) / tickNanos) + 1;
+                    droppedTicks += behind;
+                    next += behind * tickNanos;
+                }
+                if (batch > 0) {
+                    published = new Published<>(simulation.publish(), ticks,
+                            next - tickNanos);
+                }
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        } catch (Throwable t) {
+            failure = t;
+            running = false;
+        }
+    }
+    
+    /**
+     * Used internally to work out the milliseconds given to the tick at the
+     * specified position within a second, so that the ticks of every second
+     * add up to exactly 1000.
+     */
+    private int tickMillis(int phase) {
+        return (int) (((phase + 1) * 1000L) / ticksPerSecond
+                - (phase * 1000L) / ticksPerSecond);
+    }
+    
+    /**
+     * Returns true if the simulation is being ticked.
+     * @return 
+     */
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Returns the last state published by the simulation, or null if it
+     * hasn't ticked yet.
+     * @return 
+     */
+    public S getState() {
+        Published<S> p = published;
+        return (p == null) ? null : p.state;
+    }
+    
+    /**
+     * Returns the number of the tick the last state was published after.
+     * @return 
+     */
+    public long getPublishedTick() {
+        Published<S> p = published;
+        return (p == null) ? 0 : p.tick;
+    }
+    
+    /**
+     * Returns how far real time has moved past the last published state, as
+     * a fraction of a tick between zero and one, for interpolating between
+     * ticks while rendering.
+     * @return 
+     */
+    public float getAlpha() {
+        Published<S> p = published;
+        if (p == null) {
+            return 0f;
+        }
+        float alpha = (System.nanoTime() - p.nanos) / (float) tickNanos;
+        return (alpha < 0f) ? 0f : (alpha > 1f) ? 1f : alpha;
+    }
+    
+    /**
+     * Returns the length of a tick, in whole milliseconds, rounded down.
+     * Some ticks are given a millisecond more; see {@link #getTickNanos()}
+     * for the exact length.
+     * @return 
+     */
+    public int getTickMillis() {
+        return 1000 / ticksPerSecond;
+    }
+    
+    /**
+     * Returns the exact length of a tick, in nanoseconds.
+     * @return 
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+    
+    /**
+     * Returns the number of ticks run so far.
+     * @return 
+     */
+    public long getTicks() {
+        return ticks;
+    }
+    
+    /**
+     * Returns the number of ticks dropped because the simulation fell
+     * further behind than the catch-up limit.
+     * @return 
+     */
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+    
+    /**
+     * Returns how long the last tick took, in nanoseconds.
+     * @return 
+     */
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+    
+    /**
+     * Returns what the simulation threw to stop the clock, or null.
+     * @return 
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+    
+    /**
+     * A state published by the simulation, with the tick it was published
+     * after and the time that tick was due.
+     */
+    private static final class Published<S> {
+        
+        private final S state;
+        private final long tick;
+        private final long nanos;
+        
+        Published(S state, long tick, long nanos) {
+            this.state = state;
+            this.tick = tick;
+            this.nanos = nanos;
+        }
+    }
+}
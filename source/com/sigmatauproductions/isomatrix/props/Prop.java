@@ -30,12 +30,9 @@
 package com.sigmatauproductions.isomatrix.props;
 
 import com.sigmatauproductions.isomatrix.Globals;
-import com.sigmatauproductions.isomatrix.tiles.Direction;
 import com.sigmatauproductions.isomatrix.tiles.TileMap;
 import com.sigmatauproductions.isomatrix.util.Transform;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 import org.newdawn.slick.*;
 
 /**
@@ -64,6 +61,13 @@ import org.newdawn.slick.*;
  * cropped from the image,</b> or else strange behavior will occur when drawing
  * the prop.
  * <p>
+ * Everything props of one kind share lives in their {@link PropTemplate}, so a
+ * prop itself is little more than its template and anchor, and copies made
+ * with {@code clone()} share the template.  Superficial props of this class
+ * can be placed on a map without any object at all, see
+ * {@link TileMap#addPropInstance(PropTemplate, int, int)}, which is how
+ * {@code createCluster()} places them.
+ * <p>
  * The prop class is intentionally extendable so that any game can create props
  * with custom behaviors.
  * 
@@ -77,41 +81,43 @@ public class Prop implements Cloneable {
     public static final int DEFAULT_DURATION = 100;
     
     /**
-     * Used internally to store the slick2d Animation that will be drawn.
+     * Used internally to store the images, size and registration this prop
+     * shares with every other prop of its kind.
      */
-    private Animation animation;
+    private final PropTemplate template;
     
     /**
      * Used to store the screen-space position of the prop.
      */
     public Transform position = Transform.getOrigin();
     
-    /**
-     * The width (x-size) of the prop, in number of tiles.
-     */
-    private int width = 1;
-    
-    /**
-     * The height (y-size) of the prop, in number of tiles.
-     */
-    private int height = 1;
-    
     /**
      * The tile index of the bottom-most (anchor) tile of this prop.
      */
     private int anchor = 0;
     
-    /**
-     * Contains whether or not the tile requires registration.
-     */
-    private boolean doRegister = true;
-    
     /**
      * The default constructor, set to private to prevent people from gaining
      * access to methods such as getWidth() and getHeight() without creating
      * a proper new Prop.
      */
-    private Prop() {}
+    private Prop() {
+        template = null;
+    }
+    
+    /**
+     * Creates a new prop of the kind described by the specified template.
+     * 
+     * @param template
+     * @param anchor The bottom-most (anchor) tile of the prop.
+     */
+    public Prop(PropTemplate template, int anchor) {
+        if (template == null) {
+            throw new IllegalArgumentException("A prop needs a template.");
+        }
+        this.template = template;
+        this.anchor = (anchor >= 0) ? anchor : 1;
+    }
     
     /**
      * Creates a new animated non-superficial prop.
@@ -125,13 +131,7 @@ public class Prop implements Cloneable {
      */
     public Prop(Image[] images, int[] duration,
             int width, int height, int anchor) {
-        int[] d = validateDuration(duration);
-        this.animation = new Animation(images, d, true);
-        this.width = width;
-        this.height = height;
-        validateDimensions();
-        this.anchor = (anchor >= 0) ? anchor : 1;
-        animation.start();
+        this(images, duration, width, height, anchor, true);
     }
     
     /**
@@ -141,8 +141,8 @@ public class Prop implements Cloneable {
      */
     public Prop(Image[] images, int[] duration,
             int width, int height, int anchor, boolean doRegister) {
-        this(images, duration, width, height, anchor);
-        this.doRegister = doRegister;
+        this(new PropTemplate(images, duration, width, height, doRegister),
+                anchor);
     }
     
     /**
@@ -150,8 +150,7 @@ public class Prop implements Cloneable {
      * non-animated prop.
      */
     public Prop (Image image, int width, int height, int anchor) {
-        this(new Image[]{ image }, new int[]{ DEFAULT_DURATION },
-                width, height, anchor);
+        this(image, width, height, anchor, true);
     }
     
     /**
@@ -160,39 +159,7 @@ public class Prop implements Cloneable {
      */
     public Prop (Image image, int width, int height, int anchor,
             boolean doRegister) {
-        this(image, width, height, anchor);
-        this.doRegister = doRegister;
-    }
-    
-    /**
-     * Used internally to ensure that a duration array passed to one of the
-     * constructors for animated props is sane and contains valid integer
-     * values.
-     */
-    private int[] validateDuration(int[] drtn) {
-        int[] d = drtn;
-        // the most unreadable line of code I've ever written. It's on one line
-        // because there was some pretty ridiculous extra whitespace with it
-        // separated as normal, so I compacted it. -sigtau
-        for(int i=0;i<d.length;i++){d[i]=(d[i]>0)?d[i]:DEFAULT_DURATION;}
-        return d;
-    }
-    
-    /**
-     * Used internally to ensure the dimensions of the prop are at least 1x1.
-     */
-    private void validateDimensions() {
-        if (width < 0) {
-            width = 1;
-            Globals.logWarning("Prop set to invalid width, defaulted"
-                    + " to a width of 1.");
-        }
-        
-        if (height < 0) {
-            height = 1;
-            Globals.logWarning("Prop set to invalid height, defaulted"
-                    + " to a height of 1.");
-        }
+        this(new PropTemplate(image, width, height, doRegister), anchor);
     }
     
     /**
@@ -200,7 +167,8 @@ public class Prop implements Cloneable {
      * {@link Transform}.
      */
     public final void draw() {
-        animation.draw(position.x, position.y);
+        template.getFrame(System.nanoTime() / 1000000L)
+                .draw(position.x, position.y);
     }
     
     /**
@@ -210,43 +178,75 @@ public class Prop implements Cloneable {
         return anchor;
     }
     
+    /**
+     * Sets the tile this prop is anchored to.  This only places a prop that
+     * isn't on a map yet; a prop already on a {@link TileMap} must be moved
+     * with {@link TileMap#moveProp(Prop, int)}, or it keeps being drawn at,
+     * and removed from, the tile it was placed on.
+     */
     public final void setAnchor(int a) {
         anchor = a;
     }
     
+    /**
+     * Returns the template this prop was made from.
+     */
+    public final PropTemplate getTemplate() {
+        return template;
+    }
+    
     /**
      * Returns the image-height of this prop.
      */
     public final int getAnimationHeight() {
-        return animation.getHeight();
+        return template.getImageHeight();
     }
     
     /**
      * Returns the image-width of this prop.
      */
     public final int getAnimationWidth() {
-        return animation.getWidth();
+        return template.getImageWidth();
     }
     
     /**
      * Returns the y-length (height) of this prop in tiles. 
      */
     public final int getHeight() {
-        return height;
+        return template.getHeight();
     }
     
     /**
      * Returns the x-length (width) of this prop in tiles.
      */
     public final int getWidth() {
-        return width;
+        return template.getWidth();
     }
     
     /**
      * Returns the superficiality status (registration) of the prop.
      */
     public final boolean needsRegistration() {
-        return doRegister;
+        return template.needsRegistration();
+    }
+    
+    /**
+     * Returns true if this prop is the specified prop or a copy of it, made
+     * with {@code clone()}, sharing its template.
+     * @param template
+     * @return 
+     */
+    public final boolean isCopyOf(Prop template) {
+        return template != null && this.template == template.template;
+    }
+    
+    /**
+     * Returns true if props copied from this one can be placed as
+     * lightweight props, which is the case for superficial props of this
+     * class itself; subclasses may carry behavior a template can't.
+     */
+    public final boolean isLightweight() {
+        return getClass() == Prop.class && !needsRegistration();
     }
     
     /**
@@ -256,7 +256,9 @@ public class Prop implements Cloneable {
      */
     @Override
     public final Prop clone() throws CloneNotSupportedException {
-        return ((Prop)(super.clone()));
+        Prop copy = (Prop) super.clone();
+        copy.position = new Transform(position.x, position.y, position.z);
+        return copy;
     }
     
     /**
@@ -271,39 +273,55 @@ public class Prop implements Cloneable {
      */
     public static boolean createCluster(TileMap map, Prop[] props,
             int freq, int center, int _radius) {
+        return createCluster(map, props, freq, center, _radius,
+                new SplittableRandom());
+    }
+    
+    /**
+     * Creates a cluster of the specified props exactly like
+     * {@code createCluster(map, props, freq, center, _radius)}, but picks the
+     * props and their tiles with the given generator, so that a seeded
+     * generator always produces the same cluster.
+     * @param map
+     * @param props
+     * @param freq
+     * @param center
+     * @param _radius
+     * @param random
+     * @return 
+     */
+    public static boolean createCluster(TileMap map, Prop[] props,
+            int freq, int center, int _radius, SplittableRandom random) {
         // First, validate that everything is non-null and good to use.
         // Return false if not.
-        if (map == null || props == null) { return false; }
+        if (map == null || props == null || props.length == 0) {
+            return false;
+        }
         if (center < 0 || center >= map.getTileCount()) { return false; }
         if (map.getTile(center).isRegistered()) { return false; }
         int radius = (_radius > 1) ? _radius : 2;
-        int frequency = freq;
-        
-        // Initialize a list to hold all of the tiles we will be drawing to.
-        List<Integer> tiles = new ArrayList<>();
-        
-        // Get all the tiles within a distance equal to the radius.
-        int startingPoint = map.gotoTile(center, Direction.UP, radius);
-        if (startingPoint < 0) { return false; }
-        int currentPoint;
-        int rowStart = startingPoint;
-        for (int y = 0; y < radius; y++) {
-            currentPoint = rowStart;
-            for (int x = 0; x < radius; x++) {
-                tiles.add(currentPoint);
-                currentPoint++;
-            }
-            rowStart = map.getNeighbor(rowStart, Direction.SOUTH);
-        }
+        int frequency = (freq > 0) ? freq : 0;
         
-        // Get a random number generator instance
-        Random random = new Random();
+        // Get all the tiles in the square of the radius' size, starting from
+        // the tile the radius' distance UP of the center.
+        int[] coords = map.getTileCoordinates(center);
+        int[] tiles = map.getTilesInRect(coords[0] - radius,
+                coords[1] - radius, radius, radius).toArray();
+        if (tiles.length == 0) { return false; }
         
-        // Start the prop population cycle
-        boolean flag = false;
+        // Start the prop population cycle, then hand the whole cluster to the
+        // map at once.  Props that can be lightweight are placed as no more
+        // than their template, anchor and phase.
+        Prop[] cluster = new Prop[frequency];
         for (int i = 0; i < frequency; i++) {
-            int whichProp = new Random().nextInt(props.length);
-            int whichTile = tiles.get(new Random().nextInt(tiles.size()));
+            int whichProp = random.nextInt(props.length);
+            int whichTile = tiles[random.nextInt(tiles.length)];
+            
+            if (props[whichProp].isLightweight()) {
+                PropTemplate t = props[whichProp].getTemplate();
+                map.addPropInstance(t, whichTile, phaseOf(whichTile, t));
+                continue;
+            }
             
             Prop propCopy = null;
             try {
@@ -314,11 +332,23 @@ public class Prop implements Cloneable {
             }
             
             propCopy.setAnchor(whichTile);
-            map.addProp(propCopy);
-            
+            cluster[i] = propCopy;
         }
+        map.addProps(cluster);
         
         // Return true, the cluster is complete.
         return true;
     }
+    
+    /**
+     * Used internally to pick the animation phase of a prop placed on the
+     * specified tile.  It only depends on the tile, so that seeded clusters
+     * don't draw anything more from their generators than before.
+     */
+    private static int phaseOf(int tile, PropTemplate template) {
+        if (template.getFrameCount() == 1) {
+            return 0;
+        }
+        return Math.floorMod(tile * 0x9E3779B1, template.getTotalDuration());
+    }
 }
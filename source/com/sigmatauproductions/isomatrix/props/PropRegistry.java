@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.props;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers {@link PropTemplate}s, so that placed props can refer to their
+ * template with an int rather than an object.
+ *
+ * Ids are handed out in the order templates are registered, starting at 0,
+ * and never change.  Registering a template twice returns the id it already
+ * has.
+ *
+ * @author sigtau
+ */
+public final class PropRegistry {
+    
+    private final List<PropTemplate> templates = new ArrayList<>();
+    
+    private final Map<PropTemplate, Integer> ids = new IdentityHashMap<>();
+    
+    /**
+     * Registers the specified template, if it isn't already.
+     * 
+     * @param template
+     * @return The template's id.
+     */
+    public int register(PropTemplate template) {
+        Integer id = ids.get(template);
+        if (id == null) {
+            id = templates.size();
+            templates.add(template);
+            ids.put(template, id);
+        }
+        return id;
+    }
+    
+    /**
+     * Returns the template with the specified id.
+     */
+    public PropTemplate get(int id) {
+        return templates.get(id);
+    }
+    
+    /**
+     * Returns the id of the specified template, or -1 if it isn't
+     * registered.
+     */
+    public int getId(PropTemplate template) {
+        Integer id = ids.get(template);
+        return (id == null) ? -1 : id;
+    }
+    
+    /**
+     * Returns the number of templates registered.
+     */
+    public int size() {
+        return templates.size();
+    }
+    
+    /**
+     * Returns every registered template, indexed by id.
+     */
+    public PropTemplate[] toArray() {
+        return templates.toArray(new PropTemplate[templates.size()]);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.props;
+
+import com.sigmatauproductions.isomatrix.Globals;
+import org.newdawn.slick.Image;
+
+/**
+ * Everything props of one kind have in common: their images and how long
+ * each is shown for, their size in tiles, and whether they are registered
+ * to the tiles they cover.
+ *
+ * Templates never change once created, so any number of props can share
+ * one.  Since they have no animation state of their own, which frame a prop
+ * shows is worked out from the time it is drawn at, offset by the prop's
+ * phase so that props of the same kind don't all move in step.
+ *
+ * @see PropRegistry
+ * @author sigtau
+ */
+public final class PropTemplate {
+    
+    private final Image[] frames;
+    
+    private final int[] durations;
+    
+    /**
+     * The length of one loop through every frame, in milliseconds.
+     */
+    private final int totalDuration;
+    
+    private final int width;
+    
+    private final int height;
+    
+    private final boolean doRegister;
+    
+    /**
+     * The size of the largest frame, used for culling.
+     */
+    private final int imageWidth, imageHeight;
+    
+    /**
+     * Creates a template for animated props.
+     * 
+     * @param frames The images of the animation, one frame per entry.
+     * @param durations The duration of each frame, in milliseconds.  Frames
+     *                  without a positive duration last
+     *                  {@code Prop.DEFAULT_DURATION}.
+     * @param width The props' width (x-size) in tiles.
+     * @param height The props' height (y-size) in tiles.
+     * @param doRegister If set to false, the props will be superficial.
+     */
+    public PropTemplate(Image[] frames, int[] durations, int width,
+            int height, boolean doRegister) {
+        if (frames == null || frames.length == 0
+                || durations == null || durations.length != frames.length) {
+            throw new IllegalArgumentException("Every frame needs exactly "
+                    + "one duration.");
+        }
+        this.frames = frames.clone();
+        this.durations = new int[durations.length];
+        int total = 0;
+        int maxWidth = 0;
+        int maxHeight = 0;
+        for (int i = 0; i < frames.length; i++) {
+            this.durations[i] = (durations[i] > 0) ? durations[i]
+                    : Prop.DEFAULT_DURATION;
+            total += this.durations[i];
+            maxWidth = Math.max(maxWidth, frames[i].getWidth());
+            maxHeight = Math.max(maxHeight, frames[i].getHeight());
+        }
+        this.totalDuration = total;
+        this.imageWidth = maxWidth;
+        this.imageHeight = maxHeight;
+        
+        if (width < 0) {
+            width = 1;
+            Globals.logWarning("Prop set to invalid width, defaulted"
+                    + " to a width of 1.");
+        }
+        if (height < 0) {
+            height = 1;
+            Globals.logWarning("Prop set to invalid height, defaulted"
+                    + " to a height of 1.");
+        }
+        this.width = width;
+        this.height = height;
+        this.doRegister = doRegister;
+    }
+    
+    /**
+     * Creates a template for non-animated props.
+     */
+    public PropTemplate(Image image, int width, int height,
+            boolean doRegister) {
+        this(new Image[]{ image }, new int[]{ Prop.DEFAULT_DURATION },
+                width, height, doRegister);
+    }
+    
+    /**
+     * Returns the frame shown at the specified time.
+     * 
+     * @param millis The time, in milliseconds, plus the prop's phase.
+     * @return 
+     */
+    public Image getFrame(long millis) {
+        if (frames.length == 1) {
+            return frames[0];
+        }
+        long t = Math.floorMod(millis, (long) totalDuration);
+        int frame = 0;
+        while (t >= durations[frame]) {
+            t -= durations[frame];
+            frame++;
+        }
+        return frames[frame];
+    }
+    
+    /**
+     * Returns the number of frames.
+     */
+    public int getFrameCount() {
+        return frames.length;
+    }
+    
+    /**
+     * Returns the image of the specified frame.
+     */
+    public Image getImage(int frame) {
+        return frames[frame];
+    }
+    
+    /**
+     * Returns the duration of the specified frame, in milliseconds.
+     */
+    public int getDuration(int frame) {
+        return durations[frame];
+    }
+    
+    /**
+     * Returns the length of one loop through every frame, in milliseconds.
+     */
+    public int getTotalDuration() {
+        return totalDuration;
+    }
+    
+    /**
+     * Returns the width of the widest frame.
+     */
+    public int getImageWidth() {
+        return imageWidth;
+    }
+    
+    /**
+     * Returns the height of the tallest frame.
+     */
+    public int getImageHeight() {
+        return imageHeight;
+    }
+    
+    /**
+     * Returns the x-length (width) of the props in tiles.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the y-length (height) of the props in tiles.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns the superficiality status (registration) of the props.
+     */
+    public boolean needsRegistration() {
+        return doRegister;
+    }
+}
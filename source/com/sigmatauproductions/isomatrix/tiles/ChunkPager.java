@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps track of which chunks of a {@link TileStorage} are held in memory,
+ * and holds the rest in a memory-mapped file.
+ *
+ * Every chunk has a fixed record in the file, big enough for all of its
+ * layers; only the layers that were actually allocated when the chunk was
+ * paged out are written, and a mask remembers which.  Chunks to page out are
+ * chosen with the clock algorithm: every access marks a chunk as referenced,
+ * and the hand sweeps over the resident chunks, giving each referenced one a
+ * second chance, until it finds one that hasn't been used since the last
+ * sweep.  That approximates evicting the least recently used chunk without
+ * keeping the chunks in order on every access.
+ * <p>
+ * The pager only does the bookkeeping and the reading and writing; the
+ * storage decides when chunks come and go.
+ *
+ * @author sigtau
+ */
+final class ChunkPager {
+    
+    /**
+     * The bits of a paged-out chunk's mask, one for each of its layers.
+     */
+    static final int HEIGHTS = 1;
+    static final int SLOPES = 2;
+    static final int IMAGES = 4;
+    static final int TINTS = 8;
+    
+    private final int chunkTiles;
+    
+    /**
+     * The size of a chunk's record in the file, in bytes.
+     */
+    private final int recordSize;
+    
+    private final File file;
+    private final boolean temporary;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    
+    /**
+     * The most chunks that may be held in memory at once.
+     */
+    private int budget;
+    
+    /**
+     * Whether each chunk has any layer allocated in memory, and how many do.
+     */
+    private final boolean[] resident;
+    private int residentCount = 0;
+    
+    /**
+     * Whether each chunk was used since the clock hand last passed it.
+     */
+    private final boolean[] referenced;
+    private int hand = 0;
+    
+    /**
+     * The layers each chunk has in the file, or zero for chunks that aren't
+     * paged out.
+     */
+    private final byte[] pagedLayers;
+    
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    
+    /**
+     * Creates a pager backed by the specified file, which is created or
+     * overwritten.
+     *
+     * @param file
+     * @param temporary Whether to delete the file once the pager is closed.
+     * @param chunkCount The number of chunks in the storage.
+     * @param chunkTiles The number of tiles in a chunk.
+     * @param budget The most chunks that may be held in memory at once.
+     * @throws IOException
+     */
+    ChunkPager(File file, boolean temporary, int chunkCount, int chunkTiles,
+            int budget) throws IOException {
+        this.file = file;
+        this.temporary = temporary;
+        this.chunkTiles = chunkTiles;
+        this.recordSize = chunkTiles * (3 + Integer.BYTES);
+        long length = (long) chunkCount * recordSize;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too many chunks to page to a single file.");
+        }
+        this.budget = Math.max(budget, 1);
+        this.resident = new boolean[chunkCount];
+        this.referenced = new boolean[chunkCount];
+        this.pagedLayers = new byte[chunkCount];
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            channel = raf.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns true if the specified chunk is held in the file.
+     */
+    boolean isPagedOut(int chunk) {
+        return pagedLayers[chunk] != 0;
+    }
+    
+    /**
+     * Records an access to a chunk that was already in memory.
+     */
+    void hit(int chunk) {
+        hits++;
+        referenced[chunk] = true;
+    }
+    
+    /**
+     * Records whether the specified chunk now has any layer allocated in
+     * memory.
+     */
+    void setResident(int chunk, boolean isResident) {
+        if (resident[chunk] != isResident) {
+            resident[chunk] = isResident;
+            residentCount += isResident ? 1 : -1;
+        }
+        referenced[chunk] = isResident;
+    }
+    
+    /**
+     * Returns true if more chunks are held in memory than the budget allows.
+     */
+    boolean isOverBudget() {
+        return residentCount > budget;
+    }
+    
+    /**
+     * Picks the next chunk to page out, which is never the specified one.
+     *
+     * @param pinned The chunk being accessed, or -1.
+     * @return The chunk to page out, or -1 if there is no other resident one.
+     */
+    int nextVictim(int pinned) {
+        int others = residentCount - ((pinned >= 0 && resident[pinned]) ? 1
+                : 0);
+        if (others <= 0) {
+            return -1;
+        }
+        // Two sweeps are always enough: the first clears every reference.
+        for (int step = 0; step < 2 * resident.length; step++) {
+            int chunk = hand;
+            hand = (hand + 1 == resident.length) ? 0 : hand + 1;
+            if (!resident[chunk] || chunk == pinned) {
+                continue;
+            }
+            if (referenced[chunk]) {
+                referenced[chunk] = false;
+            } else {
+                return chunk;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Writes the specified layers of a chunk to its record.  Any of them may
+     * be null, if the chunk has none allocated.
+     */
+    void pageOut(int chunk, byte[] heights, byte[] slopes, byte[] images,
+            int[] tints) {
+        int mask = 0;
+        ByteBuffer record = record(chunk);
+        if (heights != null) { mask |= HEIGHTS; record.put(heights); }
+        else { skip(record, chunkTiles); }
+        if (slopes != null) { mask |= SLOPES; record.put(slopes); }
+        else { skip(record, chunkTiles); }
+        if (images != null) { mask |= IMAGES; record.put(images); }
+        else { skip(record, chunkTiles); }
+        if (tints != null) { mask |= TINTS; record.asIntBuffer().put(tints); }
+        pagedLayers[chunk] = (byte) mask;
+        setResident(chunk, false);
+        evictions++;
+    }
+    
+    /**
+     * Reads one layer of a paged-out chunk back from its record.
+     *
+     * @param chunk
+     * @param layer One of HEIGHTS, SLOPES or IMAGES.
+     * @return The layer, or null if the chunk didn't have it allocated.
+     */
+    byte[] readBytes(int chunk, int layer) {
+        if ((pagedLayers[chunk] & layer) == 0) {
+            return null;
+        }
+        int offset = (layer == HEIGHTS) ? 0 : (layer == SLOPES) ? chunkTiles
+                : 2 * chunkTiles;
+        ByteBuffer record = record(chunk);
+        skip(record, offset);
+        byte[] values = new byte[chunkTiles];
+        record.get(values);
+        return values;
+    }
+    
+    /**
+     * Reads the tints of a paged-out chunk back from its record.
+     *
+     * @return The tints, or null if the chunk didn't have them allocated.
+     */
+    int[] readTints(int chunk) {
+        if ((pagedLayers[chunk] & TINTS) == 0) {
+            return null;
+        }
+        ByteBuffer record = record(chunk);
+        skip(record, 3 * chunkTiles);
+        int[] values = new int[chunkTiles];
+        record.asIntBuffer().get(values);
+        return values;
+    }
+    
+    /**
+     * Marks a chunk as read back into memory, once all its layers have been.
+     */
+    void pagedIn(int chunk) {
+        pagedLayers[chunk] = 0;
+        misses++;
+        setResident(chunk, true);
+    }
+    
+    /**
+     * Used internally to return a buffer over the record of a chunk.
+     */
+    private ByteBuffer record(int chunk) {
+        ByteBuffer record = buffer.duplicate();
+        int start = chunk * recordSize;
+        record.limit(start + recordSize);
+        record.position(start);
+        return record;
+    }
+    
+    private static void skip(ByteBuffer buffer, int bytes) {
+        buffer.position(buffer.position() + bytes);
+    }
+    
+    int getBudget() {
+        return budget;
+    }
+    
+    void setBudget(int budget) {
+        this.budget = Math.max(budget, 1);
+    }
+    
+    int getResidentCount() {
+        return residentCount;
+    }
+    
+    long getHits() {
+        return hits;
+    }
+    
+    long getMisses() {
+        return misses;
+    }
+    
+    long getEvictions() {
+        return evictions;
+    }
+    
+    /**
+     * Closes the file, and deletes it if it was a temporary one.  Every chunk
+     * must have been paged back in first.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        channel.close();
+        if (temporary && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import java.util.Arrays;
+
+/**
+ * Lowers the tiles of a {@link TileMap} until no tile is more than one unit
+ * higher than any of its eight neighbors, which is as steep as slopes can be
+ * interpolated.  Terrain edits can also relax the map outward from just the
+ * edited tiles, in either direction.
+ *
+ * Instead of sweeping the whole map until nothing changes, tiles are worked
+ * through from the lowest height up, each one pulling its too-high neighbors
+ * down to one above itself.  Since heights are settled in ascending order, a
+ * tile is never lowered more than once, so the work done is proportional to
+ * the number of tiles that needed fixing (plus one scan to find where to
+ * start).  The result is the same as lowering offending tiles one unit at a
+ * time until none are left: every tile ends up at the lowest of its own height
+ * and each other tile's height plus their distance apart.
+ * <p>
+ * Neighbors are found with the same arithmetic as TileMap.getNeighbor().
+ *
+ * @author sigtau
+ */
+final class HeightRelaxer {
+    
+    /**
+     * The number of distinct heights a tile can have.
+     */
+    private static final int LEVELS = TileStorage.MAX_HEIGHT
+            - TileStorage.MIN_HEIGHT + 1;
+    
+    private final TileStorage storage;
+    private final int size;
+    
+    /**
+     * The index offsets of all eight neighbors of a tile.
+     */
+    private final int[] offsets;
+    
+    /**
+     * The tiles waiting to be worked through, one bucket per height.
+     */
+    private final int[][] buckets = new int[LEVELS][];
+    private final int[] counts = new int[LEVELS];
+    
+    /**
+     * The tiles changed since the last call to clearChanged(), or null if
+     * changes aren't being recorded.
+     */
+    private int[] changed = null;
+    private int changedCount = 0;
+    
+    /**
+     * Creates a relaxer for the specified storage.
+     *
+     * @param storage
+     * @param stride The distance between two rows, as used by
+     * TileMap.getNeighbor().
+     */
+    HeightRelaxer(TileStorage storage, int stride) {
+        this.storage = storage;
+        this.size = storage.size();
+        this.offsets = new int[] { -stride, 1, stride, -1,
+            -1 - stride, 1 - stride, 1 + stride, -1 + stride };
+    }
+    
+    /**
+     * Relaxes the whole map.
+     *
+     * @param maxVisits The most tiles that may be worked through before
+     * giving up.
+     * @return The number of tiles that were lowered, or -1 if the budget ran
+     * out first (in which case the map is only partly relaxed).
+     */
+    int relax(long maxVisits) {
+        // Only tiles with a neighbor too far above them can start a chain of
+        // changes.  Inside a chunk of the storage whose tiles all share one
+        // height, no tile can, so only the chunk's outer ring is looked at.
+        // That only holds when neighbors are found a row apart.
+        int width = storage.getWidth();
+        int height = storage.getHeight();
+        boolean skipUniform = (offsets[2] == width);
+        int chunk = TileStorage.CHUNK_SIZE;
+        for (int cy = 0; cy < height; cy += chunk) {
+            int rows = Math.min(chunk, height - cy);
+            for (int cx = 0; cx < width; cx += chunk) {
+                int columns = Math.min(chunk, width - cx);
+                int first = (cy * width) + cx;
+                boolean uniform = skipUniform
+                        && storage.isHeightUniform(first);
+                for (int y = 0; y < rows; y++) {
+                    boolean ring = !uniform || y == 0 || y == rows - 1;
+                    int step = ring ? 1 : Math.max(columns - 1, 1);
+                    for (int x = 0; x < columns; x += step) {
+                        seed(first + (y * width) + x);
+                    }
+                }
+            }
+        }
+        return drain(maxVisits, true);
+    }
+    
+    /**
+     * Queues the specified tile if any of its neighbors is too far above it.
+     */
+    private void seed(int i) {
+        int height = storage.getHeight(i);
+        for (int offset : offsets) {
+            int n = i + offset;
+            if (n >= 0 && n < size && storage.getHeight(n) > height + 1) {
+                push(i, height);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Lowers the neighbors of the specified tiles, and theirs in turn, until
+     * none is more than one unit above any of its neighbors.  The specified
+     * tiles themselves are never lowered as long as they don't conflict with
+     * each other.
+     *
+     * @param seeds The tiles to start from, usually freshly edited ones.
+     * @param maxVisits The most tiles that may be worked through before
+     * giving up.
+     * @return The number of tiles that were lowered, or -1 if the budget ran
+     * out first.
+     */
+    int lowerFrom(int[] seeds, long maxVisits) {
+        for (int i : seeds) {
+            push(i, storage.getHeight(i));
+        }
+        return drain(maxVisits, true);
+    }
+    
+    /**
+     * Raises the neighbors of the specified tiles, and theirs in turn, until
+     * none is more than one unit below any of its neighbors.  This is the
+     * mirror image of lowerFrom().
+     *
+     * @param seeds The tiles to start from, usually freshly edited ones.
+     * @param maxVisits The most tiles that may be worked through before
+     * giving up.
+     * @return The number of tiles that were raised, or -1 if the budget ran
+     * out first.
+     */
+    int raiseFrom(int[] seeds, long maxVisits) {
+        for (int i : seeds) {
+            push(i, storage.getHeight(i));
+        }
+        return drain(maxVisits, false);
+    }
+    
+    /**
+     * Starts or stops recording which tiles get changed, and forgets the ones
+     * recorded so far.
+     *
+     * @param record
+     */
+    void recordChanges(boolean record) {
+        changed = record ? new int[64] : null;
+        changedCount = 0;
+    }
+    
+    /**
+     * Returns the tiles changed since recording started, in the order they
+     * were changed.  A tile may appear more than once.
+     */
+    int[] getChanged() {
+        return (changed == null) ? new int[0]
+                : Arrays.copyOf(changed, changedCount);
+    }
+    
+    /**
+     * Used internally to work through the buckets, from the lowest height up
+     * when lowering and from the highest down when raising.
+     */
+    private int drain(long maxVisits, boolean lowering) {
+        int adjusted = 0;
+        long visits = 0;
+        int step = lowering ? 1 : -1;
+        for (int k = 0; k < LEVELS; k++) {
+            // Changed tiles always land one level further along, so this
+            // bucket can't grow while it's being worked through.
+            int level = lowering ? k : LEVELS - 1 - k;
+            int height = level + TileStorage.MIN_HEIGHT;
+            for (int q = 0; q < counts[level]; q++) {
+                if (++visits > maxVisits) {
+                    clear();
+                    return -1;
+                }
+                int i = buckets[level][q];
+                if (storage.getHeight(i) != height) {
+                    // Changed again after it was queued; it has already been
+                    // (or will be) worked through at its new height.
+                    continue;
+                }
+                for (int offset : offsets) {
+                    int n = i + offset;
+                    if (n < 0 || n >= size) {
+                        continue;
+                    }
+                    int difference = storage.getHeight(n) - height;
+                    if (lowering ? difference > 1 : difference < -1) {
+                        storage.setHeight(n, height + step);
+                        push(n, height + step);
+                        record(n);
+                        adjusted++;
+                    }
+                }
+            }
+            counts[level] = 0;
+        }
+        return adjusted;
+    }
+    
+    /**
+     * Used internally to queue a tile at the specified height.
+     */
+    private void push(int index, int height) {
+        int level = height - TileStorage.MIN_HEIGHT;
+        int[] bucket = buckets[level];
+        if (bucket == null) {
+            bucket = new int[64];
+            buckets[level] = bucket;
+        } else if (counts[level] == bucket.length) {
+            bucket = Arrays.copyOf(bucket, bucket.length * 2);
+            buckets[level] = bucket;
+        }
+        bucket[counts[level]++] = index;
+    }
+    
+    /**
+     * Used internally to remember a changed tile, if changes are being
+     * recorded.
+     */
+    private void record(int index) {
+        if (changed == null) {
+            return;
+        }
+        if (changedCount == changed.length) {
+            changed = Arrays.copyOf(changed, changed.length * 2);
+        }
+        changed[changedCount++] = index;
+    }
+    
+    /**
+     * Used internally to empty every bucket.
+     */
+    private void clear() {
+        Arrays.fill(counts, 0);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import com.sigmatauproductions.isomatrix.util.FastNoise;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import javax.imageio.ImageIO;
+
+/**
+ * A grayscale raster of height samples, ready to be applied to a
+ * {@link TileMap}.
+ *
+ * Heightmaps are kept as plain arrays of unsigned 16-bit samples, where 0 is
+ * the lowest point (black) and {@code MAX_SAMPLE} the highest (white).  Since
+ * nothing here touches an OpenGL texture, heightmaps can be decoded, generated
+ * and resampled on any thread, and without a display at all.  Only
+ * TileMap.applyHeightmap() needs the map itself.
+ * <p>
+ * 8-bit sources are widened so that a gray value {@code g} becomes
+ * {@code g * 257}, which maps black and white to exactly the same heights as
+ * before.
+ *
+ * @author sigtau
+ */
+public final class Heightmap {
+    
+    /**
+     * The value of a white (highest) sample.
+     */
+    public static final int MAX_SAMPLE = 0xFFFF;
+    
+    /**
+     * The width of the raster, in samples.
+     */
+    private final int width;
+    
+    /**
+     * The height of the raster, in samples.
+     */
+    private final int height;
+    
+    /**
+     * The samples, stored row by row and read as unsigned values.
+     */
+    private final short[] samples;
+    
+    /**
+     * Used internally to wrap an existing sample array without copying it.
+     */
+    private Heightmap(int width, int height, short[] samples) {
+        this.width = width;
+        this.height = height;
+        this.samples = samples;
+    }
+    
+    /**
+     * Creates a heightmap from packed ARGB pixels, as returned by
+     * {@code BufferedImage.getRGB()}.  Each pixel is converted to gray by
+     * averaging its red, green and blue channels.
+     * 
+     * @param argb The pixels, row by row.
+     * @param width
+     * @param height
+     * @return The new heightmap.
+     */
+    public static Heightmap fromRGB(int[] argb, int width, int height) {
+        checkSize(argb.length, width, height);
+        short[] samples = new short[width * height];
+        for (int i = 0; i < samples.length; i++) {
+            int pixel = argb[i];
+            int average = (((pixel >> 16) & 0xFF) + ((pixel >> 8) & 0xFF)
+                    + (pixel & 0xFF)) / 3;
+            samples[i] = (short) (average * 257);
+        }
+        return new Heightmap(width, height, samples);
+    }
+    
+    /**
+     * Creates a heightmap from 8-bit gray values between 0 and 255.  Values
+     * outside of that range are clamped.
+     * 
+     * @param gray The gray values, row by row.
+     * @param width
+     * @param height
+     * @return The new heightmap.
+     */
+    public static Heightmap fromGray(int[] gray, int width, int height) {
+        checkSize(gray.length, width, height);
+        short[] samples = new short[width * height];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (clamp(gray[i], 0, 255) * 257);
+        }
+        return new Heightmap(width, height, samples);
+    }
+    
+    /**
+     * Creates a heightmap from unsigned 16-bit samples.  The array is copied.
+     * 
+     * @param samples The samples, row by row.
+     * @param width
+     * @param height
+     * @return The new heightmap.
+     */
+    public static Heightmap fromSamples(short[] samples, int width,
+            int height) {
+        checkSize(samples.length, width, height);
+        return new Heightmap(width, height, samples.clone());
+    }
+    
+    /**
+     * Decodes a heightmap from an image file with ImageIO.
+     *
+     * Single-channel 16-bit images keep their full precision; everything
+     * else is averaged down to gray like fromRGB() does.
+     * 
+     * @param file
+     * @return The decoded heightmap.
+     * @throws IOException If the file can't be read or isn't an image.
+     */
+    public static Heightmap read(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Not a readable image: " + file);
+        }
+        
+        int w = image.getWidth();
+        int h = image.getHeight();
+        Raster raster = image.getRaster();
+        if (raster.getNumBands() == 1
+                && raster.getSampleModel().getSampleSize(0) == 16) {
+            short[] samples = new short[w * h];
+            int[] row = new int[w];
+            for (int y = 0; y < h; y++) {
+                raster.getSamples(0, y, w, 1, 0, row);
+                for (int x = 0; x < w; x++) {
+                    samples[y * w + x] = (short) row[x];
+                }
+            }
+            return new Heightmap(w, h, samples);
+        }
+        
+        return fromRGB(image.getRGB(0, 0, w, h, null, 0, w), w, h);
+    }
+    
+    /**
+     * Generates a heightmap from {@link FastNoise}, exactly as
+     * {@code FastNoise.getNoiseImage()} would, but without creating a
+     * texture.
+     * 
+     * @param width
+     * @param height
+     * @param factor The zoom factor of the noise.
+     * @param octaves
+     * @param doInvert Whether the noise may randomly be inverted.
+     * @return The generated heightmap.
+     */
+    public static Heightmap fromNoise(int width, int height, float factor,
+            int octaves, boolean doInvert) {
+        return fromNoise(width, height, factor, octaves, doInvert,
+                new SplittableRandom());
+    }
+    
+    /**
+     * Generates a heightmap from {@link FastNoise}, deciding whether to
+     * invert it with the given generator, so that a seeded generator always
+     * produces the same heightmap.
+     * 
+     * @param width
+     * @param height
+     * @param factor The zoom factor of the noise.
+     * @param octaves
+     * @param doInvert Whether the noise may randomly be inverted.
+     * @param random
+     * @return The generated heightmap.
+     */
+    public static Heightmap fromNoise(int width, int height, float factor,
+            int octaves, boolean doInvert, SplittableRandom random) {
+        return fromGray(FastNoise.getNoiseRaster(width, height, factor,
+                octaves, doInvert, random), width, height);
+    }
+    
+    /**
+     * Used internally to ensure that a raster's array matches its size.
+     */
+    private static void checkSize(int length, int width, int height) {
+        if (width <= 0 || height <= 0 || length < width * height) {
+            throw new IllegalArgumentException("Raster of " + length
+                    + " values can't hold " + width + "x" + height
+                    + " samples.");
+        }
+    }
+    
+    /**
+     * Used internally to clamp a value between a minimum and maximum.
+     */
+    private static int clamp(int value, int min, int max) {
+        return (value < min) ? min : ((value > max) ? max : value);
+    }
+    
+    /**
+     * Returns a copy of this heightmap resampled to the specified size with
+     * bilinear filtering.  Returns this heightmap if it already has that size.
+     * 
+     * @param newWidth
+     * @param newHeight
+     * @return The resampled heightmap.
+     */
+    public Heightmap resample(int newWidth, int newHeight) {
+        if (newWidth == width && newHeight == height) {
+            return this;
+        }
+        checkSize(newWidth * newHeight, newWidth, newHeight);
+        
+        short[] out = new short[newWidth * newHeight];
+        float stepX = (float) width / newWidth;
+        float stepY = (float) height / newHeight;
+        for (int y = 0; y < newHeight; y++) {
+            // Sample at pixel centers, so that the edges don't stretch.
+            float sy = Math.max((y + 0.5f) * stepY - 0.5f, 0f);
+            int y0 = Math.min((int) sy, height - 1);
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+            for (int x = 0; x < newWidth; x++) {
+                float sx = Math.max((x + 0.5f) * stepX - 0.5f, 0f);
+                int x0 = Math.min((int) sx, width - 1);
+                int x1 = Math.min(x0 + 1, width - 1);
+                float fx = sx - x0;
+                
+                float top = getSample(x0, y0)
+                        + (getSample(x1, y0) - getSample(x0, y0)) * fx;
+                float bottom = getSample(x0, y1)
+                        + (getSample(x1, y1) - getSample(x0, y1)) * fx;
+                out[y * newWidth + x] = (short) clamp(
+                        Math.round(top + (bottom - top) * fy), 0, MAX_SAMPLE);
+            }
+        }
+        return new Heightmap(newWidth, newHeight, out);
+    }
+    
+    /**
+     * Returns the width of this heightmap, in samples.
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the height of this heightmap, in samples.
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns the sample at the specified position, between 0 and
+     * {@code MAX_SAMPLE}.
+     * 
+     * @param x
+     * @param y
+     */
+    public int getSample(int x, int y) {
+        return samples[y * width + x] & 0xFFFF;
+    }
+    
+    /**
+     * Converts every sample to a tile height between the specified minimum
+     * and maximum, which are clamped to the heights a map can store.
+     * 
+     * Black becomes {@code minHeight} and white {@code maxHeight}, with the
+     * values in between rounded down just as TileMap.loadHeightmap() always
+     * has.
+     * 
+     * @param minHeight
+     * @param maxHeight
+     * @return The tile heights, row by row.
+     */
+    public int[] toHeights(int minHeight, int maxHeight) {
+        int min = clamp(minHeight, TileStorage.MIN_HEIGHT,
+                TileStorage.MAX_HEIGHT);
+        int max = clamp(maxHeight, TileStorage.MIN_HEIGHT,
+                TileStorage.MAX_HEIGHT);
+        int[] heights = new int[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            float fraction = (samples[i] & 0xFFFF) / (float) MAX_SAMPLE;
+            heights[i] = (int) (fraction * (max - min)) + min;
+        }
+        return heights;
+    }
+}
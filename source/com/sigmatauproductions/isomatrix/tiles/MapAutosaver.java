@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import com.sigmatauproductions.isomatrix.Globals;
+import com.sigmatauproductions.isomatrix.props.Prop;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically saves a {@link TileMap} in the background, without holding up
+ * the game.
+ *
+ * Every save starts with a snapshot of the map, taken on the game thread,
+ * which only copies the map's tables of chunks and shares everything else;
+ * the map copies any chunk it changes afterwards.  The snapshot is then
+ * written out by a {@link MapFile} on a background thread while play goes
+ * on, first to a temporary file which then replaces the save, so a crash
+ * mid-save never leaves a broken one behind.
+ * <p>
+ * {@code update()} is meant to be called once per frame, on the thread that
+ * changes the map.  It never waits for the writer: a save that comes due
+ * while the last one is still being written is simply put off until the
+ * next frame.  Maps that are paging chunks out can't be snapshotted, and are
+ * not autosaved.
+ *
+ * @author sigtau
+ */
+public final class MapAutosaver {
+    
+    /**
+     * The map being saved.
+     */
+    private final TileMap map;
+    
+    /**
+     * The file saves are written to.
+     */
+    private final File file;
+    
+    /**
+     * The prop templates the map's props are saved as copies of.
+     */
+    private final List<Prop> templates;
+    
+    /**
+     * The thread saves are written on.
+     */
+    private final ExecutorService writer;
+    
+    /**
+     * The number of milliseconds between saves.
+     */
+    private int interval;
+    
+    /**
+     * The number of milliseconds since the last save was started.
+     */
+    private int elapsed = 0;
+    
+    /**
+     * The save being written, or null if there isn't one.
+     */
+    private Future<Save> pending = null;
+    
+    /**
+     * Whether a warning has been logged about the map paging, so it is only
+     * logged once.
+     */
+    private boolean warnedPaging = false;
+    
+    private long lastSnapshotNanos = 0;
+    private long lastBytesWritten = 0;
+    private long lastWriteMillis = 0;
+    private int saveCount = 0;
+    
+    /**
+     * Creates an autosaver for the specified map.  The first save happens
+     * once the interval has passed.
+     *
+     * @param map
+     * @param file The file to save to, which is replaced by every save.
+     * @param templates The prop templates the map's props are copies of, as
+     * given to {@link MapFile#write(TileMap, File, List)}.
+     * @param interval The number of milliseconds between saves.
+     */
+    public MapAutosaver(TileMap map, File file, List<Prop> templates,
+            int interval) {
+        this.map = map;
+        this.file = file;
+        this.templates = Collections.unmodifiableList(
+                new ArrayList<>(templates));
+        this.interval = interval;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Autosave");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+    
+    /**
+     * Counts down to the next save, starting it if it is due, and reports on
+     * the last one if it has finished.  Never waits for the writer.
+     *
+     * @param delta The number of milliseconds since the last call.
+     */
+    public void update(int delta) {
+        poll();
+        elapsed += delta;
+        if (elapsed >= interval) {
+            saveNow();
+        }
+    }
+    
+    /**
+     * Starts a save right away, unless one is still being written.
+     *
+     * @return Returns false if no save was started.
+     */
+    public boolean saveNow() {
+        poll();
+        if (pending != null) {
+            return false;
+        }
+        if (map.isPaging()) {
+            if (!warnedPaging) {
+                Globals.logWarning("Autosave is disabled while the map is "
+                        + "paging chunks out.");
+                warnedPaging = true;
+            }
+            elapsed = 0;
+            return false;
+        }
+        long start = System.nanoTime();
+        MapSnapshot snapshot = map.snapshot();
+        lastSnapshotNanos = System.nanoTime() - start;
+        pending = writer.submit(new Save(snapshot));
+        elapsed = 0;
+        return true;
+    }
+    
+    /**
+     * Used internally to collect the last save once it has been written.
+     */
+    private void poll() {
+        if (pending == null || !pending.isDone()) {
+            return;
+        }
+        Future<Save> done = pending;
+        pending = null;
+        try {
+            Save save = done.get();
+            lastBytesWritten = save.bytesWritten[0];
+            lastWriteMillis = save.writeMillis;
+            saveCount++;
+            if (save.skipped > 0) {
+                Globals.logWarning(save.skipped + " props are not copies of "
+                        + "any template and were left out of " + file);
+            }
+            Globals.logMessage("Autosaved " + lastBytesWritten + " bytes to "
+                    + file + " in " + lastWriteMillis + "ms.");
+        } catch (ExecutionException e) {
+            Globals.logWarning("Autosave to " + file + " failed: "
+                    + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Returns true if a save is being written.
+     */
+    public boolean isSaving() {
+        return pending != null && !pending.isDone();
+    }
+    
+    /**
+     * Returns how long the game thread spent taking the last snapshot, in
+     * nanoseconds.
+     */
+    public long getLastSnapshotNanos() {
+        return lastSnapshotNanos;
+    }
+    
+    /**
+     * Returns the size of the last save written, in bytes.
+     */
+    public long getLastBytesWritten() {
+        return lastBytesWritten;
+    }
+    
+    /**
+     * Returns how long the writer spent on the last save, in milliseconds.
+     */
+    public long getLastWriteMillis() {
+        return lastWriteMillis;
+    }
+    
+    /**
+     * Returns the number of saves written so far.
+     */
+    public int getSaveCount() {
+        return saveCount;
+    }
+    
+    /**
+     * Returns the number of milliseconds between saves.
+     */
+    public int getInterval() {
+        return interval;
+    }
+    
+    /**
+     * Sets the number of milliseconds between saves.
+     *
+     * @param interval
+     */
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+    
+    /**
+     * Stops autosaving, waiting for the save being written to finish, if
+     * there is one.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        poll();
+    }
+    
+    /**
+     * One save, run on the writer thread.
+     */
+    private final class Save implements Callable<Save> {
+        
+        private final MapSnapshot snapshot;
+        private final long[] bytesWritten = new long[1];
+        private int skipped = 0;
+        private long writeMillis = 0;
+        
+        Save(MapSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+        
+        @Override
+        public Save call() throws IOException {
+            long start = System.currentTimeMillis();
+            File temporary = new File(file.getPath() + ".tmp");
+            skipped = MapFile.write(snapshot, temporary, templates,
+                    bytesWritten);
+            try {
+                Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            writeMillis = System.currentTimeMillis() - start;
+            return this;
+        }
+    }
+}
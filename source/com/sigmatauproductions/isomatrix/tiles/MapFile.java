@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import com.sigmatauproductions.isomatrix.Globals;
+import com.sigmatauproductions.isomatrix.props.Prop;
+import com.sigmatauproductions.isomatrix.props.PropTemplate;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.newdawn.slick.SlickException;
+
+/**
+ * Saves and loads {@link TileMap}s in a versioned binary format.
+ *
+ * The format follows the chunks the map is stored in, so that neither saving
+ * nor loading ever looks at individual tiles:
+ * <ul>
+ * <li>A header: the magic number, the format version, the map's width,
+ * height and chunk size, the number of chunks, props and prop templates, the
+ * offset of the prop table, and the name of the tileset.</li>
+ * <li>A chunk table, with one entry of {@code CHUNK_ENTRY_SIZE} bytes per
+ * chunk: a mask of the layers stored for it, the fill of every layer, and
+ * the offset of its data.</li>
+ * <li>The data of every chunk that isn't uniform, one layer after another:
+ * heights, slopes and images as one byte per tile and tints as one int per
+ * tile, padding included, for only the layers in its mask.</li>
+ * <li>The prop table: the anchor, template id and animation phase of every
+ * prop, the props kept as objects first and then the lightweight ones, each
+ * in draw order.  Version 1 files have no phases.</li>
+ * </ul>
+ * Everything is big-endian.  Maps are written through a {@link FileChannel}
+ * and read through a {@link MappedByteBuffer}, so loading a map is a matter
+ * of copying whole chunks out of the page cache.
+ * <p>
+ * Props are saved as ids into a list of templates given by the caller: each
+ * prop is saved as the first template it is a copy of (see
+ * {@link Prop#isCopyOf(Prop)}), lightweight props as the first one sharing
+ * their {@link PropTemplate}, and loaded as a fresh copy of it, lightweight
+ * if the template allows (see {@link Prop#isLightweight()}).  The same
+ * templates, in the same order, must be given when loading.
+ *
+ * @author sigtau
+ */
+public final class MapFile {
+    
+    /**
+     * The first four bytes of every map file, "ISOM".
+     */
+    public static final int MAGIC = 0x49534F4D;
+    
+    /**
+     * The version of the format written by this class.
+     */
+    public static final int VERSION = 2;
+    
+    /**
+     * The size of the fixed part of the header, before the tileset name.
+     */
+    private static final int HEADER_SIZE = 44;
+    
+    /**
+     * The size of a chunk's entry in the chunk table.
+     */
+    private static final int CHUNK_ENTRY_SIZE = 16;
+    
+    /**
+     * The size of a prop's entry in the prop table.
+     */
+    private static final int PROP_ENTRY_SIZE = 12;
+
+    
+    /**
+     * The largest width and height of a map, as allowed by {@link TileMap}.
+     */
+    private static final int MAX_SIZE = 4096;
+    
+    /**
+     * The size of the buffer chunk data is gathered in before being written.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    
+    private MapFile() {}
+    
+    /**
+     * Saves the specified map, replacing the file if it exists.
+     *
+     * @param map
+     * @param file
+     * @param templates The prop templates the map's props are copies of.
+     * Props that aren't a copy of any of them are left out, with a warning.
+     * @throws IOException
+     */
+    public static void write(TileMap map, File file, List<Prop> templates)
+            throws IOException {
+        int skipped = write(map.getStorage(), map.getPropIndex(),
+                map.getPropField(), map.getPropRegistry().toArray(),
+                map.getTileset().getDirectoryName(), file, templates, null);
+        if (skipped > 0) {
+            Globals.logWarning(skipped + " props are not copies of any "
+                    + "template and were left out of " + file);
+        }
+    }
+    
+    /**
+     * Saves a snapshot of a map, replacing the file if it exists.  Safe to
+     * call from another thread than the one changing the map, so nothing is
+     * logged; props left out are only counted.
+     *
+     * @param snapshot
+     * @param file
+     * @param templates
+     * @param bytesWritten If not null, its first entry is set to the size of
+     * the file.
+     * @return The number of props left out.
+     * @throws IOException
+     */
+    static int write(MapSnapshot snapshot, File file, List<Prop> templates,
+            long[] bytesWritten) throws IOException {
+        return write(snapshot.getStorage(), snapshot.getPropIndex(),
+                snapshot.getPropField(), snapshot.getTemplates(),
+                snapshot.getTilesetName(), file, templates, bytesWritten);
+    }
+    
+    /**
+     * Used internally to save the tiles and props of a map.
+     */
+    private static int write(TileStorage storage, PropIndex props,
+            PropField field, PropTemplate[] registered, String tileset,
+            File file, List<Prop> templates, long[] bytesWritten)
+            throws IOException {
+        int chunkTiles = TileStorage.getChunkTiles();
+        int chunkCount = storage.getChunkCount();
+        
+        // Work out which props can be saved, and their template ids.
+        field.flush();
+        int capacity = props.size() + field.length();
+        int[] anchors = new int[capacity];
+        int[] ids = new int[capacity];
+        int[] phases = new int[capacity];
+        int saved = 0;
+        int skipped = 0;
+        for (int anchor = props.nextAnchor(0); anchor >= 0;
+                anchor = props.nextAnchor(anchor + 1)) {
+            for (Prop prop : props.getProps(anchor)) {
+                int id = templateOf(prop, templates);
+                if (id < 0) {
+                    skipped++;
+                } else {
+                    // The bucket's anchor, not the prop's: the prop may
+                    // have been moved since the snapshot was taken.
+                    anchors[saved] = anchor;
+                    ids[saved] = id;
+                    saved++;
+                }
+            }
+        }
+        int[] idsByTemplate = templateIds(registered, templates);
+        for (int i = 0; i < field.length(); i++) {
+            int template = field.getTemplate(i);
+            if (template == PropField.REMOVED) {
+                continue;
+            }
+            int id = idsByTemplate[template];
+            if (id < 0) {
+                skipped++;
+            } else {
+                anchors[saved] = field.getAnchor(i);
+                ids[saved] = id;
+                phases[saved] = field.getPhase(i);
+                saved++;
+            }
+        }
+        
+        // Lay out the file: the header, the chunk table, the chunk data and
+        // finally the prop table.
+        byte[] tilesetName = tileset.getBytes(StandardCharsets.UTF_8);
+        int headerSize = HEADER_SIZE + 2 + tilesetName.length;
+        long dataOffset = headerSize + (long) chunkCount * CHUNK_ENTRY_SIZE;
+        ByteBuffer table = ByteBuffer.allocate(headerSize
+                + chunkCount * CHUNK_ENTRY_SIZE);
+        table.position(headerSize);
+        long offset = dataOffset;
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            int mask = layerMask(storage, chunk);
+            table.put((byte) mask);
+            table.put(storage.getChunkFill(chunk, ChunkPager.HEIGHTS));
+            table.put(storage.getChunkFill(chunk, ChunkPager.SLOPES));
+            table.put(storage.getChunkFill(chunk, ChunkPager.IMAGES));
+            table.putInt(storage.getChunkTintFill(chunk));
+            table.putLong((mask == 0) ? 0 : offset);
+            offset += dataSize(mask, chunkTiles);
+        }
+        long propTableOffset = offset;
+        
+        table.position(0);
+        table.putInt(MAGIC);
+        table.putInt(VERSION);
+        table.putInt(storage.getWidth());
+        table.putInt(storage.getHeight());
+        table.putInt(TileStorage.CHUNK_SIZE);
+        table.putInt(chunkCount);
+        table.putInt(saved);
+        table.putInt(templates.size());
+        table.putLong(propTableOffset);
+        table.putInt(0); // Reserved for flags.
+        table.putShort((short) tilesetName.length);
+        table.put(tilesetName);
+        table.position(0);
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, table);
+            
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                int mask = layerMask(storage, chunk);
+                if (mask == 0) {
+                    continue;
+                }
+                if (buffer.remaining() < dataSize(mask, chunkTiles)) {
+                    flush(channel, buffer);
+                }
+                putBytes(buffer, storage.getChunkBytes(chunk,
+                        ChunkPager.HEIGHTS));
+                putBytes(buffer, storage.getChunkBytes(chunk,
+                        ChunkPager.SLOPES));
+                putBytes(buffer, storage.getChunkBytes(chunk,
+                        ChunkPager.IMAGES));
+                int[] tints = storage.getChunkTints(chunk);
+                if (tints != null) {
+                    buffer.asIntBuffer().put(tints);
+                    buffer.position(buffer.position()
+                            + tints.length * Integer.BYTES);
+                }
+            }
+            
+            for (int i = 0; i < saved; i++) {
+                if (buffer.remaining() < PROP_ENTRY_SIZE) {
+                    flush(channel, buffer);
+                }
+                buffer.putInt(anchors[i]);
+                buffer.putInt(ids[i]);
+                buffer.putInt(phases[i]);
+            }
+            flush(channel, buffer);
+        }
+        if (bytesWritten != null) {
+            bytesWritten[0] = propTableOffset
+                    + (long) saved * PROP_ENTRY_SIZE;
+        }
+        return skipped;
+    }
+    
+    /**
+     * Loads a map, along with the tileset named in the file.
+     *
+     * @param file
+     * @param templates The prop templates the map's props were saved as
+     * copies of, in the same order.
+     * @return The loaded map.
+     * @throws IOException If the file is not a map file of a supported
+     * version, or could not be read.
+     * @throws SlickException If the tileset could not be loaded.
+     */
+    public static TileMap read(File file, List<Prop> templates)
+            throws IOException, SlickException {
+        return read(file, null, templates);
+    }
+    
+    /**
+     * Loads a map using the specified tileset rather than the one named in
+     * the file.
+     *
+     * @param file
+     * @param tileset The tileset to use, or null to load the one named in the
+     * file.
+     * @param templates The prop templates the map's props were saved as
+     * copies of, in the same order.
+     * @return The loaded map.
+     * @throws IOException If the file is not a map file of a supported
+     * version, or could not be read.
+     * @throws SlickException If the tileset could not be loaded.
+     */
+    public static TileMap read(File file, Tileset tileset,
+            List<Prop> templates) throws IOException, SlickException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to map.");
+            }
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer, file, tileset, templates);
+        }
+    }
+    
+    /**
+     * Used internally to load a map from a mapped file.
+     */
+    private static TileMap read(ByteBuffer buffer, File file, Tileset tileset,
+            List<Prop> templates) throws IOException, SlickException {
+        if (buffer.remaining() < HEADER_SIZE + 2
+                || buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a map file.");
+        }
+        int version = buffer.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException(file + " is a version " + version
+                    + " map file; only versions 1 to " + VERSION
+                    + " are supported.");
+        }
+        int width;
+        int height;
+        int chunkSize;
+        int chunkCount;
+        int propCount;
+        int templateCount;
+        long propTableOffset;
+        byte[] tilesetName;
+        try {
+            width = buffer.getInt();
+            height = buffer.getInt();
+            chunkSize = buffer.getInt();
+            chunkCount = buffer.getInt();
+            propCount = buffer.getInt();
+            templateCount = buffer.getInt();
+            propTableOffset = buffer.getLong();
+            buffer.getInt(); // Flags, none of which are defined yet.
+            tilesetName = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(tilesetName);
+        } catch (RuntimeException e) {
+            // A file cut short inside the header.
+            throw new IOException(file + " is damaged.", e);
+        }
+        
+        if (chunkSize != TileStorage.CHUNK_SIZE) {
+            throw new IOException(file + " uses chunks of " + chunkSize
+                    + " tiles, but only " + TileStorage.CHUNK_SIZE
+                    + " are supported.");
+        }
+        if (width <= 0 || height <= 0 || width > MAX_SIZE
+                || height > MAX_SIZE) {
+            throw new IOException(file + " is damaged: a " + width + "x"
+                    + height + " map is not possible.");
+        }
+        long expectedChunks = (long) ((width + chunkSize - 1) / chunkSize)
+                * ((height + chunkSize - 1) / chunkSize);
+        if (chunkCount != expectedChunks || (long) chunkCount
+                * CHUNK_ENTRY_SIZE > buffer.remaining()) {
+            throw new IOException(file + " has " + chunkCount
+                    + " chunks, but a " + width + "x" + height
+                    + " map has " + expectedChunks + ".");
+        }
+        if (templateCount != templates.size()) {
+            Globals.logWarning(file + " was saved with " + templateCount
+                    + " prop templates, but " + templates.size()
+                    + " were given.");
+        }
+        if (tileset == null) {
+            tileset = new Tileset(new String(tilesetName,
+                    StandardCharsets.UTF_8));
+        }
+        
+        TileMap map = new TileMap(tileset, width, height);
+        TileStorage storage = map.getStorage();
+        
+        int chunkTiles = TileStorage.getChunkTiles();
+        int tableStart = buffer.position();
+        try {
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                buffer.position(tableStart + chunk * CHUNK_ENTRY_SIZE);
+                int mask = buffer.get();
+                byte heightFill = buffer.get();
+                byte slopeFill = buffer.get();
+                byte imageFill = buffer.get();
+                int tintFill = buffer.getInt();
+                long offset = buffer.getLong();
+                if (mask == 0) {
+                    storage.setChunk(chunk, null, heightFill, null,
+                            slopeFill, null, imageFill, null, tintFill);
+                    continue;
+                }
+                
+                buffer.position((int) offset);
+                byte[] heights = getBytes(buffer, mask, ChunkPager.HEIGHTS,
+                        chunkTiles);
+                byte[] slopes = getBytes(buffer, mask, ChunkPager.SLOPES,
+                        chunkTiles);
+                byte[] images = getBytes(buffer, mask, ChunkPager.IMAGES,
+                        chunkTiles);
+                int[] tints = null;
+                if ((mask & ChunkPager.TINTS) != 0) {
+                    tints = new int[chunkTiles];
+                    buffer.asIntBuffer().get(tints);
+                }
+                storage.setChunk(chunk, heights, heightFill, slopes,
+                        slopeFill, images, imageFill, tints, tintFill);
+            }
+            storage.recomputeHeightBounds();
+            
+            buffer.position((int) propTableOffset);
+            Prop[] props = new Prop[propCount];
+            int missing = 0;
+            int lightweight = 0;
+            for (int i = 0; i < propCount; i++) {
+                int anchor = buffer.getInt();
+                int id = buffer.getInt();
+                int phase = (version == 1) ? 0 : buffer.getInt();
+                if (id < 0 || id >= templates.size()) {
+                    missing++;
+                    continue;
+                }
+                if (templates.get(id).isLightweight()) {
+                    map.addPropInstance(templates.get(id).getTemplate(),
+                            anchor, phase);
+                    lightweight++;
+                    continue;
+                }
+                try {
+                    props[i] = templates.get(id).clone();
+                } catch (CloneNotSupportedException e) {
+                    throw new IllegalStateException(e);
+                }
+                props[i].setAnchor(anchor);
+            }
+            if (missing > 0) {
+                Globals.logWarning(missing + " props in " + file
+                        + " have no matching template and were left out.");
+            }
+            map.addProps(compact(props, propCount - missing - lightweight));
+        } catch (RuntimeException e) {
+            // Truncated or corrupt files surface as buffer exceptions.
+            throw new IOException(file + " is damaged.", e);
+        }
+        return map;
+    }
+    
+    /**
+     * Used internally to return the id of the first template the specified
+     * prop is a copy of, or -1.
+     */
+    private static int templateOf(Prop prop, List<Prop> templates) {
+        for (int i = 0; i < templates.size(); i++) {
+            if (prop.isCopyOf(templates.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Used internally to return, for every registered template, the id of
+     * the first template prop sharing it, or -1.
+     */
+    private static int[] templateIds(PropTemplate[] registered,
+            List<Prop> templates) {
+        int[] ids = new int[registered.length];
+        for (int i = 0; i < registered.length; i++) {
+            ids[i] = -1;
+            for (int j = 0; j < templates.size(); j++) {
+                if (templates.get(j).getTemplate() == registered[i]) {
+                    ids[i] = j;
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+    
+    /**
+     * Used internally to return the mask of the layers a chunk has
+     * allocated.
+     */
+    private static int layerMask(TileStorage storage, int chunk) {
+        int mask = 0;
+        if (storage.getChunkBytes(chunk, ChunkPager.HEIGHTS) != null) {
+            mask |= ChunkPager.HEIGHTS;
+        }
+        if (storage.getChunkBytes(chunk, ChunkPager.SLOPES) != null) {
+            mask |= ChunkPager.SLOPES;
+        }
+        if (storage.getChunkBytes(chunk, ChunkPager.IMAGES) != null) {
+            mask |= ChunkPager.IMAGES;
+        }
+        if (storage.getChunkTints(chunk) != null) {
+            mask |= ChunkPager.TINTS;
+        }
+        return mask;
+    }
+    
+    /**
+     * Used internally to return the size of the data of a chunk with the
+     * specified layers.
+     */
+    private static int dataSize(int mask, int chunkTiles) {
+        return Integer.bitCount(mask & (ChunkPager.HEIGHTS
+                | ChunkPager.SLOPES | ChunkPager.IMAGES)) * chunkTiles
+                + (((mask & ChunkPager.TINTS) != 0)
+                ? chunkTiles * Integer.BYTES : 0);
+    }
+    
+    private static void putBytes(ByteBuffer buffer, byte[] values) {
+        if (values != null) {
+            buffer.put(values);
+        }
+    }
+    
+    private static byte[] getBytes(ByteBuffer buffer, int mask, int layer,
+            int chunkTiles) {
+        if ((mask & layer) == 0) {
+            return null;
+        }
+        byte[] values = new byte[chunkTiles];
+        buffer.get(values);
+        return values;
+    }
+    
+    /**
+     * Used internally to drop the nulls left by props that couldn't be
+     * loaded.
+     */
+    private static Prop[] compact(Prop[] props, int count) {
+        if (count == props.length) {
+            return props;
+        }
+        Prop[] result = new Prop[count];
+        int next = 0;
+        for (Prop prop : props) {
+            if (prop != null) {
+                result[next++] = prop;
+            }
+        }
+        return result;
+    }
+    
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
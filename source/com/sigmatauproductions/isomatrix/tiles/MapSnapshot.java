@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import com.sigmatauproductions.isomatrix.props.PropTemplate;
+
+/**
+ * A copy of the tiles and props of a {@link TileMap} as they were at one
+ * moment, which later changes to the map don't affect.
+ *
+ * Snapshots share the map's chunk arrays and prop buckets rather than copying
+ * them; the map copies whatever it changes afterwards instead.  Only the
+ * list of prop templates is copied, since it is short.  A snapshot is
+ * meant to be handed to one other thread, such as a background writer, which
+ * must only ever read from it.
+ *
+ * @author sigtau
+ */
+final class MapSnapshot {
+    
+    private final TileStorage storage;
+    private final PropIndex props;
+    private final PropField field;
+    private final PropTemplate[] templates;
+    private final String tilesetName;
+    
+    MapSnapshot(TileStorage storage, PropIndex props, PropField field,
+            PropTemplate[] templates, String tilesetName) {
+        this.storage = storage;
+        this.props = props;
+        this.field = field;
+        this.templates = templates;
+        this.tilesetName = tilesetName;
+    }
+    
+    TileStorage getStorage() {
+        return storage;
+    }
+    
+    PropIndex getPropIndex() {
+        return props;
+    }
+    
+    PropField getPropField() {
+        return field;
+    }
+    
+    /**
+     * Returns the templates of the map's registry, indexed by id.
+     */
+    PropTemplate[] getTemplates() {
+        return templates;
+    }
+    
+    /**
+     * Returns the directory name of the map's {@link Tileset}.
+     */
+    String getTilesetName() {
+        return tilesetName;
+    }
+}
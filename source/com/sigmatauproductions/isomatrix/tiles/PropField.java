@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the lightweight props of a {@link TileMap}: superficial props that
+ * are nothing more than a template id, an anchor and an animation phase,
+ * such as trees.
+ *
+ * Rather than one object per prop, the three values are kept in parallel
+ * int arrays sorted by anchor, so a prop costs twelve bytes and walking them
+ * in draw order is a pass over three arrays.  Props sharing an anchor stay in
+ * the order they were added.  New props are gathered unsorted and merged in
+ * all at once the next time the field is read, so adding a whole forest
+ * costs a single sort.  Removed props are marked and left in place until
+ * enough of them pile up to be worth dropping in a merge.
+ * <p>
+ * {@link #flush()} must be called before reading the props by position.
+ * Like {@link PropIndex}, a snapshot shares the field's arrays.  A merge
+ * always writes new arrays, and the only change made in place is marking a
+ * prop removed, so the template ids are kept in blocks and a removal copies
+ * just its own block, once per snapshot.
+ *
+ * @author sigtau
+ */
+final class PropField {
+    
+    /**
+     * The template id of a prop that has been removed.
+     */
+    static final int REMOVED = -1;
+    
+    /**
+     * The number of bits of a position that pick it out within its block of
+     * template ids.
+     */
+    private static final int BLOCK_SHIFT = 10;
+    
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    
+    /**
+     * The sorted props, removed ones included.  The template ids are kept
+     * block by block.
+     */
+    private int[] anchors = new int[0];
+    private int[][] templates = new int[0][];
+    private int[] phases = new int[0];
+    private int length = 0;
+    
+    /**
+     * The number of sorted props that have been removed.
+     */
+    private int removed = 0;
+    
+    /**
+     * The props added since the last merge, in the order they were added.
+     */
+    private int[] pendingAnchors = new int[16];
+    private int[] pendingTemplates = new int[16];
+    private int[] pendingPhases = new int[16];
+    private int pending = 0;
+    
+    /**
+     * The number of snapshots taken of the field so far.
+     */
+    private int epoch = 0;
+    
+    /**
+     * The epoch each block of template ids was copied in, or null if none
+     * of them is shared with a snapshot.  A block from an earlier epoch may
+     * be held by a snapshot, and is copied before being written to.
+     */
+    private int[] copiedIn = null;
+    
+    PropField() {}
+    
+    /**
+     * Used internally to create a snapshot sharing the specified field's
+     * sorted arrays.
+     */
+    private PropField(PropField source) {
+        this.anchors = source.anchors;
+        this.templates = source.templates.clone();
+        this.phases = source.phases;
+        this.length = source.length;
+        this.removed = source.removed;
+    }
+    
+    /**
+     * Returns a snapshot of the field, which later changes to it don't
+     * affect.  The snapshot may be read from any one other thread, but must
+     * never be changed.
+     */
+    PropField snapshot() {
+        flush();
+        if (copiedIn == null) {
+            copiedIn = new int[templates.length];
+        }
+        epoch++;
+        return new PropField(this);
+    }
+    
+    /**
+     * Adds a prop.  It can't be read by position until the next flush.
+     * 
+     * @param anchor
+     * @param template
+     * @param phase
+     */
+    void add(int anchor, int template, int phase) {
+        if (pending == pendingAnchors.length) {
+            int capacity = pending * 2;
+            pendingAnchors = Arrays.copyOf(pendingAnchors, capacity);
+            pendingTemplates = Arrays.copyOf(pendingTemplates, capacity);
+            pendingPhases = Arrays.copyOf(pendingPhases, capacity);
+        }
+        pendingAnchors[pending] = anchor;
+        pendingTemplates[pending] = template;
+        pendingPhases[pending] = phase;
+        pending++;
+    }
+    
+    /**
+     * Removes every prop anchored to the specified tile.
+     * 
+     * @param anchor
+     * @return The number of props removed.
+     */
+    int removeAll(int anchor) {
+        flush();
+        int count = 0;
+        for (int i = firstAt(anchor); i < length && anchors[i] == anchor;
+                i++) {
+            if (getTemplate(i) != REMOVED) {
+                writable(i >>> BLOCK_SHIFT)[i & BLOCK_MASK] = REMOVED;
+                count++;
+            }
+        }
+        removed += count;
+        return count;
+    }
+    
+    /**
+     * Merges the props added since the last flush into the sorted arrays,
+     * dropping removed props if enough have piled up.
+     */
+    void flush() {
+        if (pending == 0 && removed * 4 <= length) {
+            return;
+        }
+        
+        // Sort the new props by anchor, keeping the order they were added in
+        // among props sharing an anchor.
+        long[] order = new long[pending];
+        for (int i = 0; i < pending; i++) {
+            order[i] = ((long) pendingAnchors[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        
+        // The merge always writes into new arrays, so a snapshot sharing the
+        // old ones is never disturbed.
+        int total = (length - removed) + pending;
+        int[] newAnchors = new int[total];
+        int[][] newTemplates = new int[(total + BLOCK_MASK) >> BLOCK_SHIFT][];
+        for (int b = 0; b < newTemplates.length; b++) {
+            newTemplates[b] = new int[BLOCK_SIZE];
+        }
+        int[] newPhases = new int[total];
+        int next = 0;
+        int old = 0;
+        for (int k = 0; k <= pending; k++) {
+            int limit = (k < pending) ? (int) (order[k] >>> 32)
+                    : Integer.MAX_VALUE;
+            // Older props go first among those sharing an anchor.
+            while (old < length && anchors[old] <= limit) {
+                int template = getTemplate(old);
+                if (template != REMOVED) {
+                    newAnchors[next] = anchors[old];
+                    newTemplates[next >>> BLOCK_SHIFT][next & BLOCK_MASK]
+                            = template;
+                    newPhases[next] = phases[old];
+                    next++;
+                }
+                old++;
+            }
+            if (k < pending) {
+                int i = (int) order[k];
+                newAnchors[next] = pendingAnchors[i];
+                newTemplates[next >>> BLOCK_SHIFT][next & BLOCK_MASK]
+                        = pendingTemplates[i];
+                newPhases[next] = pendingPhases[i];
+                next++;
+            }
+        }
+        
+        anchors = newAnchors;
+        templates = newTemplates;
+        phases = newPhases;
+        length = total;
+        removed = 0;
+        pending = 0;
+        copiedIn = null;
+        if (pendingAnchors.length > 16) {
+            pendingAnchors = new int[16];
+            pendingTemplates = new int[16];
+            pendingPhases = new int[16];
+        }
+    }
+    
+    /**
+     * Returns the position of the first sorted prop anchored at or after
+     * the specified tile, or {@code length()} if there are none.
+     * 
+     * @param anchor
+     */
+    int firstAt(int anchor) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (anchors[middle] < anchor) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Returns the number of sorted props, removed ones included.
+     */
+    int length() {
+        return length;
+    }
+    
+    int getAnchor(int position) {
+        return anchors[position];
+    }
+    
+    /**
+     * Returns the template id of the prop at the specified position, or
+     * {@code REMOVED}.
+     */
+    int getTemplate(int position) {
+        return templates[position >>> BLOCK_SHIFT][position & BLOCK_MASK];
+    }
+    
+    int getPhase(int position) {
+        return phases[position];
+    }
+    
+    /**
+     * Returns the number of props in the field, pending ones included.
+     */
+    int size() {
+        return (length - removed) + pending;
+    }
+    
+    /**
+     * Used internally to get the specified block of template ids ready to be
+     * written to, copying it if a snapshot may hold it.
+     */
+    private int[] writable(int block) {
+        int[] values = templates[block];
+        if (copiedIn != null && copiedIn[block] != epoch) {
+            values = values.clone();
+            templates[block] = values;
+            copiedIn[block] = epoch;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import com.sigmatauproductions.isomatrix.props.Prop;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the props of a {@link TileMap} in the order they are drawn in.
+ *
+ * Props are drawn in ascending order of their anchor tiles, so rather than
+ * keeping one list and sorting it after every insertion, each anchor tile gets
+ * its own bucket of props and a bit set records which anchors have any.
+ * Adding a prop is constant-time, removing one only searches its own bucket,
+ * and walking the index in draw order skips empty stretches of the map a word
+ * at a time.  Props sharing an anchor are drawn in the order they were added,
+ * just as the old sorted list did.
+ * <p>
+ * The buckets are kept in blocks of consecutive anchors, as many as there are
+ * tiles in a chunk of {@link TileStorage}, and a block only exists while any
+ * of its anchors has a prop.  Taking a snapshot only copies the array of
+ * blocks; like the layers of a {@code TileStorage}, the index then copies a
+ * block the first time it changes it, so the cost of a snapshot is paid a
+ * block at a time rather than all at once.
+ * <p>
+ * The index never reads a prop's anchor itself: a prop is added under an
+ * anchor and must be removed under the same one, so changing the anchor of a
+ * prop in the index can't leave it stranded in the wrong bucket.
+ *
+ * @author sigtau
+ */
+final class PropIndex {
+    
+    /**
+     * The number of bits of an anchor that pick it out within its block.
+     */
+    private static final int BLOCK_SHIFT = 2 * TileStorage.CHUNK_SHIFT;
+    
+    /**
+     * The number of anchors in a block.
+     */
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    
+    /**
+     * The blocks of the index, or null for those with no props at all.
+     */
+    private final Block[] blocks;
+    
+    /**
+     * The number of tiles in the map.
+     */
+    private final int size;
+    
+    /**
+     * The total number of props in the index.
+     */
+    private int count = 0;
+    
+    /**
+     * The number of snapshots taken of the index so far.
+     */
+    private int epoch = 0;
+    
+    /**
+     * The epoch each block was created or copied in, or null if no snapshot
+     * has ever been taken.  A block from an earlier epoch may be held by a
+     * snapshot, and is copied before being changed.
+     */
+    private int[] copiedIn = null;
+    
+    /**
+     * Creates an empty index for a map of the specified number of tiles.
+     *
+     * @param size
+     */
+    PropIndex(int size) {
+        this.size = size;
+        this.blocks = new Block[(size + BLOCK_MASK) >> BLOCK_SHIFT];
+    }
+    
+    /**
+     * Used internally to create a snapshot holding the specified blocks.
+     */
+    private PropIndex(int size, Block[] blocks, int count) {
+        this.size = size;
+        this.blocks = blocks;
+        this.count = count;
+    }
+    
+    /**
+     * Returns a snapshot of the index, which later changes to it don't
+     * affect.  The snapshot may be read from any one other thread, but must
+     * never be changed.
+     */
+    PropIndex snapshot() {
+        if (copiedIn == null) {
+            copiedIn = new int[blocks.length];
+        }
+        epoch++;
+        return new PropIndex(size, blocks.clone(), count);
+    }
+    
+    /**
+     * Used internally to get the specified block ready to be changed,
+     * creating it if it doesn't exist and copying it if a snapshot may hold
+     * it.
+     */
+    private Block writable(int block) {
+        Block values = blocks[block];
+        if (values == null) {
+            values = new Block();
+            blocks[block] = values;
+            if (copiedIn != null) { copiedIn[block] = epoch; }
+        } else if (copiedIn != null && copiedIn[block] != epoch) {
+            values = values.copy();
+            blocks[block] = values;
+            copiedIn[block] = epoch;
+        }
+        return values;
+    }
+    
+    /**
+     * Adds the specified prop to the bucket of the specified anchor.
+     *
+     * @param prop
+     * @param anchor
+     */
+    void add(Prop prop, int anchor) {
+        Block block = writable(anchor >>> BLOCK_SHIFT);
+        List<Prop> bucket = block.buckets.get(anchor);
+        if (bucket == null) {
+            // Almost every anchor only ever holds one prop.
+            bucket = new ArrayList<>(1);
+            block.buckets.put(anchor, bucket);
+        }
+        bucket.add(prop);
+        block.occupied[(anchor & BLOCK_MASK) >>> 6] |= 1L << anchor;
+        count++;
+    }
+    
+    /**
+     * Removes the specified prop from the bucket of the anchor it was added
+     * under.
+     *
+     * @param prop
+     * @param anchor
+     * @return Returns false if the prop was not in that bucket.
+     */
+    boolean remove(Prop prop, int anchor) {
+        List<Prop> bucket = getProps(anchor);
+        if (bucket == null || !bucket.contains(prop)) {
+            return false;
+        }
+        int index = anchor >>> BLOCK_SHIFT;
+        Block block = writable(index);
+        bucket = block.buckets.get(anchor);
+        bucket.remove(prop);
+        if (bucket.isEmpty()) {
+            block.buckets.remove(anchor);
+            block.occupied[(anchor & BLOCK_MASK) >>> 6] &= ~(1L << anchor);
+            if (block.buckets.isEmpty()) {
+                blocks[index] = null;
+            }
+        }
+        count--;
+        return true;
+    }
+    
+    /**
+     * Returns the lowest anchor at or after the specified one that has any
+     * props, or -1 if there are none.
+     *
+     * @param from
+     */
+    int nextAnchor(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        for (int index = from >>> BLOCK_SHIFT; index < blocks.length;
+                index++, from = index << BLOCK_SHIFT) {
+            Block block = blocks[index];
+            if (block == null) {
+                continue;
+            }
+            int word = (from & BLOCK_MASK) >>> 6;
+            long bits = block.occupied[word] & (-1L << from);
+            while (true) {
+                if (bits != 0) {
+                    return (index << BLOCK_SHIFT) | (word << 6)
+                            | Long.numberOfTrailingZeros(bits);
+                }
+                if (++word == block.occupied.length) {
+                    break;
+                }
+                bits = block.occupied[word];
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the props anchored to the specified tile, in draw order, or null
+     * if there are none.  The returned list must not be modified.
+     *
+     * @param anchor
+     */
+    List<Prop> getProps(int anchor) {
+        if (anchor < 0 || anchor >= size) {
+            return null;
+        }
+        Block block = blocks[anchor >>> BLOCK_SHIFT];
+        return (block == null) ? null : block.buckets.get(anchor);
+    }
+    
+    /**
+     * Returns the total number of props in the index.
+     */
+    int size() {
+        return count;
+    }
+    
+    /**
+     * The buckets of one block of anchors.  Only anchors in use get a bucket,
+     * so a sparse block costs little.
+     */
+    private static final class Block {
+        
+        final Map<Integer, List<Prop>> buckets;
+        
+        /**
+         * One bit for each anchor of the block that has any props.
+         */
+        final long[] occupied;
+        
+        Block() {
+            buckets = new HashMap<>();
+            occupied = new long[BLOCK_SIZE >>> 6];
+        }
+        
+        private Block(Map<Integer, List<Prop>> buckets, long[] occupied) {
+            this.buckets = buckets;
+            this.occupied = occupied;
+        }
+        
+        /**
+         * Returns a copy of the block that can be changed without affecting
+         * this one.
+         */
+        Block copy() {
+            Map<Integer, List<Prop>> copy = new HashMap<>(buckets.size() * 2);
+            for (Map.Entry<Integer, List<Prop>> entry : buckets.entrySet()) {
+                copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+            return new Block(copy, occupied.clone());
+        }
+    }
+}
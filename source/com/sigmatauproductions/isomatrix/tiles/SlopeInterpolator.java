@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Determines the slopes of a {@link TileMap}'s terrain from its heights, in
+ * parallel.
+ *
+ * The work is done in the same five passes TileMap always made--STANDARD,
+ * BOTTOM_DIAGONAL, TOP_DIAGONAL and two more BOTTOM_DIAGONAL--and gives
+ * exactly the same result as running them one tile at a time in index order.
+ * Each pass is split into bands of rows that are worked on by the common
+ * fork/join pool, reading the slopes as they were before the pass began.
+ * Bands always start on a chunk boundary of the {@link TileStorage}, so no
+ * two of them ever write to the same chunk, which is allocated lazily.
+ * <p>
+ * That is only safe because of what each pass reads.  Every pass but the
+ * TOP_DIAGONAL one only looks at neighbors whose slope it can never change
+ * itself, so the order tiles are visited in doesn't matter.  The TOP_DIAGONAL
+ * pass, however, sees the new slope of earlier tiles, but only of neighbors
+ * strictly higher than the tile itself.  A chain of such neighbors can't be
+ * longer than the map's height range, so each band first works through that
+ * many rows before it (its halo) privately, and then has everything it needs.
+ * <p>
+ * Neighbors are found with the same arithmetic as TileMap.getNeighbor(), as
+ * precomputed index offsets.  Terrain edits only need part of the map redone,
+ * which is small enough to simply work through in order.
+ *
+ * @author sigtau
+ */
+final class SlopeInterpolator {
+    
+    /**
+     * The passes, in the order they are made.
+     */
+    private static final int STANDARD_PASS = 0;
+    private static final int BOTTOM_PASS = 1;
+    private static final int TOP_PASS = 2;
+    private static final int BOTTOM_SECOND_PASS = 3;
+    private static final int BOTTOM_THIRD_PASS = 4;
+    
+    /**
+     * The tileset images below this index are flat.
+     */
+    static final int FLAT_IMAGES = 4;
+    
+    /**
+     * The smallest number of rows handed to a single band.  This must be a
+     * multiple of {@code TileStorage.CHUNK_SIZE}.
+     */
+    private static final int MIN_BAND_ROWS = 64;
+    
+    /**
+     * The ordinals of the slope types looked at by the passes.
+     */
+    private static final int NONE = SlopeType.NONE.ordinal();
+    private static final int STANDARD = SlopeType.STANDARD.ordinal();
+    private static final int BOTTOM = SlopeType.BOTTOM_DIAGONAL.ordinal();
+    private static final int TOP = SlopeType.TOP_DIAGONAL.ordinal();
+    
+    /**
+     * The cardinal directions, in the order the passes check them.
+     */
+    private static final Direction[] CARDINALS = { Direction.NORTH,
+        Direction.EAST, Direction.SOUTH, Direction.WEST };
+    
+    /**
+     * The packed slopes given to a tile by each pass, by the cardinal
+     * direction of the neighbor (or first neighbor of a pair) that caused it.
+     */
+    private static final byte[] STANDARD_SLOPES = new byte[4];
+    private static final byte[] BOTTOM_SLOPES = new byte[4];
+    private static final byte[] TOP_SLOPES = new byte[4];
+    
+    /**
+     * Whether the first of two directions is exactly 270 degrees clockwise
+     * of the second, by ordinal.
+     */
+    private static final boolean[][] THREE_QUARTER_TURN =
+            new boolean[Direction.values().length][Direction.values().length];
+    
+    static {
+        for (int d = 0; d < CARDINALS.length; d++) {
+            Direction dir = CARDINALS[d];
+            STANDARD_SLOPES[d] = TileStorage.packSlope(SlopeType.STANDARD,
+                    DirectionUtils.getInverse(dir));
+            BOTTOM_SLOPES[d] = TileStorage.packSlope(SlopeType.BOTTOM_DIAGONAL,
+                    DirectionUtils.getInverse(DirectionUtils.clockwise(dir)));
+            TOP_SLOPES[d] = TileStorage.packSlope(SlopeType.TOP_DIAGONAL,
+                    DirectionUtils.clockwise(DirectionUtils.getInverse(dir)));
+        }
+        for (Direction first : Direction.values()) {
+            for (Direction second : Direction.values()) {
+                THREE_QUARTER_TURN[first.ordinal()][second.ordinal()] =
+                        DirectionUtils.degreeDifferenceClockwise(first, second)
+                        == 270;
+            }
+        }
+    }
+    
+    private final TileMap map;
+    private final TileStorage storage;
+    private final int size;
+    
+    /**
+     * The distance between two rows, as used by TileMap.getNeighbor().
+     */
+    private final int stride;
+    
+    /**
+     * The index offsets of the neighbors in each of {@code CARDINALS}.
+     */
+    private final int[] offsets;
+    
+    /**
+     * The slopes of every tile as they were before the current pass.
+     */
+    private byte[] before;
+    
+    /**
+     * The heights of every tile, which no pass changes, while the whole map
+     * is being worked through; reading them from here rather than from the
+     * chunks of the storage is a good deal quicker.
+     */
+    private byte[] heights;
+    
+    /**
+     * Creates an interpolator for the specified map.
+     *
+     * @param map
+     * @param storage The map's storage.
+     * @param stride The distance between two rows.
+     */
+    SlopeInterpolator(TileMap map, TileStorage storage, int stride) {
+        this.map = map;
+        this.storage = storage;
+        this.size = storage.size();
+        this.stride = stride;
+        this.offsets = new int[] { -stride, 1, stride, -1 };
+    }
+    
+    /**
+     * Makes all five passes over the map.
+     */
+    void interpolate() {
+        heights = storage.copyHeights();
+        runPass(STANDARD_PASS);
+        runPass(BOTTOM_PASS);
+        runPass(TOP_PASS);
+        runPass(BOTTOM_SECOND_PASS);
+        runPass(BOTTOM_THIRD_PASS);
+        heights = null;
+    }
+    
+    /**
+     * Interpolates the slopes of part of the map from scratch, as if every
+     * tile had been flat before the passes.
+     *
+     * The passes see the slopes of neighbors as they were partway through,
+     * which for tiles outside of the region can't be known.  So the passes
+     * are made over a larger region, privately, and only the tiles of the
+     * inner one are kept; its margin must be at least as wide as the map's
+     * height range plus the number of passes.
+     *
+     * @param region The tiles to work through, in ascending order.
+     * @param keep The tiles whose new slopes are kept, in ascending order.
+     * Every one must also be in {@code region}.
+     */
+    void interpolate(int[] region, int[] keep) {
+        if (region.length == 0) {
+            return;
+        }
+        int base = region[0];
+        byte[] window = new byte[region[region.length - 1] - base + 1];
+        storage.copySlopes(base, window);
+        byte flat = TileStorage.packSlope(SlopeType.NONE, Direction.NORTH);
+        for (int i : region) {
+            window[i - base] = flat;
+        }
+        
+        for (int pass = STANDARD_PASS; pass <= BOTTOM_THIRD_PASS; pass++) {
+            for (int i : region) {
+                int slope = evaluate(pass, i, window, base);
+                if (slope >= 0) {
+                    window[i - base] = (byte) slope;
+                }
+            }
+        }
+        
+        for (int i : keep) {
+            byte slope = window[i - base];
+            if (slope == flat) {
+                // Flat tiles keep their variation, but not an old slope image.
+                storage.setSlope(i, flat);
+                if (storage.getImage(i) >= FLAT_IMAGES) {
+                    storage.setImage(i, 0);
+                }
+            } else {
+                map.applySlope(i, TileStorage.unpackType(slope),
+                        TileStorage.unpackDirection(slope));
+            }
+        }
+    }
+    
+    /**
+     * Used internally to make a single pass over the whole map, in bands.
+     */
+    private void runPass(int pass) {
+        before = storage.copySlopes();
+        int halo = (pass == TOP_PASS) ? (storage.getHighestHeight()
+                - storage.getLowestHeight()) * stride : 0;
+        int band = Math.max(MIN_BAND_ROWS * storage.getWidth(), 1);
+        if (size <= band || storage.getPager() != null) {
+            // A paging storage can't be shared between threads.
+            runBand(pass, 0, size, halo);
+        } else {
+            ForkJoinPool.commonPool().invoke(
+                    new Bands(pass, 0, size, band, halo));
+        }
+        before = null;
+    }
+    
+    /**
+     * Splits a range of tiles into bands until they are small enough to be
+     * worked on directly.
+     */
+    private final class Bands extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int pass;
+        private final int from;
+        private final int to;
+        private final int band;
+        private final int halo;
+        
+        Bands(int pass, int from, int to, int band, int halo) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+            this.band = band;
+            this.halo = halo;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= band) {
+                runBand(pass, from, to, halo);
+            } else {
+                // Split on a whole number of bands, so that every band
+                // starts on a chunk boundary.
+                int bands = (to - from + band - 1) / band;
+                int middle = from + (bands / 2) * band;
+                invokeAll(new Bands(pass, from, middle, band, halo),
+                        new Bands(pass, middle, to, band, halo));
+            }
+        }
+    }
+    
+    /**
+     * Used internally to make one pass over the tiles from {@code from}
+     * (inclusive) to {@code to} (exclusive).
+     *
+     * For the TOP_DIAGONAL pass, the new slopes are also kept in a private
+     * window starting {@code halo} tiles early, so that later tiles see the
+     * slopes of earlier ones exactly as a single sequential pass would.
+     */
+    private void runBand(int pass, int from, int to, int halo) {
+        boolean chained = (pass == TOP_PASS);
+        int start = chained ? Math.max(from - halo, 0) : from;
+        byte[] window = chained ? Arrays.copyOfRange(before, start, to)
+                : before;
+        int base = chained ? start : 0;
+        
+        for (int i = start; i < to; i++) {
+            int slope = evaluate(pass, i, window, base);
+            if (slope < 0) {
+                continue;
+            }
+            if (chained) {
+                window[i - base] = (byte) slope;
+            }
+            if (i >= from) {
+                map.applySlope(i, TileStorage.unpackType((byte) slope),
+                        TileStorage.unpackDirection((byte) slope));
+            }
+        }
+    }
+    
+    /**
+     * Used internally to read the slope of a tile, from the window if it
+     * holds the tile, or else from the slopes before the pass (or the map's
+     * current slopes, outside of a pass over the whole map).
+     */
+    private int slopeAt(int index, byte[] window, int base) {
+        int local = index - base;
+        if (local >= 0 && local < window.length) {
+            return window[local];
+        }
+        return (before != null) ? before[index] : storage.getSlope(index);
+    }
+    
+    /**
+     * Used internally to read the height of a tile.
+     */
+    private int heightAt(int index) {
+        return (heights != null) ? heights[index] : storage.getHeight(index);
+    }
+    
+    /**
+     * Used internally to return the neighbor of a tile in one of the
+     * {@code CARDINALS}, or -1 if it lies outside of the map.
+     */
+    private int neighbor(int index, int direction) {
+        int n = index + offsets[direction];
+        return (n < 0 || n >= size) ? -1 : n;
+    }
+    
+    /**
+     * Used internally to work out the slope a pass gives to a tile.
+     *
+     * @return The new packed slope, or -1 if the pass leaves the tile alone.
+     */
+    private int evaluate(int pass, int i, byte[] window, int base) {
+        int type = type(slopeAt(i, window, base));
+        int height = heightAt(i);
+        int result = -1;
+        
+        switch (pass) {
+            case STANDARD_PASS:
+                // The first higher neighbor decides the slope; a second one
+                // would make a corner, which is left for the later passes.
+                for (int d = 0; d < 4; d++) {
+                    int n = neighbor(i, d);
+                    if (n != -1 && heightAt(n) > height) {
+                        return STANDARD_SLOPES[d];
+                    }
+                }
+                return -1;
+            case BOTTOM_PASS:
+                if (type != NONE) { return -1; }
+                for (int d = 0; d < 4; d++) {
+                    int n1 = neighbor(i, d);
+                    int n2 = neighbor(i, (d + 1) & 3);
+                    if (n1 == -1 || n2 == -1) { continue; }
+                    int slope1 = slopeAt(n1, window, base);
+                    int slope2 = slopeAt(n2, window, base);
+                    if (type(slope1) == STANDARD && type(slope2) == STANDARD
+                            && heightAt(n1) == height
+                            && heightAt(n2) == height
+                            && THREE_QUARTER_TURN[slope1 & 0x0F]
+                            [slope2 & 0x0F]) {
+                        result = BOTTOM_SLOPES[d];
+                    }
+                }
+                return result;
+            case TOP_PASS:
+                if (type != STANDARD) { return -1; }
+                for (int d = 0; d < 4; d++) {
+                    int n1 = neighbor(i, d);
+                    int n2 = neighbor(i, (d + 1) & 3);
+                    if (n1 == -1 || n2 == -1) { continue; }
+                    int type1 = type(slopeAt(n1, window, base));
+                    int type2 = type(slopeAt(n2, window, base));
+                    if ((type1 == STANDARD || type1 == BOTTOM || type1 == NONE)
+                            && (type2 == STANDARD || type2 == BOTTOM
+                            || type2 == NONE)
+                            && heightAt(n1) > height
+                            && heightAt(n2) > height) {
+                        result = TOP_SLOPES[d];
+                    }
+                }
+                return result;
+            case BOTTOM_SECOND_PASS:
+            case BOTTOM_THIRD_PASS:
+                if (type != NONE) { return -1; }
+                for (int d = 0; d < 4; d++) {
+                    int n1 = neighbor(i, d);
+                    int n2 = neighbor(i, (d + 1) & 3);
+                    if (n1 == -1 || n2 == -1
+                            || heightAt(n1) != height
+                            || heightAt(n2) != height) {
+                        continue;
+                    }
+                    int type1 = type(slopeAt(n1, window, base));
+                    int type2 = type(slopeAt(n2, window, base));
+                    boolean match;
+                    if (pass == BOTTOM_SECOND_PASS) {
+                        match = (type1 == STANDARD || type1 == TOP)
+                                && (type2 == STANDARD || type2 == TOP)
+                                && type1 != type2;
+                    } else {
+                        match = type1 == TOP && type2 == TOP;
+                    }
+                    if (match) {
+                        result = BOTTOM_SLOPES[d];
+                    }
+                }
+                return result;
+        }
+        return -1;
+    }
+    
+    /**
+     * Used internally to return the slope type ordinal of a packed slope.
+     */
+    private static int type(int slope) {
+        return (slope >> 4) & 0x0F;
+    }
+}
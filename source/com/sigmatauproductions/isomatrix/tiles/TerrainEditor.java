@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import com.sigmatauproductions.isomatrix.Globals;
+import java.util.Arrays;
+
+/**
+ * Carries out terrain edits on a {@link TileMap}, only redoing the work of a
+ * heightmap load around the tiles that actually changed.
+ *
+ * An edit sets the heights of a rectangle of tiles, then:
+ * <ul>
+ * <li>relaxes the surrounding terrain outward from the edited tiles, lowering
+ * or raising neighbors until no two are more than one unit apart,</li>
+ * <li>fixes orphaned tiles around everything that changed (but never the
+ * edited tiles themselves, since those are what was asked for), and</li>
+ * <li>interpolates the slopes again within a margin around the changes.</li>
+ * </ul>
+ * The margin covers every tile whose slope could depend on a changed height:
+ * a few neighbors for the passes themselves, plus the map's height range for
+ * chains of TOP_DIAGONAL slopes.  Everything outside of it is left alone.
+ * <p>
+ * Orphans are only fixed where that keeps the tile within one unit of all of
+ * its neighbors; otherwise fixing them would undo the relaxation.
+ *
+ * @author sigtau
+ */
+final class TerrainEditor {
+    
+    /**
+     * The number of neighbor steps the slope passes can look through, not
+     * counting chains of TOP_DIAGONAL slopes, plus one to spare.
+     */
+    private static final int SLOPE_MARGIN = 6;
+    
+    private final TileMap map;
+    private final TileStorage storage;
+    private final int xSize;
+    private final int ySize;
+    private final HeightRelaxer relaxer;
+    private final SlopeInterpolator interpolator;
+    
+    /**
+     * The index offsets of all eight neighbors of a tile.
+     */
+    private final int[] offsets;
+    
+    /**
+     * The tiles changed by the current edit.  A tile may appear more than
+     * once.
+     */
+    private int[] changed = new int[64];
+    private int changedCount = 0;
+    
+    /**
+     * Marks the tiles already reached while searching around the changes.
+     * Only allocated once the first edit is made, and always left cleared.
+     */
+    private boolean[] reached = null;
+    
+    /**
+     * Creates an editor for the specified map.
+     *
+     * @param map
+     * @param storage The map's storage.
+     * @param xSize
+     * @param ySize
+     */
+    TerrainEditor(TileMap map, TileStorage storage, int xSize, int ySize) {
+        this.map = map;
+        this.storage = storage;
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.relaxer = new HeightRelaxer(storage, ySize);
+        this.interpolator = new SlopeInterpolator(map, storage, ySize);
+        this.offsets = new int[] { -ySize, 1, ySize, -1,
+            -1 - ySize, 1 - ySize, 1 + ySize, -1 + ySize };
+    }
+    
+    /**
+     * Changes the height of every tile in a rectangle by the specified amount.
+     *
+     * @return The number of height changes made, including the surrounding
+     * terrain.
+     */
+    int raise(int x, int y, int width, int height, int amount) {
+        return edit(x, y, width, height, amount, false);
+    }
+    
+    /**
+     * Sets every tile in a rectangle to the specified height.
+     *
+     * @return The number of height changes made, including the surrounding
+     * terrain.
+     */
+    int level(int x, int y, int width, int height, int level) {
+        return edit(x, y, width, height, level, true);
+    }
+    
+    /**
+     * Used internally to carry out an edit.
+     */
+    private int edit(int x, int y, int width, int height, int value,
+            boolean absolute) {
+        int[] edited = map.getTilesInRect(x, y, width, height).toArray();
+        if (edited.length == 0) {
+            return 0;
+        }
+        
+        changedCount = 0;
+        int changes = 0;
+        for (int i : edited) {
+            int old = storage.getHeight(i);
+            storage.setHeight(i, absolute ? value : old + value);
+            if (storage.getHeight(i) != old) {
+                include(i);
+                changes++;
+            }
+        }
+        if (changes == 0) {
+            return 0;
+        }
+        
+        // Fit the surrounding terrain to the edit.  Neither direction can
+        // undo the other, since the edited tiles agree with each other.
+        long budget = 2L * storage.size() + edited.length;
+        relaxer.recordChanges(true);
+        int lowered = relaxer.lowerFrom(edited, budget);
+        int raised = relaxer.raiseFrom(edited, budget);
+        for (int i : relaxer.getChanged()) {
+            include(i);
+        }
+        relaxer.recordChanges(false);
+        if (lowered < 0 || raised < 0) {
+            Globals.logWarning("Terrain edit could not be fitted to the "
+                    + "surrounding terrain within the relaxation budget.");
+        }
+        changes += Math.max(lowered, 0) + Math.max(raised, 0);
+        
+        // Orphans can only appear next to a changed tile.
+        int right = Math.min(x + width, xSize) - 1;
+        int bottom = Math.min(y + height, ySize) - 1;
+        for (int i : nearChanges(1)) {
+            int tx = i % xSize;
+            int ty = i / xSize;
+            if (tx >= x && tx <= right && ty >= y && ty <= bottom) {
+                continue;
+            }
+            int sign = map.isOrphaned(i);
+            if (sign != 0 && fits(i, storage.getHeight(i) - sign)) {
+                storage.setHeight(i, storage.getHeight(i) - sign);
+                include(i);
+                changes++;
+            }
+        }
+        
+        // Interpolate the slopes around the changes again.
+        int reach = SLOPE_MARGIN + storage.getHighestHeight()
+                - storage.getLowestHeight();
+        int[] inner = nearChanges(reach);
+        interpolator.interpolate(nearChanges(2 * reach), inner);
+        if (inner[0] == 0) {
+            map.fixFirstTileSlope();
+        }
+        
+        return changes;
+    }
+    
+    /**
+     * Used internally to check whether a tile could be set to the specified
+     * height without being more than one unit from any of its neighbors.
+     */
+    private boolean fits(int index, int height) {
+        for (Direction dir : Direction.values()) {
+            int n = map.getNeighbor(index, dir);
+            if (n != -1 && Math.abs(storage.getHeight(n) - height) > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Used internally to remember that the specified tile was changed by the
+     * current edit.
+     */
+    private void include(int index) {
+        if (changedCount == changed.length) {
+            changed = Arrays.copyOf(changed, changed.length * 2);
+        }
+        changed[changedCount++] = index;
+    }
+    
+    /**
+     * Used internally to return every tile within the specified number of
+     * neighbor steps of a tile changed by the current edit, in ascending
+     * order.
+     *
+     * The neighbors followed are exactly the ones getNeighbor() returns, so
+     * this stays right where they wrap around the ends of the rows.
+     */
+    private int[] nearChanges(int steps) {
+        if (reached == null) {
+            reached = new boolean[storage.size()];
+        }
+        int[] found = new int[Math.max(changedCount, 16)];
+        int count = 0;
+        for (int k = 0; k < changedCount; k++) {
+            int i = changed[k];
+            if (!reached[i]) {
+                reached[i] = true;
+                found[count++] = i;
+            }
+        }
+        
+        // Each step reaches the neighbors of the tiles found by the last one.
+        int layerStart = 0;
+        for (int step = 0; step < steps; step++) {
+            int layerEnd = count;
+            for (int k = layerStart; k < layerEnd; k++) {
+                for (int offset : offsets) {
+                    int n = found[k] + offset;
+                    if (n < 0 || n >= reached.length || reached[n]) {
+                        continue;
+                    }
+                    reached[n] = true;
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, found.length * 2);
+                    }
+                    found[count++] = n;
+                }
+            }
+            layerStart = layerEnd;
+        }
+        
+        for (int k = 0; k < count; k++) {
+            reached[found[k]] = false;
+        }
+        int[] tiles = Arrays.copyOf(found, count);
+        Arrays.sort(tiles);
+        return tiles;
+    }
+}
@@ -33,7 +33,6 @@ import com.sigmatauproductions.isomatrix.*;
 import com.sigmatauproductions.isomatrix.props.Prop;
 import com.sigmatauproductions.isomatrix.util.Transform;
 import org.newdawn.slick.*;
-import org.newdawn.slick.geom.*;
 
 /**
  * The basic unit terrain of space for any Isomatrix-powered game.                          
@@ -42,114 +41,62 @@ import org.newdawn.slick.geom.*;
  * as individual components outside of the Isomatrix package, but are made public
  * in case the need arises for external use.  Typically, one will use the
  * {@link TileMap} class to set up a plane of tiles to be drawn and manipulated.
+ * <p>
+ * A Tile does not hold any state of its own; the actual tile data lives in
+ * the primitive arrays of its {@link TileMap}, and a Tile is merely a
+ * lightweight view over one index of that map.  Tiles are therefore cheap to
+ * create, and any change made through one is immediately visible through the
+ * map and through every other Tile viewing the same index.
  *
  * @author sigtau
  */
 public final class Tile {
     
     /**
-     * This defines the x-size of a tile itself, which can also be derived from
-     * its image.
-     * 
-     * Mainly used within the isomatrix.tiles package to keep from
-     * having to repeatedly access the tile's image to get the dimensions.
-     * 
-     * @see Tile#getWidth()
-     */
-    private int xDim = Globals.DEFAULT_TILE_X;
-    
-    /**
-     * Defines the y-size of a tile itself, which can also be derived from
-     * its image.
-     * 
-     * Mainly used within the isomatrix.tiles package to keep from
-     * having to repeatedly access the tile's image to get the dimensions.
-     * 
-     * @see Tile#getHeight()
+     * The {@link TileMap} whose storage this tile views.
      */
-    private int yDim = Globals.DEFAULT_TILE_Y;
+    private final TileMap map;
     
     /**
-     * Defines the {@link Transform} used to track the tile's position in space.
-     * 
-     * Note that when referencing a Tile initialized via a {@link TileMap}, this
-     * variable tracks the tile's <b>relative</b> or <b>local</b> position,
-     * and in order to get the actual (global) position, you must add this to
-     * the {@link TileMap#offset offset} property.
-     * 
+     * The index of this tile within its {@link TileMap}.
      */
-    public Transform position;
+    private final int index;
     
     /**
-     * The tile's image, usually derived from the {@link Tileset} of the
-     * {@link TileMap} the Tile is stored within.
-     * 
-     * The image's dimensions must be at least 16x16 pixels in resolution and
-     * is recommended to be at a 4:3 width-to-height ratio, such as 64x48.
-     * 
-     * @see Globals#MIN_TILE_X
-     * @see Globals#MIN_TILE_Y
+     * The normal color filter of a tile.
      */
-    private Image image;
+    public static final Color NORMAL_COLOR = new Color(255, 255, 255);
     
     /**
-     * The {@link Slope} of the tile, which tracks any deformations in the
-     * tile's shape, as would be with hills, valleys, rivers, and so on.
+     * Creates a view over the specified index of the specified map.  Tiles are
+     * handed out by {@link TileMap#getTile(int)}, so this is not public.
      * 
-     * Stores the {@link SlopeType} and {@link Direction} of the tile's
-     * deformation.
-     * 
-     * @see Slope
-     */
-    private Slope slope = new Slope();
-    
-    /**
-     * Used internally to determine whether the tile contains a prop that
-     * requires registration.
-     */
-    private boolean registered = false;
-    
-    /**
-     * Used internally to store the prop currently registered to this tile.
      */
-    private Prop registeredProp = null;
+    Tile(TileMap map, int index) {
+        this.map = map;
+        this.index = index;
+    }
     
     /**
-     * Used internally to store which tileset to draw images from.
+     * Returns the index of this tile within its {@link TileMap}.
      */
-    private Tileset tileset;
+    public int getIndex() {
+        return index;
+    }
     
     /**
-     * The default constructor, not to be used in a production environment.
+     * Returns the {@link Transform} of the tile's position in space.
      * 
-     * Declared private to prevent inline initialization.
+     * The x and y values are the tile's <b>relative</b> or <b>local</b>
+     * position, and in order to get the actual (global) position, you must
+     * add this to the {@link TileMap#offset offset} property.  The z value is
+     * the tile's altitude in pixels.  The returned Transform is a copy;
+     * changing it does not move the tile.
      * 
      */
-    private Tile() {}
-    
-    /**
-     * The normal color filter of a tile.
-     */
-    public static final Color NORMAL_COLOR = new Color(255, 255, 255);
-    
-    /**
-     * The current color of the tile, initially equal to
-     * {@code Tile.NORMAL_COLOR}.
-     */
-    private Color color = NORMAL_COLOR;
-    
-    /**
-     * The typical constructor of a tile, used to populate the object with
-     * basic values to be manipulated by the user or by a {@link TileMap}.
-     * 
-     */
-    public Tile(Transform transform, Tileset tileset) {
-        Image img = tileset.getImage(0);
-        this.xDim = img.getWidth();
-        this.yDim = img.getHeight();
-        this.position = transform;
-        this.image = img;
-        this.tileset = tileset;
+    public Transform getPosition() {
+        return new Transform(map.getLocalX(index), map.getLocalY(index),
+                map.getLocalZ(index));
     }
     
     /**
@@ -158,32 +105,32 @@ public final class Tile {
      * 
      */
     public Transform getCenter() {
-        return new Transform(position.x+(xDim/2),position.y+(yDim/2),position.z);
+        return new Transform(map.getLocalX(index) + (getWidth() / 2),
+                map.getLocalY(index) + (getHeight() / 2),
+                map.getLocalZ(index));
     }
     
     
     /**
      * Returns the pixel width of the tile's image.
      * 
-     * This is set at the Tile's initialization and any time the Tile's image is
-     * changed.
+     * All tiles of a map share the dimensions of its {@link Tileset}.
      * 
      * @see Tile#getHeight()
      */
     public int getWidth() {
-        return xDim;
+        return map.getTileset().getTileWidth();
     }
     
     /**
      * Returns the pixel height of the Tile's image.
      * 
-     * This is set at the Tile's initialization and any time the Tile's image is
-     * changed.
+     * All tiles of a map share the dimensions of its {@link Tileset}.
      * 
      * @see Tile#getWidth()
      */
     public int getHeight() {
-        return yDim;
+        return map.getTileset().getTileHeight();
     }
     
     /**
@@ -192,22 +139,53 @@ public final class Tile {
      * @see Tile#setImage();
      */
     public Image getImage() {
-        return image.copy();
+        return map.getTileset().getImage(map.getTileImage(index)).copy();
     }
     
     /**
      * Sets the tile's image to the specified image.
      * 
-     * Note that the new image must match the dimensions of the old image.
+     * Only the map's {@link Tileset}'s own images, as returned by
+     * {@link Tileset#getImage(int)}, are accepted; images are matched by
+     * identity, so the copy returned by getImage() and any other image are
+     * ignored with a warning.  Prefer setImageIndex().
      * <b>Important</b>: Updating the image directly is not recommended for
      * adjusting a tile's slope.  Use setSlope() instead, or you may get
      * unexpected results.
      * 
      * @see Tile#getImage();
+     * @see Tile#setImageIndex(int);
      */
     protected void setImage(Image im) {
-        if (im.getWidth() != xDim || im.getHeight() != yDim) { return; }
-        image = im;
+        int tilesetIndex = map.getTileset().indexOf(im);
+        if (tilesetIndex < 0) {
+            Globals.logWarning("Ignored an image that isn't part of the "
+                    + "tileset of tile " + index + ".");
+            return;
+        }
+        map.setTileImage(index, tilesetIndex);
+    }
+    
+    /**
+     * Returns the index of the tile's image within the map's {@link Tileset}.
+     * 
+     * @see Tile#setImageIndex(int);
+     */
+    public int getImageIndex() {
+        return map.getTileImage(index);
+    }
+    
+    /**
+     * Sets the tile's image to the image at the specified index of the map's
+     * {@link Tileset}.  An index outside the tileset is ignored.
+     * <b>Important</b>: as with setImage(), use setSlope() to adjust a
+     * tile's slope instead.
+     * 
+     * @param tilesetIndex
+     * @see Tile#getImageIndex();
+     */
+    public void setImageIndex(int tilesetIndex) {
+        map.setTileImage(index, tilesetIndex);
     }
     
     /**
@@ -230,90 +208,7 @@ public final class Tile {
      *         slope type).
      */
     public boolean setSlope(SlopeType type, Direction direction) {
-        switch (type) {
-            case STANDARD:
-                switch (direction) {
-                    case EAST:
-                        setImage(tileset.getImage(8));
-                    break;
-                    case NORTH:
-                        setImage(tileset.getImage(9));
-                    break;
-                    case WEST:
-                        setImage(tileset.getImage(10));
-                    break;
-                    case SOUTH:
-                        setImage(tileset.getImage(11));
-                    break;
-                    default:
-                        return false;
-                }
-            break;
-            case BOTTOM_DIAGONAL:
-                switch (direction) {
-                    case RIGHT:
-                        setImage(tileset.getImage(4));
-                    break;
-                    case UP:
-                        setImage(tileset.getImage(5));
-                    break;
-                    case LEFT:
-                        setImage(tileset.getImage(6));
-                    break;
-                    case DOWN:
-                        setImage(tileset.getImage(7));
-                    break;
-                    default:
-                        return false;
-                }
-            break;
-            case MIDSEGMENT:
-                switch (direction) {
-                    case UP:
-                        setImage(tileset.getImage(16));
-                    break;
-                    case RIGHT:
-                        setImage(tileset.getImage(17));
-                    break;
-                    case DOWN:
-                        setImage(tileset.getImage(18));
-                    break;
-                    case LEFT:
-                        setImage(tileset.getImage(19));
-                    break;
-                    default:
-                        return false;
-                }
-            break;
-            case TOP_DIAGONAL:
-                switch (direction) {
-                    case RIGHT:
-                        setImage(tileset.getImage(12));
-                    break;
-                    case UP:
-                        setImage(tileset.getImage(13));
-                    break;
-                    case LEFT:
-                        setImage(tileset.getImage(14));
-                    break;
-                    case DOWN:
-                        setImage(tileset.getImage(15));
-                    break;
-                    default:
-                        return false;
-                }
-            break;
-            case NONE:
-                slope.setSlopeType(type);
-                slope.setDirection(Direction.NORTH);
-                return true;
-            default:
-                return false;
-        }
-        
-        slope.setSlopeType(type);
-        slope.setDirection(direction);
-        return true;
+        return map.applySlope(index, type, direction);
     }
     
     /**
@@ -322,7 +217,7 @@ public final class Tile {
      * @see Tile#setSlopeType();
      */
      public SlopeType getSlopeType() {
-        return slope.getSlopeType();
+        return map.getTileSlopeType(index);
     }
     
      /**
@@ -331,34 +226,30 @@ public final class Tile {
      * @see Tile#setSlopeDirection();
      */
     public Direction getSlopeDirection() {
-        return slope.getDirection();
+        return map.getTileSlopeDirection(index);
     }
     
     /**
-     * Draws the tile's image to the screen at the tile's {@link Tile#position}.
+     * Draws the tile's image to the screen at the tile's position.
      * 
      * The tile's Z (altitude) position is added to its Y position to simulate
      * actual height.
      * 
      */
     public void draw() {
-        image.setImageColor(color.getRed()/255f, color.getGreen()/255f, 
-                color.getBlue()/255f);
-        image.draw(position.x, position.y+position.z);
+        draw(Transform.getOrigin());
     }
     
     /**
-     * Draws the tile's image to the screen at its {@link Tile#position}, using
-     * the specified {@link Transform} offset.
+     * Draws the tile's image to the screen at its position, using the
+     * specified {@link Transform} offset.
      * 
      * The Z value of the offset is ignored, and as with the normal draw(), the
      * tile's Z (altitude) position is added to its Y position.
      * 
      */
     public void draw(Transform offset) {
-        image.setImageColor(color.getRed()/255f, color.getGreen()/255f, 
-                color.getBlue()/255f);
-        image.draw(offset.x+position.x, offset.y+position.y+position.z);
+        map.drawTile(index, offset.x, offset.y);
     }
     
     /**
@@ -368,7 +259,8 @@ public final class Tile {
      * @see Tile#getDrawPositionRelative();
      */
     public Transform getDrawPosition(Transform offset) {
-        return new Transform(offset.x+position.x, offset.y+position.y+position.z, 0);
+        return new Transform(offset.x + map.getLocalX(index),
+                offset.y + map.getLocalY(index) + map.getLocalZ(index), 0);
     }
     
     /**
@@ -381,21 +273,22 @@ public final class Tile {
      * @see Tile#getDrawPosition();
      */
     public Transform getDrawPositionRelative() {
-        return new Transform(position.x, position.y+position.z, 0);
+        return new Transform(map.getLocalX(index),
+                map.getLocalY(index) + map.getLocalZ(index), 0);
     }
     
     /**
      * Sets the registered status of the tile.
      * 
      * If set to false, the prop value currently cached inside the tile is
-     * automatically deleted (set to null).
+     * automatically deleted (set to null).  A tile only counts as registered
+     * once a prop has been set on it via setProp().
      * 
      * @param value 
      */
     public void setRegistered(boolean value) {
-        registered = value;
         if (!value) {
-            registeredProp = null;
+            map.getStorage().setProp(index, null);
         }
     }
     
@@ -403,14 +296,14 @@ public final class Tile {
      * Returns the registered status of this tile.
      */
     public boolean isRegistered() {
-        return registered;
+        return map.getStorage().getProp(index) != null;
     }
     
     /**
      * Returns the prop currently on this tile.
      */
     public Prop getProp() {
-        return registeredProp;
+        return map.getStorage().getProp(index);
     }
     
     /**
@@ -418,7 +311,7 @@ public final class Tile {
      */
     public void setProp(Prop p) {
         if (p == null) { return; }
-        registeredProp = p;
+        map.getStorage().setProp(index, p);
     }
     
     /**
@@ -432,20 +325,19 @@ public final class Tile {
     public boolean isMouseOver(Input input, Transform offset, float scale) {
         float mouseX = (input.getAbsoluteMouseX()/scale);
         float mouseY = (input.getAbsoluteMouseY()/scale);
-        float relativeMouseX = (mouseX-getDrawPosition(offset).x+1);
-        float relativeMouseY = (mouseY-getDrawPosition(offset).y+1);
+        float relativeMouseX = (mouseX - (offset.x + map.getLocalX(index)) + 1);
+        float relativeMouseY = (mouseY - (offset.y + map.getLocalY(index)
+                + map.getLocalZ(index)) + 1);
         if (relativeMouseX < getWidth() && relativeMouseY < getHeight()
                 && relativeMouseX > 0 && relativeMouseY > 0) {
-            if (getImage().getColor((int)relativeMouseX, (int)relativeMouseY)
-                    .getAlpha() >= .5f) {
-                return true;
-            }
+            return map.getTileset().isOpaque(map.getTileImage(index),
+                    (int)relativeMouseX, (int)relativeMouseY);
         }
         return false;
     }
     
     protected void setColor(Color c) {
-        color = c;
+        map.setTileColor(index, c);
     }
     
 }
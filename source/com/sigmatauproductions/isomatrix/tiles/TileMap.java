@@ -31,11 +31,13 @@ package com.sigmatauproductions.isomatrix.tiles;
 import com.sigmatauproductions.isomatrix.*;
 import com.sigmatauproductions.isomatrix.props.*;
 import com.sigmatauproductions.isomatrix.util.Transform;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
 import org.newdawn.slick.*;
 
 /**
@@ -92,12 +94,35 @@ public final class TileMap {
      */
     private int ySize = 0;
     /**
-     * The array that holds all of the {@link Tile} objects that make up this
-     * TileMap.
+     * The primitive-array storage that holds the data of every tile that
+     * makes up this TileMap.  {@link Tile} objects are only views over it.
      *
      * @see TileMap#getTile()
      */
-    private Tile[] tiles;
+    private TileStorage storage;
+    /**
+     * The horizontal pixel distance between two neighboring tiles on screen,
+     * derived from the tileset.
+     */
+    private int adjustmentFactorX;
+    /**
+     * The vertical pixel distance between two neighboring tiles on screen,
+     * derived from the tileset.
+     */
+    private int adjustmentFactorY;
+    /**
+     * Finds the tile underneath the mouse cursor.
+     */
+    private TilePicker picker;
+    /**
+     * The range of tiles on screen, solved again at every draw().
+     */
+    private final ViewRange viewRange = new ViewRange();
+    /**
+     * A reusable color used to pass each tile's color filter on to the
+     * renderer without allocating.
+     */
+    private final Color tintColor = new Color(1f, 1f, 1f, 1f);
     
     private int mouseOverIndex = -1;
     
@@ -111,9 +136,33 @@ public final class TileMap {
      */
     private boolean drawProps = false;
     /**
-     * Used internally to store the props on this map.
+     * Used internally to store the props on this map, in draw order.
+     */
+    private final PropIndex props;
+    /**
+     * Used internally to store the lightweight props on this map, in draw
+     * order.
      */
-    private List<Prop> props = new ArrayList<>();
+    private final PropField field = new PropField();
+    /**
+     * The templates the lightweight props on this map refer to by id.
+     */
+    private final PropRegistry registry;
+    /**
+     * Used internally to remember where each prop on this map was placed, so
+     * that props can be removed without searching the map, even if their
+     * anchors have been changed since.
+     */
+    private final Map<Prop, Placement> placements = new HashMap<>();
+    /**
+     * The footprint of superficial props, which aren't registered to any
+     * tiles.
+     */
+    private static final int[] NO_FOOTPRINT = new int[0];
+    /**
+     * Used internally to carry out terrain edits.
+     */
+    private final TerrainEditor editor;
     /**
      * Used internally to determine whether or not tile ID labels should be
      * drawn.
@@ -140,6 +189,23 @@ public final class TileMap {
      * @throws SlickException
      */
     public TileMap(Tileset tileset, int xSize, int ySize) throws SlickException{
+        this(tileset, xSize, ySize, new PropRegistry());
+    }
+
+    /**
+     *
+     * Initializes a new TileMap using the specified tileset, width, and
+     * height, whose lightweight props refer to templates of the specified
+     * registry, which may be shared with other maps.
+     *
+     * @param tileset
+     * @param xSize
+     * @param ySize
+     * @param registry
+     * @throws SlickException
+     */
+    public TileMap(Tileset tileset, int xSize, int ySize,
+            PropRegistry registry) throws SlickException {
         // Validate the map size
         int trueXSize = (xSize >= MIN_X) ? xSize : MIN_X;
         trueXSize = (xSize <= MAX_X) ? xSize : MAX_X;
@@ -149,60 +215,191 @@ public final class TileMap {
         this.tileset = tileset;
         this.xSize = xSize;
         this.ySize = ySize;
-        tiles = new Tile[xSize * ySize];
+        storage = new TileStorage(xSize, ySize);
+        props = new PropIndex(xSize * ySize);
+        this.registry = registry;
+        editor = new TerrainEditor(this, storage, xSize, ySize);
         populateMap();
     }
 
     /**
      *
-     * Used internally to fill the map with the default tiles at the default
-     * height.
+     * Used internally to prepare the map for drawing.  The storage already
+     * starts out as flat tiles at the default height, so all that's left is
+     * to derive the screen spacing of the tiles from the tileset.
      *
      * @throws SlickException
      */
     private void populateMap() throws SlickException {
+        adjustmentFactorX = tileset.getTileWidth() / 2;
+        adjustmentFactorY = tileset.getTileHeight() / 3;
+        picker = new TilePicker(this);
 
-        int adjustmentFactorX = tileset.getImage(0).getWidth() / 2;
-        int adjustmentFactorY = tileset.getImage(0).getHeight() / 3;
-
-        // Start by populating the array with the basic tiles
-        for (int i = 0; i < tiles.length; i++) {
-            tiles[i] = new Tile(new Transform(), tileset);
-            tiles[i].setSlope(SlopeType.NONE, Direction.NORTH);
-        }
-
-        Transform rowOrigin = Transform.getOrigin();
-        int count = 0;
-
-        // Now let's assign true coordinates to the tiles
-        for (int y = 0; y < ySize; y++) {
-            for (int x = 0; x < xSize; x++) {
-                tiles[count].position.x = rowOrigin.x + (adjustmentFactorX * x);
-                tiles[count].position.y = rowOrigin.y + (adjustmentFactorY * (x));
-                count++;
-            }
-            rowOrigin.x -= adjustmentFactorX;
-            rowOrigin.y += adjustmentFactorY;
-        }
-
-        canDraw = true;
+        canDraw = !tileset.isHeadless();
         drawProps = true;
     }
     
+    /**
+     * Returns the local (offset-free) x-position of the specified tile.
+     * 
+     * Positions aren't stored; each row of the map starts half a tile to the
+     * left of and a third of a tile below the previous one, and each tile in a
+     * row sits half a tile to the right of and a third of a tile below the
+     * previous tile.
+     * 
+     * @param index
+     * @return The x-position of the tile, in pixels.
+     */
+    int getLocalX(int index) {
+        int x = index % xSize;
+        int y = index / xSize;
+        return adjustmentFactorX * (x - y);
+    }
+    
+    /**
+     * Returns the local (offset-free) y-position of the specified tile, not
+     * counting its altitude.
+     * 
+     * @param index
+     * @return The y-position of the tile, in pixels.
+     */
+    int getLocalY(int index) {
+        int x = index % xSize;
+        int y = index / xSize;
+        return adjustmentFactorY * (x + y);
+    }
+    
+    /**
+     * Returns the altitude of the specified tile in pixels, which is added to
+     * its y-position when drawing.
+     * 
+     * @param index
+     * @return The z-position of the tile, in pixels.
+     */
+    int getLocalZ(int index) {
+        return -storage.getHeight(index) * tileset.getHeightOffset();
+    }
+    
+    /**
+     * Returns the horizontal pixel distance between two neighboring tiles.
+     */
+    int getAdjustmentFactorX() {
+        return adjustmentFactorX;
+    }
+    
+    /**
+     * Returns the vertical pixel distance between two neighboring tiles.
+     */
+    int getAdjustmentFactorY() {
+        return adjustmentFactorY;
+    }
+    
+    /**
+     * Returns the storage backing this map, for use by {@link Tile} views.
+     */
+    TileStorage getStorage() {
+        return storage;
+    }
+    
+    /**
+     * Returns the props of this map in draw order, for use by
+     * {@link MapFile}.
+     */
+    PropIndex getPropIndex() {
+        return props;
+    }
+    
+    /**
+     * Returns a snapshot of the tiles and props of this map, for saving on
+     * another thread while the map keeps changing.
+     * 
+     * @throws IllegalStateException If paging is enabled.
+     */
+    MapSnapshot snapshot() {
+        return new MapSnapshot(storage.snapshot(), props.snapshot(),
+                field.snapshot(), registry.toArray(),
+                tileset.getDirectoryName());
+    }
+    
+    /**
+     * Returns the lightweight props of this map, for use by {@link MapFile}.
+     */
+    PropField getPropField() {
+        return field;
+    }
+    
+    /**
+     * Returns the registry of the templates this map's lightweight props
+     * refer to.
+     */
+    public PropRegistry getPropRegistry() {
+        return registry;
+    }
+    
+    /**
+     * Draws the specified tile with its color filter, relative to the
+     * specified offset.
+     * 
+     * @param index
+     * @param offsetX
+     * @param offsetY 
+     */
+    void drawTile(int index, int offsetX, int offsetY) {
+        if (tileset.isHeadless()) { return; }
+        drawTileAt(index, offsetX + getLocalX(index),
+                offsetY + getLocalY(index) + getLocalZ(index));
+    }
+    
+    /**
+     * Draws the specified tile with its color filter at the specified screen
+     * position.
+     */
+    private void drawTileAt(int index, int xPos, int yPos) {
+        setTintColor(storage.getTint(index));
+        tileset.getImage(storage.getImage(index)).draw(xPos, yPos, tintColor);
+    }
+    
+    /**
+     * Used internally to load a packed RGB color filter into
+     * {@code tintColor}.
+     */
+    private void setTintColor(int tint) {
+        tintColor.r = ((tint >> 16) & 0xFF) / 255f;
+        tintColor.g = ((tint >> 8) & 0xFF) / 255f;
+        tintColor.b = (tint & 0xFF) / 255f;
+    }
+    
     /**
      * To be called once per frame, this method returns the current tile index
      * that the mouse cursor is over, given the scale (zoom level) of the game.
+     * 
+     * Rather than testing every tile, the mouse position is projected back
+     * onto the map to test only the handful of tiles that could be under it.
+     * 
      * @param input
      * @param scale 
      */
     public final void update(Input input, float scale) {
-        for (int i = 0; i < tiles.length; i++) {
-            if (tiles[i].isMouseOver(input, offset, scale)) {
-                mouseOverIndex = i;
-            }
+        int picked = pickTile(input.getAbsoluteMouseX() / scale,
+                input.getAbsoluteMouseY() / scale);
+        if (picked >= 0) {
+            mouseOverIndex = picked;
         }
     }
     
+    /**
+     * Returns the index of the topmost tile drawn at the specified screen
+     * position (already divided by the scale), taking the map's offset into
+     * account.
+     * 
+     * @param screenX
+     * @param screenY
+     * @return The index of the tile, or -1 if there is no tile there.
+     */
+    public int pickTile(float screenX, float screenY) {
+        return picker.pick(screenX - offset.x, screenY - offset.y);
+    }
+    
     /**
      * Returns the tile that the mouse was last detected to be over, or -1 if
      * one has not yet been detected.
@@ -218,8 +415,9 @@ public final class TileMap {
      * @param color 
      */
     public void setTileColor(int index, Color color) {
-        if (index < 0 || index >= tiles.length) { return; }
-        tiles[index].setColor(color);
+        if (index < 0 || index >= storage.size()) { return; }
+        storage.setTint(index, TileStorage.packTint(color.getRed(),
+                color.getGreen(), color.getBlue()));
     }
     
     /**
@@ -241,7 +439,21 @@ public final class TileMap {
      * @return Returns a specific tile from the map.
      */
     public Tile getTile(int index) {
-        return tiles[index];
+        if (index < 0 || index >= storage.size()) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return new Tile(this, index);
+    }
+    
+    /**
+     * Returns the index of the specified tile's image within the map's
+     * {@link Tileset}.
+     * 
+     * @param index
+     * @return The tileset image index.
+     */
+    public int getTileImage(int index) {
+        return storage.getImage(index);
     }
 
     /**
@@ -255,10 +467,11 @@ public final class TileMap {
      * @param tilesetIndex
      */
     public void setTileImage(int index, int tilesetIndex) {
-        if (index > tiles.length || index < 0) {
+        if (index >= storage.size() || index < 0 || tilesetIndex < 0
+                || tilesetIndex >= tileset.getImageCount()) {
             return;
         }
-        tiles[index].setImage(tileset.getImage(tilesetIndex));
+        storage.setImage(index, tilesetIndex);
     }
 
     /**
@@ -270,24 +483,93 @@ public final class TileMap {
      * @param direction The {@link Direction}.
      */
     public void setTileSlope(int index, SlopeType type, Direction direction) {
-        if (index > tiles.length || index < 0) {
+        if (index >= storage.size() || index < 0) {
             return;
         }
-        tiles[index].setSlope(type, direction);
+        applySlope(index, type, direction);
+    }
+    
+    /**
+     * Used internally to store the slope of a tile and switch it to the
+     * matching image of the tileset.
+     * 
+     * A slope of {@code SlopeType.NONE} always points north and leaves the
+     * tile's image alone, so that flat tiles keep whatever variation
+     * randomizeFlats() gave them.
+     * 
+     * @return {@code true} upon success; {@code false} if the direction was
+     * invalid for the specified slope type.
+     */
+    boolean applySlope(int index, SlopeType type, Direction direction) {
+        if (type == SlopeType.NONE) {
+            storage.setSlope(index, TileStorage.packSlope(type,
+                    Direction.NORTH));
+            return true;
+        }
+        
+        int image = getSlopeImage(type, direction);
+        if (image < 0) {
+            return false;
+        }
+        storage.setImage(index, image);
+        storage.setSlope(index, TileStorage.packSlope(type, direction));
+        return true;
+    }
+    
+    /**
+     * Returns the index of the tileset image portraying the specified slope,
+     * or -1 if the direction is invalid for the slope type.
+     */
+    private static int getSlopeImage(SlopeType type, Direction direction) {
+        switch (type) {
+            case STANDARD:
+                switch (direction) {
+                    case EAST: return 8;
+                    case NORTH: return 9;
+                    case WEST: return 10;
+                    case SOUTH: return 11;
+                }
+                break;
+            case BOTTOM_DIAGONAL:
+                switch (direction) {
+                    case RIGHT: return 4;
+                    case UP: return 5;
+                    case LEFT: return 6;
+                    case DOWN: return 7;
+                }
+                break;
+            case MIDSEGMENT:
+                switch (direction) {
+                    case UP: return 16;
+                    case RIGHT: return 17;
+                    case DOWN: return 18;
+                    case LEFT: return 19;
+                }
+                break;
+            case TOP_DIAGONAL:
+                switch (direction) {
+                    case RIGHT: return 12;
+                    case UP: return 13;
+                    case LEFT: return 14;
+                    case DOWN: return 15;
+                }
+                break;
+        }
+        return -1;
     }
 
     public SlopeType getTileSlopeType(int index) {
-        if (index > tiles.length || index < 0) {
+        if (index >= storage.size() || index < 0) {
             return null;
         }
-        return tiles[index].getSlopeType();
+        return TileStorage.unpackType(storage.getSlope(index));
     }
 
     public Direction getTileSlopeDirection(int index) {
-        if (index > tiles.length || index < 0) {
+        if (index >= storage.size() || index < 0) {
             return null;
         }
-        return tiles[index].getSlopeDirection();
+        return TileStorage.unpackDirection(storage.getSlope(index));
     }
 
     /**
@@ -315,16 +597,17 @@ public final class TileMap {
      * normalized value to be multiplied by the height offset in the map's
      * {@link Tileset}. For example, if the height offset is set to 8 pixels,
      * calling {@code setTileHeight(34,2)} sets the height of tile 34 to be 2
-     * units above the zero height.
+     * units above the zero height.  Heights are stored as bytes, so values
+     * outside of -128 to 127 are clamped.
      *
      * @param index
      * @param height
      */
     public void setTileHeight(int index, int height) {
-        if (index > tiles.length || index < 0) {
+        if (index >= storage.size() || index < 0) {
             return;
         }
-        tiles[index].position.z = -height * tileset.getHeightOffset();
+        storage.setHeight(index, height);
     }
 
     /**
@@ -335,7 +618,7 @@ public final class TileMap {
      * @return The value of the tile's z-position.
      */
     public int getTileHeight(int index) {
-        return -tiles[index].position.z / tileset.getHeightOffset();
+        return storage.getHeight(index);
     }
 
     /**
@@ -376,7 +659,7 @@ public final class TileMap {
                 break;
         }
 
-        if (ret < 0 || ret >= tiles.length) {
+        if (ret < 0 || ret >= storage.size()) {
             ret = -1;
         }
 
@@ -407,69 +690,139 @@ public final class TileMap {
      *
      * Draws the tile to the screen using its offset.
      *
+     * Only the rows and columns that can be on screen are visited, so the
+     * cost of drawing depends on the screen size rather than the map size.
+     * The terrain is drawn in a single batch from the tileset's atlas, with
+     * each tile's color filter passed along as its vertex color.
+     *
      * @return Returns true if {@code canDraw} is set to true, false otherwise.
      * @throws SlickException
      */
     public boolean draw(Graphics g, int gameWidth, int gameHeight, float scaleX,
             float scaleY) throws SlickException {
         if (canDraw) {
+            int tileWidth = tileset.getTileWidth();
+            int tileHeight = tileset.getTileHeight();
             int maxX = (int)((float)gameWidth*scaleX) + (gameWidth *
-                    ((int) (1f / scaleX))) + getTile(0).getWidth()*3;
+                    ((int) (1f / scaleX))) + tileWidth*3;
             int maxY = (int)((float)gameHeight*scaleY) +  (gameHeight *
-                    ((int) (1f / scaleY))) + getTile(0).getHeight()*3;
-            for (int i = 0; i < tiles.length; i++) {
-                int xPos = tiles[i].getDrawPosition(offset).x;
-                int yPos = tiles[i].getDrawPosition(offset).y;
-                
-                // Cull out tiles that are outside of the view frustum
-                if ((xPos + tiles[i].getWidth()) < 0
-                        || xPos > maxX
-                        || (yPos + tiles[i].getHeight()) < 0
-                        || yPos > maxY) {
-                    // Do nothing
-                } else {
-                    tiles[i].draw(offset);
+                    ((int) (1f / scaleY))) + tileHeight*3;
+            int heightOffset = tileset.getHeightOffset();
+            viewRange.solve(this, offset.x, offset.y, maxX, maxY);
+            Image atlas = tileset.getAtlas();
+            int lastTint = -1;
+            atlas.startUse();
+            for (int y = viewRange.getFirstRow();
+                    y <= viewRange.getLastRow(); y++) {
+                int last = viewRange.getLastColumn(y);
+                for (int x = viewRange.getFirstColumn(y); x <= last; x++) {
+                    int i = (y * xSize) + x;
+                    int xPos = offset.x + (adjustmentFactorX * (x - y));
+                    int yPos = offset.y + (adjustmentFactorY * (x + y))
+                            - (storage.getHeight(i) * heightOffset);
+
+                    // Cull out tiles the range only roughly accounted for
+                    if ((xPos + tileWidth) < 0
+                            || xPos > maxX
+                            || (yPos + tileHeight) < 0
+                            || yPos > maxY) {
+                        // Do nothing
+                    } else {
+                        // Only switch colors when the filter changes, which
+                        // for most tiles it doesn't.
+                        int tint = storage.getTint(i);
+                        if (tint != lastTint) {
+                            setTintColor(tint);
+                            tintColor.bind();
+                            lastTint = tint;
+                        }
+                        tileset.getAtlasRegion(storage.getImage(i))
+                                .drawEmbedded(xPos, yPos, tileWidth,
+                                tileHeight);
+                    }
                 }
             }
+            atlas.endUse();
+            Color.white.bind();
 
             if (drawProps) {
-                for (Prop prop : props) {
-                    //System.out.println("Iterating prop");
-                    prop.position = getTile(prop.getAnchor())
-                            .getDrawPosition(offset);
-
-                    prop.position.y = getTile(prop.getAnchor())
-                            .getDrawPosition(offset).y
-                            - getTile(prop.getAnchor()).getHeight()
-                            - getTileset().getPropOffset();
-                    if (prop.getWidth() > 1 || prop.getHeight() > 1) {
-                        prop.position.x = prop.position.x
-                                - (tileset.getTileWidth() / 2);
+                // Both kinds of props are already in draw order, so walk
+                // them together, one anchor at a time.  Lightweight props go
+                // first among those sharing an anchor.
+                field.flush();
+                long now = System.nanoTime() / 1000000L;
+                int fieldLength = field.length();
+                int next = 0;
+                int anchor = props.nextAnchor(0);
+                while (anchor >= 0 || next < fieldLength) {
+                    int current = (next < fieldLength && (anchor < 0
+                            || field.getAnchor(next) <= anchor))
+                            ? field.getAnchor(next) : anchor;
+                    int anchorX = offset.x + getLocalX(current);
+                    int anchorY = offset.y + getLocalY(current)
+                            + getLocalZ(current) - tileHeight
+                            - tileset.getPropOffset();
+                    for (; next < fieldLength
+                            && field.getAnchor(next) == current; next++) {
+                        int id = field.getTemplate(next);
+                        if (id == PropField.REMOVED) {
+                            continue;
+                        }
+                        PropTemplate template = registry.get(id);
+                        int xPos = anchorX;
+                        if (template.getWidth() > 1
+                                || template.getHeight() > 1) {
+                            xPos -= tileWidth / 2;
+                        }
+                        if ((xPos + template.getImageWidth()) < 0
+                                || xPos > maxX
+                                || (anchorY + template.getImageHeight()) < 0
+                                || anchorY > maxY) {
+                            // Do nothing
+                        } else {
+                            template.getFrame(now + field.getPhase(next))
+                                    .draw(xPos, anchorY);
+                        }
                     }
-                    
-                    int xPos = prop.position.x;
-                    int yPos = prop.position.y;
-                    
-                    // Cull out props that are outside of the view frustum
-                    if ((xPos + prop.getAnimationWidth()) < 0
-                            || xPos > maxX
-                            || (yPos + prop.getAnimationHeight()) < 0
-                            || yPos > maxY) {
-                        // Do nothing
-                    } else {
-                        //System.out.println("Drawing prop");
-                        prop.draw();
+                    if (current != anchor) {
+                        continue;
+                    }
+                    for (Prop prop : props.getProps(anchor)) {
+                        prop.position = new Transform(anchorX, anchorY, 0);
+                        if (prop.getWidth() > 1 || prop.getHeight() > 1) {
+                            prop.position.x = prop.position.x
+                                    - (tileset.getTileWidth() / 2);
+                        }
+
+                        int xPos = prop.position.x;
+                        int yPos = prop.position.y;
+
+                        // Cull out props that are outside of the view frustum
+                        if ((xPos + prop.getAnimationWidth()) < 0
+                                || xPos > maxX
+                                || (yPos + prop.getAnimationHeight()) < 0
+                                || yPos > maxY) {
+                            // Do nothing
+                        } else {
+                            prop.draw();
+                        }
                     }
+                    anchor = props.nextAnchor(anchor + 1);
                 }
             }
 
-            for (int i = 0; i < tiles.length; i++) {
-                if (showTileIDs) {
-                    g.drawString(new Integer(i).toString(),
-                            tiles[i].getDrawPosition(offset).x
-                            + (tiles[i].getWidth() / 2 - 10),
-                            tiles[i].getDrawPosition(offset).y
-                            + (tiles[i].getHeight() / 2 - 10));
+            if (showTileIDs) {
+                for (int y = viewRange.getFirstRow();
+                        y <= viewRange.getLastRow(); y++) {
+                    int last = viewRange.getLastColumn(y);
+                    for (int x = viewRange.getFirstColumn(y); x <= last; x++) {
+                        int i = (y * xSize) + x;
+                        g.drawString(Integer.toString(i),
+                                offset.x + getLocalX(i)
+                                + (tileWidth / 2 - 10),
+                                offset.y + getLocalY(i) + getLocalZ(i)
+                                + (tileHeight / 2 - 10));
+                    }
                 }
             }
 
@@ -483,94 +836,277 @@ public final class TileMap {
      * Adds the specified prop to the map.
      *
      * Use the prop's {@code anchor} property to determine where the prop will
-     * be placed.
+     * be placed.  The anchor must not be changed while the prop is on the
+     * map; use moveProp() instead.
      *
      * @param prop
-     * @return Returns false if the prop is placed out of bounds or on another
-     * prop.
+     * @return Returns false if the prop is placed out of bounds, on another
+     * prop, or is already on the map.
      */
     public boolean addProp(Prop prop) {
+        int anchor = prop.getAnchor();
+        if (anchor < 0 || anchor >= storage.size()
+                || placements.containsKey(prop)) {
+            return false;
+        }
+        
         // First, we check to see if the prop requires that it be registered
         // to the tiles underneath.  Usually, superficial props like rocks,
         // trees, and other natural world elements don't have to be registered.
-        if (!prop.needsRegistration()) {
-            props.add(prop);
-            sortProps();
-            return true;
+        int[] tilesToRegister = findFootprint(prop, anchor);
+        if (tilesToRegister == null || !isFootprintFree(tilesToRegister, prop)) {
+            return false;
         }
-
-        // Create a temporary ArrayList of tile indexes to 
-        List<Integer> tilesToRegister = new ArrayList<>();
-
-        int rowInitial = prop.getAnchor();
-        int index;
-        for (int x = 0; x < prop.getWidth(); x++) {
-            index = rowInitial;
-            for (int y = 0; y < prop.getHeight(); y++) {
-                tilesToRegister.add(index);
-                index = getTileByCoordinates(getTileCoordinates(index)[0],
-                        getTileCoordinates(index)[1] - 1);
-            }
-            rowInitial = getTileByCoordinates(
-                    getTileCoordinates(rowInitial)[0] - 1,
-                    getTileCoordinates(rowInitial)[1]);
+        for (int tileIndex : tilesToRegister) {
+            storage.setProp(tileIndex, prop);
         }
 
-        for (int tileIndex : tilesToRegister) {
-            if (tileIndex < 0 || tileIndex > tiles.length) {
+        // Add the new prop to the index, which keeps props in the order of
+        // their anchors so that they are not drawn on top of one another
+        // (tall buildings, etc.)
+        props.add(prop, anchor);
+        placements.put(prop, new Placement(anchor, tilesToRegister));
+        return true;
+    }
+    
+    /**
+     * Used internally to find the tiles a prop would be registered to if it
+     * were anchored to the specified tile.  The prop covers the tiles extending
+     * west and north of its anchor.  Superficial props aren't registered to
+     * any tiles at all.
+     *
+     * @return The footprint, or null if it would hang off the edge of the map.
+     */
+    private int[] findFootprint(Prop prop, int anchorIndex) {
+        if (!prop.needsRegistration()) {
+            return NO_FOOTPRINT;
+        }
+        int[] anchor = getTileCoordinates(anchorIndex);
+        if (anchor == null) {
+            return null;
+        }
+        int[] footprint = getTilesInRect(
+                anchor[0] - prop.getWidth() + 1,
+                anchor[1] - prop.getHeight() + 1,
+                prop.getWidth(), prop.getHeight()).toArray();
+
+        // Tiles outside of the map were left out of the rectangle, so a short
+        // footprint means the prop hangs off the edge.
+        if (footprint.length != prop.getWidth() * prop.getHeight()) {
+            return null;
+        }
+        return footprint;
+    }
+    
+    /**
+     * Used internally to check that no prop other than {@code owner} is
+     * registered to any of the specified tiles.
+     */
+    private boolean isFootprintFree(int[] footprint, Prop owner) {
+        for (int tileIndex : footprint) {
+            Prop current = storage.getProp(tileIndex);
+            if (current != null && current != owner) {
                 return false;
-            } else {
-                if (getTile(tileIndex).isRegistered()) {
-                    return false;
-                }
-                getTile(tileIndex).setRegistered(true);
-                getTile(tileIndex).setProp(prop);
             }
         }
-
-        // Add the new prop to the ArrayList of props
-        props.add(prop);
-
-        // Sort the list in the order of their anchors so that they are not
-        // drawn on top of one another (tall buildings, etc.)
-        sortProps();
         return true;
     }
+    
+    /**
+     * Used internally to unregister a prop from the tiles of its footprint.
+     * Tiles that have since been handed to another prop are left alone.
+     */
+    private void clearFootprint(int[] footprint, Prop owner) {
+        for (int tileIndex : footprint) {
+            if (storage.getProp(tileIndex) == owner) {
+                storage.setProp(tileIndex, null);
+            }
+        }
+    }
+    
+    /**
+     * Adds all of the specified props to the map in one operation.
+     *
+     * Each prop is placed exactly as addProp() would place it, and props that
+     * can't be placed are skipped.  Since the props are kept in draw order as
+     * they are added, this costs time proportional to the number of props
+     * rather than the number of props already on the map.
+     *
+     * @param newProps
+     * @return The number of props that were placed.
+     */
+    public int addProps(Prop[] newProps) {
+        int placed = 0;
+        for (Prop prop : newProps) {
+            if (prop != null && addProp(prop)) {
+                placed++;
+            }
+        }
+        return placed;
+    }
+    
+    /**
+     * Adds a lightweight prop of the specified kind to the map, anchored to
+     * the specified tile.
+     *
+     * Superficial templates are kept as nothing more than their id in the
+     * map's registry, the anchor and the phase, which costs a few bytes
+     * rather than a whole {@link Prop}; they can't be moved or deleted one
+     * by one, only cleared with clearArea().  Templates that need
+     * registration are placed as a new Prop instead, exactly as addProp()
+     * would place it.
+     *
+     * @param template
+     * @param anchor The index of the anchor tile.
+     * @param phase The offset, in milliseconds, added to the time the prop's
+     * animation is drawn at.
+     * @return Returns false if the prop is placed out of bounds or, if it
+     * needs registration, on another prop.
+     */
+    public boolean addPropInstance(PropTemplate template, int anchor,
+            int phase) {
+        if (anchor < 0 || anchor >= storage.size()) {
+            return false;
+        }
+        if (template.needsRegistration()) {
+            return addProp(new Prop(template, anchor));
+        }
+        field.add(anchor, registry.register(template), phase);
+        return true;
+    }
+    
+    /**
+     * Returns the number of props on the map, lightweight ones included.
+     *
+     * @return
+     */
+    public int getPropCount() {
+        return props.size() + field.size();
+    }
 
     /**
      * Deletes the specified prop from the map.
      *
+     * Only the tiles the prop was registered to are visited, so this costs
+     * time proportional to the prop's size rather than the map's.
+     *
      * @param prop
+     * @return Returns false if the prop was not on the map, or was missing
+     * from the draw order.
      */
-    public void deleteProp(Prop prop) {
-        for (int i = 0; i < tiles.length; i++) {
-            if (tiles[i].getProp().equals(prop)) {
-                tiles[i].setRegistered(false);
-            }
+    public boolean deleteProp(Prop prop) {
+        Placement placement = placements.remove(prop);
+        if (placement == null) {
+            return false;
         }
-
-        props.remove(prop);
+        clearFootprint(placement.footprint, prop);
+        if (!props.remove(prop, placement.anchor)) {
+            Globals.logWarning("A deleted prop was missing from the draw "
+                    + "order of tile " + placement.anchor + ".");
+            return false;
+        }
+        return true;
     }
-
+    
     /**
-     * Used internally to put the props in the order that they will be drawn.
+     * Moves a prop that is already on the map so that it is anchored to the
+     * specified tile.
      *
+     * The prop may overlap its own old footprint, but no other registered
+     * prop.  If it can't be moved, it stays exactly where it was.
+     *
+     * @param prop
+     * @param anchor The index of the new anchor tile.
+     * @return Returns false if the prop is not on the map, or the new
+     * position is out of bounds or on another prop.
      */
-    private void sortProps() {
-        // Create an anonymous inner class to define how props will be sorted--
-        // in this case, by their anchor.
-        Collections.sort(props, new Comparator<Prop>() {
-            @Override
-            public int compare(Prop p1, Prop p2) {
-                int prop1 = ((Prop) p1).getAnchor();
-                int prop2 = ((Prop) p2).getAnchor();
-
-                // If you reverse these two, you get trippy results where front
-                // objects get rendered in front of back objects. That said,
-                // I do not recommend you do that unless you're feeling lulzy.
-                return prop1 - prop2;
+    public boolean moveProp(Prop prop, int anchor) {
+        Placement placement = placements.get(prop);
+        if (placement == null || anchor < 0 || anchor >= storage.size()) {
+            return false;
+        }
+        int[] newFootprint = findFootprint(prop, anchor);
+        if (newFootprint == null || !isFootprintFree(newFootprint, prop)) {
+            return false;
+        }
+        
+        if (!props.remove(prop, placement.anchor)) {
+            Globals.logWarning("A moved prop was missing from the draw "
+                    + "order of tile " + placement.anchor + ".");
+            return false;
+        }
+        clearFootprint(placement.footprint, prop);
+        prop.setAnchor(anchor);
+        for (int tileIndex : newFootprint) {
+            storage.setProp(tileIndex, prop);
+        }
+        props.add(prop, anchor);
+        placements.put(prop, new Placement(anchor, newFootprint));
+        return true;
+    }
+    
+    /**
+     * Replaces a prop on the map with another, anchored to the same tile.
+     *
+     * If the new prop doesn't fit (for instance, because it is larger and
+     * runs into a neighbor), the old prop is put back and nothing changes.
+     *
+     * @param oldProp
+     * @param newProp
+     * @return Returns false if the old prop is not on the map or the new prop
+     * doesn't fit in its place.
+     */
+    public boolean replaceProp(Prop oldProp, Prop newProp) {
+        Placement placement = placements.get(oldProp);
+        if (placement == null || placements.containsKey(newProp)) {
+            return false;
+        }
+        deleteProp(oldProp);
+        newProp.setAnchor(placement.anchor);
+        if (addProp(newProp)) {
+            return true;
+        }
+        oldProp.setAnchor(placement.anchor);
+        addProp(oldProp);
+        return false;
+    }
+    
+    /**
+     * Deletes every prop that covers, or is anchored to, a tile within the
+     * specified rectangle of tile coordinates.
+     *
+     * The rectangle is clipped to the map, and only its own tiles and the
+     * footprints of the props found on them are visited.
+     *
+     * @param x The x coordinate of the rectangle's top corner.
+     * @param y The y coordinate of the rectangle's top corner.
+     * @param width
+     * @param height
+     * @return The number of props that were deleted.
+     */
+    public int clearArea(int x, int y, int width, int height) {
+        int deleted = 0;
+        for (int tileIndex : getTilesInRect(x, y, width, height).toArray()) {
+            Prop registered = storage.getProp(tileIndex);
+            if (registered != null && deleteProp(registered)) {
+                deleted++;
+            }
+            
+            // Superficial props aren't registered to any tiles, so they can
+            // only be found through their anchors.  Deleting them changes the
+            // bucket, so go through a copy of it.
+            List<Prop> anchored = props.getProps(tileIndex);
+            if (anchored != null) {
+                for (Prop prop : anchored.toArray(new Prop[anchored.size()])) {
+                    if (!deleteProp(prop)) {
+                        break;
+                    }
+                    deleted++;
+                }
             }
-        });
+            deleted += field.removeAll(tileIndex);
+        }
+        return deleted;
     }
 
     /**
@@ -583,24 +1119,62 @@ public final class TileMap {
      * {@code Direction.SOUTH} edge.
      * @param y The y coordinate (along the {@code Direction.EAST} or
      * {@code Direction.WEST} edge.
-     * @return Returns the tile index based on its coordinate.
+     * @return Returns the tile index based on its coordinate, or -1 if the
+     * coordinate lies outside of the map.
      */
     public int getTileByCoordinates(int x, int y) {
-        // First off, return -1 if they give us a negative or oversized
-        // coordinate in either direction.
-        if (x < 0 || x > xSize || y < 0 || y > ySize) {
-            return -1;
+        return getTileByCoordinates(x, y, EdgePolicy.REJECT);
+    }
+    
+    /**
+     * Gets a tile based on its coordinate, using the specified
+     * {@link EdgePolicy} for coordinates that lie outside of the map.
+     * 
+     * Tiles are stored row by row, so this is a single multiply-add.
+     *
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param policy What to do with out-of-bounds coordinates.
+     * @return Returns the tile index based on its coordinate, or -1 if the
+     * coordinate is out of bounds and the policy is {@code REJECT}.
+     */
+    public int getTileByCoordinates(int x, int y, EdgePolicy policy) {
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize) {
+            switch (policy) {
+                case CLAMP:
+                    x = (x < 0) ? 0 : ((x >= xSize) ? xSize - 1 : x);
+                    y = (y < 0) ? 0 : ((y >= ySize) ? ySize - 1 : y);
+                    break;
+                case WRAP:
+                    x = Math.floorMod(x, xSize);
+                    y = Math.floorMod(y, ySize);
+                    break;
+                default:
+                    return -1;
+            }
         }
-        int index = x;
-        for (int i = 0; i < y; i++) {
-            index += xSize;
+        return (y * xSize) + x;
+    }
+    
+    /**
+     * Converts many coordinates to tile indices at once.
+     * 
+     * @param xs The x coordinates.
+     * @param ys The y coordinates, which must be as long as {@code xs}.
+     * @param policy What to do with out-of-bounds coordinates.
+     * @return An array of tile indices in the same order as the coordinates,
+     * holding -1 for any coordinate rejected by the policy.
+     */
+    public int[] getTilesByCoordinates(int[] xs, int[] ys, EdgePolicy policy) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("Coordinate arrays must be of "
+                    + "equal length.");
         }
-
-        if (x == xSize - 1) {
-            index -= xSize;
+        int[] indices = new int[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            indices[i] = getTileByCoordinates(xs[i], ys[i], policy);
         }
-
-        return index;
+        return indices;
     }
 
     /**
@@ -608,26 +1182,61 @@ public final class TileMap {
      * coordinates of the specified tile index.
      *
      * @param index
+     * @return The coordinates, or null if the index is invalid.
      */
     public int[] getTileCoordinates(int index) {
         // First, make sure the index is a sane index.
-        if (index < 0 || index > tiles.length) {
+        if (index < 0 || index >= storage.size()) {
             return null;
         }
-
-        // Iterate through all possible coordinate combinations until you've
-        // found the correct one, then return it.
-        for (int y = 0; y < ySize; y++) {
-            for (int x = 0; x < xSize; x++) {
-                if (getTileByCoordinates(x, y) == index) {
-                    return new int[]{x, y};
-                }
+        return new int[]{index % xSize, index / xSize};
+    }
+    
+    /**
+     * Converts many tile indices to coordinates at once.
+     * 
+     * @param indices
+     * @return A two-row array where {@code [0]} holds the x coordinates and
+     * {@code [1]} the y coordinates, in the same order as the indices.  Invalid
+     * indices yield a coordinate of (-1, -1).
+     */
+    public int[][] getTileCoordinates(int[] indices) {
+        int[][] coords = new int[2][indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i];
+            if (index < 0 || index >= storage.size()) {
+                coords[0][i] = -1;
+                coords[1][i] = -1;
+            } else {
+                coords[0][i] = index % xSize;
+                coords[1][i] = index / xSize;
             }
         }
-
-        // If we're here, something went wrong--return -1, -1 for the
-        // coordinates to indicate this.
-        return new int[]{-1, -1};
+        return coords;
+    }
+    
+    /**
+     * Returns the indices of all tiles within the specified rectangle of
+     * coordinates, row by row.  Any part of the rectangle that lies outside of
+     * the map is left out.
+     * 
+     * @param x The x coordinate of the rectangle's top corner.
+     * @param y The y coordinate of the rectangle's top corner.
+     * @param width The width of the rectangle, in tiles.
+     * @param height The height of the rectangle, in tiles.
+     * @return A stream of tile indices.
+     */
+    public IntStream getTilesInRect(int x, int y, int width, int height) {
+        final int x0 = Math.max(x, 0);
+        final int x1 = Math.min(x + width, xSize);
+        int y0 = Math.max(y, 0);
+        int y1 = Math.min(y + height, ySize);
+        if (x0 >= x1 || y0 >= y1) {
+            return IntStream.empty();
+        }
+        return IntStream.range(y0, y1).flatMap(
+                row -> IntStream.range((row * xSize) + x0,
+                (row * xSize) + x1));
     }
 
     /**
@@ -636,27 +1245,15 @@ public final class TileMap {
      *
      */
     public int distance(int tile1, int tile2) {
-        // First, verify that the tiles are sane
-        int[] nonsane = {-1, -1};
-        if (getTileCoordinates(tile1) == nonsane
-                || getTileCoordinates(tile2) == nonsane
-                || getTileCoordinates(tile1) == null
-                || getTileCoordinates(tile2) == null) {
-
-            // Return -1 if they aren't.
+        // First, verify that the tiles are sane, and return -1 if they aren't.
+        if (tile1 < 0 || tile1 >= storage.size()
+                || tile2 < 0 || tile2 >= storage.size()) {
             return -1;
-
         }
 
         // Distance between two points = sqrt((x2-x1)^2 + (y2-y1)^2)
-        // We first put the x and y coordinates into small arrays for easy
-        // access, then raise them to the power of 2.
-        double[] x = {(double) getTileCoordinates(tile1)[0],
-            (double) getTileCoordinates(tile2)[0]};
-        double[] y = {(double) getTileCoordinates(tile1)[1],
-            (double) getTileCoordinates(tile2)[1]};
-        double operand1 = Math.pow((x[1] - x[0]), 2);
-        double operand2 = Math.pow((y[1] - y[0]), 2);
+        double operand1 = Math.pow((tile2 % xSize) - (tile1 % xSize), 2);
+        double operand2 = Math.pow((tile2 / xSize) - (tile1 / xSize), 2);
 
         // Get the square root of the two operands added together, and cast it
         // to an integer to prevent loss of precision.
@@ -705,6 +1302,26 @@ public final class TileMap {
      */
     public boolean randomizeFlats(double first, double second,
             double third, double fourth) {
+        return randomizeFlats(first, second, third, fourth,
+                new SplittableRandom());
+    }
+
+    /**
+     * Randomizes the flat tiles exactly like
+     * {@code randomizeFlats(first, second, third, fourth)}, but draws from the
+     * given generator, so that a seeded generator always produces the same
+     * tiles.
+     *
+     * @param first The likelihood of the first tile, from 0.0 to 1.0.
+     * @param second The likelihood of the second tile, from 0.0 to 1.0.
+     * @param third The likelihood of the third tile, from 0.0 to 1.0.
+     * @param fourth The likelihood of the fourth tile, from 0.0 to 1.0.
+     * @param rand The generator to draw from.
+     * @return Returns true upon success, and false if the parameters do not
+     * equal 1.0 in sum.
+     */
+    public boolean randomizeFlats(double first, double second,
+            double third, double fourth, SplittableRandom rand) {
         // First, make sure the arguments evaluate to 1.0 when added
         double total = first + second + third + fourth;
 
@@ -712,10 +1329,9 @@ public final class TileMap {
             return false;
         }
 
-        Random rand = new Random();
-        for (int i = 0; i < tiles.length; i++) {
+        for (int i = 0; i < storage.size(); i++) {
             // If the current tile is flat, randomize it.
-            if (tiles[i].getSlopeType() == SlopeType.NONE) {
+            if (getTileSlopeType(i) == SlopeType.NONE) {
                 // Calculate probability.  Usually, the first is the most common
                 // so we can omit that from the probability check and just use
                 // and else{} block for it later, due to the nature of
@@ -725,13 +1341,13 @@ public final class TileMap {
                 boolean frth = rand.nextDouble() <= fourth;
 
                 if (scnd) {
-                    tiles[i].setImage(tileset.getImage(1));
+                    storage.setImage(i, 1);
                 } else if (thrd) {
-                    tiles[i].setImage(tileset.getImage(2));
+                    storage.setImage(i, 2);
                 } else if (frth) {
-                    tiles[i].setImage(tileset.getImage(3));
+                    storage.setImage(i, 3);
                 } else {
-                    tiles[i].setImage(tileset.getImage(0));
+                    storage.setImage(i, 0);
                 }
             }
         }
@@ -749,13 +1365,24 @@ public final class TileMap {
         return randomizeFlats(0.5, 0.3, 0.1, 0.1);
     }
 
+    /**
+     * Randomizes the flat tiles with the default likelihoods, drawing from the
+     * given generator.
+     * @param rand The generator to draw from.
+     */
+    public boolean randomizeFlats(SplittableRandom rand) {
+        return randomizeFlats(0.5, 0.3, 0.1, 0.1, rand);
+    }
+
     /**
      * Loads an {@link Image} object as a heightmap and applies its height
      * values to the TileMap.
      *
      * The {@link Image} must be the same resolution as the TileMap, otherwise a
      * warning will be logged, and the image will be clamped. <p> For loading
-     * heightmaps via filename, see the alias function below.
+     * heightmaps via filename, see the alias function below.  Since this
+     * reads the image back from its texture, prefer building a
+     * {@link Heightmap} directly and using applyHeightmap() where possible.
      *
      * @param img The {@link Image} containing the heightmap.
      * @param minHeight The lowest point (black on the image) of the output.
@@ -763,96 +1390,73 @@ public final class TileMap {
      * @return true upon success, false upon failure.
      */
     public boolean loadHeightmap(Image img, int minHeight, int maxHeight) {
-        // First, we ensure that the dimensions of the image are sane.
-        // Throw a warning in the event of a map too small, and auto-scale to
-        // the maximum if the map is too large.
-        Image originalImage = img;
-        if (originalImage.getWidth() < MIN_X
-                || originalImage.getHeight() < MIN_Y) {
-            Globals.logWarning("Attempted to load heightmap  from image "
+        // Read every pixel once into a plain raster, and leave the rest to the
+        // heightmap.
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                Color color = img.getColor(x, y);
+                pixels[(y * width) + x] = (color.getRed() << 16)
+                        | (color.getGreen() << 8) | color.getBlue();
+            }
+        }
+        return applyHeightmap(Heightmap.fromRGB(pixels, width, height),
+                minHeight, maxHeight);
+    }
+
+    /**
+     * Applies the height values of a {@link Heightmap} to the TileMap, then
+     * interpolates the slopes between them.
+     *
+     * The heightmap must be the same resolution as the TileMap, otherwise a
+     * warning will be logged, and the heightmap will be resampled.  No
+     * textures are involved, so this works without a display.
+     *
+     * @param heightmap
+     * @param minHeight The lowest point (black on the heightmap) of the output.
+     * @param maxHeight The highest point (white on the heightmap) of the
+     * output.
+     * @return true upon success, false upon failure.
+     */
+    public boolean applyHeightmap(Heightmap heightmap,
+            int minHeight, int maxHeight) {
+        // First, we ensure that the dimensions of the heightmap are sane.
+        if (heightmap.getWidth() < MIN_X || heightmap.getHeight() < MIN_Y) {
+            Globals.logWarning("Attempted to load heightmap "
                     + " which is less than the minimum map size.");
             return false;
-        } else if (originalImage.getWidth() > MAX_X
-                || originalImage.getHeight() > MAX_Y) {
-            Globals.logWarning("Attempted to load heightmap from image "
-                    + " which is greater than the maximum map size. "
-                    + "Automatically resizing to " + MAX_X + "x" + MAX_Y
-                    + "...");
-            originalImage = originalImage.getScaledCopy(MAX_X, MAX_Y);
         }
 
         // Now let's make sure the heightmap dimensions match the TileMap
         // dimensions.
-        if (originalImage.getWidth() != xSize
-                || originalImage.getHeight() != ySize) {
+        if (heightmap.getWidth() != xSize || heightmap.getHeight() != ySize) {
             Globals.logWarning("Attempted to load heightmap which is not"
                     + " equal to the size of the TileMap.  Clamping...");
-            originalImage = originalImage.getScaledCopy(xSize, ySize);
+            heightmap = heightmap.resample(xSize, ySize);
         }
 
         canDraw = false;
 
-        // If we're here, the image is sane.  Let's make a new buffer to
-        // accept the color-averaging process.
-        ImageBuffer colorAverager = new ImageBuffer(
-                originalImage.getWidth(), originalImage.getHeight());
-        Image heightmap;
-
-        // Start iterating through the pixels of the original image and copy
-        // the color values into temporary variables to be averaged.
-        for (int x = 0; x < originalImage.getHeight(); x++) {
-            for (int y = 0; y < originalImage.getWidth(); y++) {
-                // Get the color of the current pixel.
-                Color originalColor = originalImage.getColor(x, y);
-
-                // Average the color of the current pixel.
-                int red = originalColor.getRed();
-                int green = originalColor.getGreen();
-                int blue = originalColor.getBlue();
-                int average = (red + green + blue) / 3;
-
-                // Set the color of the corresponding pixel in the 
-                colorAverager.setRGBA(x, y,
-                        average,
-                        average,
-                        average,
-                        average);
-            }
+        // The heightmap is laid out row by row, exactly like the map itself.
+        int[] heights = heightmap.toHeights(minHeight, maxHeight);
+        for (int i = 0; i < heights.length; i++) {
+            setTileHeight(i, heights[i]);
         }
 
-        // The heightmap is now stored in its own image.
-        heightmap = colorAverager.getImage();
-
-        // Now let's iterate through the heightmap and set the height values
-        // accordingly (while clamping them between min and max).
-        for (int x = 0; x < heightmap.getWidth(); x++) {
-            for (int y = 0; y < heightmap.getHeight(); y++) {
-                // The equation is as follows:
-                // height = ((averageColor/255)*(maximum-minimum))+minimum
-                float clampedColor = (heightmap.getColor(x, y).getRed()
-                        / 255.0f);
-                setTileHeight(getTileByCoordinates(x, y),
-                        ((int) (clampedColor * (maxHeight - minHeight))
-                        + minHeight));
-            }
-        }
-
-        // For whatever reason, the above loop doesn't affect the last tile.
-        // TODO: Fix this.  Probably something wrong with
-        // getTileByCoordinates(), but I'm really not sure what just yet.
-        float tempClampedColor = (heightmap.getColor(xSize - 1, ySize - 1)
-                .getRed() / 255.0f);
-        setTileHeight(tiles.length - 1,
-                ((int) (tempClampedColor * (maxHeight - minHeight))
-                + minHeight));
-
         // Now we fix the heights in case there are huge discrepencies that
         // cannot be interpolated, and return from the function if the
         // discrepencies are too great.
-        if (!checkHeights(10)) {
+        int adjusted = relaxHeights(10);
+        if (adjusted < 0) {
+            Globals.logWarning("Heightmap discrepancies could not be fixed "
+                    + "within the relaxation budget.");
             resetHeights();
             return false;
         }
+        Globals.logMessage("Lowered " + adjusted
+                + " tiles to fit the heightmap to the terrain.");
 
         // Finally, we fix any of the tiles that have two or more neighbors
         // that equal a height value different than its own, and adjust it
@@ -864,19 +1468,13 @@ public final class TileMap {
         // interpolation.  Here goes nothing...
         interpolateSlope();
         
-        // Tile 0 Interpolation Fix -- Sometimes the first tile in the list
-        // gets an incorrect slope for unknown reasons.  This fixes the issue.
-        int neighboringTileSouth = getNeighbor(0, Direction.SOUTH);
-        if (getTileHeight(0) == getTileHeight(neighboringTileSouth)
-                && getTileSlopeType(neighboringTileSouth) ==
-                SlopeType.TOP_DIAGONAL) {
-            setTileSlope(0, SlopeType.STANDARD,
-                    DirectionUtils
-                    .clockwise(getTileSlopeDirection(neighboringTileSouth)));
-        }
+        fixFirstTileSlope();
 
-        // The slope has been interpolated.  The map is usable again.
-        canDraw = true;
+        // The slope has been interpolated.  The map is usable again, and any
+        // chunks the heightmap left uniform can give back their memory.
+        storage.recomputeHeightBounds();
+        storage.compact();
+        canDraw = !tileset.isHeadless();
 
         // Return true to indicate success.
         return true;
@@ -895,7 +1493,110 @@ public final class TileMap {
      */
     public boolean loadHeightmap(String filename,
             int minHeight, int maxHeight) throws SlickException {
-        return loadHeightmap(new Image(filename), minHeight, maxHeight);
+        Heightmap heightmap;
+        try {
+            heightmap = Heightmap.read(new File(filename));
+        } catch (IOException e) {
+            throw new SlickException("Failed to read heightmap " + filename,
+                    e);
+        }
+        return applyHeightmap(heightmap, minHeight, maxHeight);
+    }
+
+    /**
+     * Used internally to patch up the slope of the first tile after slopes
+     * are interpolated.
+     */
+    void fixFirstTileSlope() {
+        // Tile 0 Interpolation Fix -- Sometimes the first tile in the list
+        // gets an incorrect slope for unknown reasons.  This fixes the issue.
+        int neighboringTileSouth = getNeighbor(0, Direction.SOUTH);
+        if (getTileHeight(0) == getTileHeight(neighboringTileSouth)
+                && getTileSlopeType(neighboringTileSouth) ==
+                SlopeType.TOP_DIAGONAL) {
+            setTileSlope(0, SlopeType.STANDARD,
+                    DirectionUtils
+                    .clockwise(getTileSlopeDirection(neighboringTileSouth)));
+        }
+    }
+
+    /**
+     * Raises every tile in a rectangle of tile coordinates by one unit.
+     *
+     * The terrain around the rectangle is raised as needed to keep it
+     * interpolatable, and slopes are interpolated again, but only near the
+     * tiles that changed.  The rectangle is clipped to the map.
+     *
+     * @param x The x coordinate of the rectangle's top corner.
+     * @param y The y coordinate of the rectangle's top corner.
+     * @param width
+     * @param height
+     * @return The number of height changes made, including the surrounding
+     * terrain.
+     */
+    public int raiseTerrain(int x, int y, int width, int height) {
+        return editor.raise(x, y, width, height, 1);
+    }
+
+    /**
+     * Lowers every tile in a rectangle of tile coordinates by one unit.
+     *
+     * Works just like raiseTerrain(), in the other direction.
+     *
+     * @param x The x coordinate of the rectangle's top corner.
+     * @param y The y coordinate of the rectangle's top corner.
+     * @param width
+     * @param height
+     * @return The number of height changes made, including the surrounding
+     * terrain.
+     */
+    public int lowerTerrain(int x, int y, int width, int height) {
+        return editor.raise(x, y, width, height, -1);
+    }
+
+    /**
+     * Sets every tile in a rectangle of tile coordinates to the specified
+     * height.
+     *
+     * The terrain around the rectangle is raised or lowered as needed to keep
+     * it interpolatable, and slopes are interpolated again, but only near the
+     * tiles that changed.  The rectangle is clipped to the map.
+     *
+     * @param x The x coordinate of the rectangle's top corner.
+     * @param y The y coordinate of the rectangle's top corner.
+     * @param width
+     * @param height
+     * @param level The new height of the tiles.
+     * @return The number of height changes made, including the surrounding
+     * terrain.
+     */
+    public int levelTerrain(int x, int y, int width, int height, int level) {
+        return editor.level(x, y, width, height, level);
+    }
+
+    /**
+     * Sets every tile in a rectangle of tile coordinates to the average
+     * height of the rectangle, rounded to the nearest unit.
+     *
+     * @see TileMap#levelTerrain(int, int, int, int, int)
+     * @param x The x coordinate of the rectangle's top corner.
+     * @param y The y coordinate of the rectangle's top corner.
+     * @param width
+     * @param height
+     * @return The number of height changes made, including the surrounding
+     * terrain.
+     */
+    public int flattenTerrain(int x, int y, int width, int height) {
+        int[] area = getTilesInRect(x, y, width, height).toArray();
+        if (area.length == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (int i : area) {
+            total += storage.getHeight(i);
+        }
+        int average = (int) Math.round((double) total / area.length);
+        return editor.level(x, y, width, height, average);
     }
 
     /**
@@ -918,56 +1619,30 @@ public final class TileMap {
      * @param height
      */
     public void resetHeights(int height) {
-        for (int i = 0; i < tiles.length; i++) {
+        for (int i = 0; i < storage.size(); i++) {
             setTileHeight(i, height);
             setTileSlope(i, SlopeType.NONE, Direction.NORTH);
         }
+        storage.recomputeHeightBounds();
     }
 
     /**
-     * Checks and fixes the height values of the map in case there are any
-     * height discrepancies too far apart to interpolate.
-     *
-     *
-     * @param maxAttempts The max number of times the method will check the
-     * heights.
-     * @return Returns true upon success.
-     */
-    private boolean checkHeights(int maxAttempts) {
-        boolean flag;
-        int attempts = 0;
-        do {
-            flag = false;
-            for (int i = 0; i < tiles.length; i++) {
-                if (checkNeighborsForDiscrepancy(i)) {
-                    setTileHeight(i, getTileHeight(i) - 1);
-                    flag = true;
-                }
-            }
-            attempts++;
-        } while (flag || attempts == maxAttempts);
-
-        return true;
-    }
-
-    /**
+     * Fixes the height values of the map in case there are any height
+     * discrepancies too far apart to interpolate, by lowering tiles until
+     * none is more than one unit above any of its neighbors.
      *
-     * Used by {@code checkHeights()} to check neighboring tiles for large
-     * height discrepancies.
+     * Only the tiles that need fixing (and their neighbors) are visited; see
+     * {@link HeightRelaxer}.
      *
-     * @param index
-     * @return Returns true if a discrepancy is found, false if not.
+     * @param maxPasses The budget, in multiples of the number of tiles on the
+     * map.  Relaxing never visits more than twice as many tiles as the map
+     * holds, so anything above 2 always succeeds.
+     * @return Returns the number of tiles that were lowered, or -1 if the
+     * budget ran out.
      */
-    private boolean checkNeighborsForDiscrepancy(int index) {
-        for (Direction dir : Direction.values()) {
-            int neighbor = getNeighbor(index, dir);
-            if (neighbor != -1) {
-                if (getTileHeight(neighbor) - getTileHeight(index) < -1) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    private int relaxHeights(int maxPasses) {
+        return new HeightRelaxer(storage, ySize)
+                .relax((long) maxPasses * storage.size());
     }
 
     /**
@@ -977,7 +1652,7 @@ public final class TileMap {
      * potentially affecting large areas of the terrain.
      */
     private void fixOrphans() {
-        for (int i = 0; i < tiles.length; i++) {
+        for (int i = 0; i < storage.size(); i++) {
             if (isOrphaned(i) > 0) {
                 setTileHeight(i, getTileHeight(i) - 1);
             } else if (isOrphaned(i) < 0) {
@@ -993,7 +1668,7 @@ public final class TileMap {
      * @return Returns an integer whose sign indicates the direction in which
      * the tile's "orphanness" occurs.
      */
-    private int isOrphaned(int index) {
+    int isOrphaned(int index) {
         int sign = 0;
         for (Direction dir : Direction.values()) {
             // We're disregarding corner neighbors because those can vary
@@ -1029,216 +1704,134 @@ public final class TileMap {
     /**
      * Used internally to determine the appropriate slope values for a terrain,
      * given its height values, by means of "passes" (iterations) through the
-     * list of tiles.
+     * list of tiles.  The passes are split across cores by
+     * {@link SlopeInterpolator}.
      */
     private void interpolateSlope() {
-        boolean corner = false;
-        Direction slopeDirection = null;
-
-        // STANDARD pass
-        for (int i = 0; i < tiles.length; i++) {
-            for (Direction dir : Direction.values()) {
-                if (dir != Direction.UP && dir != Direction.LEFT
-                        && dir != Direction.DOWN && dir != Direction.RIGHT) {
-                    if (getNeighbor(i, dir) != -1) {
-                        if (!corner) {
-                            if (getTileHeight(getNeighbor(i, dir))
-                                    > getTileHeight(i)) {
-                                if (slopeDirection == null) {
-                                    setTileSlope(i, SlopeType.STANDARD,
-                                            DirectionUtils.getInverse(dir));
-                                    slopeDirection = dir;
-                                } else {
-                                    corner = true;
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            corner = false;
-            slopeDirection = null;
-        }
-
-        List<Integer> bottomCorners = new ArrayList<>();
-
-        // BOTTOM_DIAGONAL pass
-        for (int i = 0; i < tiles.length; i++) {
-            // First, we determine if the tile in question is flat in terms
-            // of the slope
-            if (getTileSlopeType(i) == SlopeType.NONE) {
-                // If we're here, it's flat.  Iterate through the immediate
-                // surrounding tiles (except for diagonal immediates--those
-                // aren't a factor)
-                for (Direction dir : Direction.values()) {
-                    if (dir != Direction.UP && dir != Direction.LEFT
-                            && dir != Direction.DOWN && dir != Direction.RIGHT) {
-                        // This crazy conditional block identifies tiles that
-                        // have neighboring tiles of a STANDARD SlopeType,
-                        // where the neighboring tiles equal the slope of the
-                        // tile in question (tiles[i]).
-                        if (getTileSlopeType(getNeighbor(i, dir))
-                                == SlopeType.STANDARD
-                                && getTileSlopeType(getNeighbor(i,
-                                DirectionUtils.clockwise(dir, 2)))
-                                == SlopeType.STANDARD
-                                && getTileHeight(getNeighbor(i, dir))
-                                == getTileHeight(i)
-                                && getTileHeight(getNeighbor(i,
-                                DirectionUtils.clockwise(dir, 2)))
-                                == getTileHeight(i)) {
-                            // One more thing to check: if the neighboring tiles
-                            // used to validate this tile have exactly 270 deg.
-                            // of slope direction difference
-                            Direction neighbor1 = getTileSlopeDirection(
-                                    getNeighbor(i, dir));
-                            Direction neighbor2 = getTileSlopeDirection(
-                                    getNeighbor(i, DirectionUtils.clockwise(dir,
-                                    2)));
-                            int difference = DirectionUtils
-                                    .degreeDifferenceClockwise(neighbor1,
-                                    neighbor2);
-                            if (difference == 270) {
-                                setTileSlope(i, SlopeType.BOTTOM_DIAGONAL,
-                                        DirectionUtils.getInverse(
-                                        DirectionUtils.clockwise(dir)));
-                            }
-                        }
-                    }
-                }
-            }
+        new SlopeInterpolator(this, storage, ySize).interpolate();
+    }
+    
+    /**
+     * Returns the number of tiles contained in this map.
+     * @return 
+     */
+    public int getTileCount() {
+        return storage.size();
+    }
+    
+    /**
+     * Pages the map's tiles out to a temporary file, keeping only the most
+     * recently used chunks of 32 by 32 tiles in memory.  Chunks are read back
+     * transparently whenever their tiles are drawn or changed, so the budget
+     * should comfortably exceed the number of chunks on screen.  While paging
+     * is enabled, the map must only be used from one thread at a time.
+     *
+     * @param residentChunks The most chunks to keep in memory at once.
+     * @throws SlickException If the file could not be created.
+     */
+    public void enablePaging(int residentChunks) throws SlickException {
+        File file;
+        try {
+            file = File.createTempFile("isomatrix", ".chunks");
+        } catch (IOException e) {
+            throw new SlickException("Failed to create a paging file", e);
         }
-
-        // TOP_DIAGONAL pass
-        for (int i = 0; i < tiles.length; i++) {
-            // At this stage in the slope interpolation, tiles that -should- be
-            // TOP_DIAGONAL in slope are actually botched attempts at adding a
-            // STANDARD type of slope.  For this reason, we iterate through the
-            // list of current known STANDARD slope tiles.
-            if (getTileSlopeType(i) == SlopeType.STANDARD) {
-                //System.out.println(i + " is appropriate");
-                for (Direction dir : Direction.values()) {
-                    if (dir != Direction.UP && dir != Direction.LEFT
-                            && dir != Direction.DOWN
-                            && dir != Direction.RIGHT) {
-                        if (getNeighbor(i, dir) != -1 && getNeighbor(i,
-                                DirectionUtils.clockwise(dir, 2)) != -1) {
-                            int neighbor1 = getNeighbor(i, dir);
-                            int neighbor2 = getNeighbor(i, DirectionUtils
-                                    .clockwise(dir, 2));
-                            SlopeType neighbor1SlopeType =
-                                    getTileSlopeType(neighbor1);
-                            SlopeType neighbor2SlopeType =
-                                    getTileSlopeType(neighbor2);
-                            int height1 = getTileHeight(neighbor1);
-                            int height2 = getTileHeight(neighbor2);
-
-                            if ((neighbor1SlopeType == SlopeType.STANDARD
-                                    || neighbor1SlopeType == SlopeType.BOTTOM_DIAGONAL
-                                    || neighbor1SlopeType == SlopeType.NONE)
-                                    && (neighbor2SlopeType == SlopeType.STANDARD
-                                    || neighbor2SlopeType == SlopeType.BOTTOM_DIAGONAL
-                                    || neighbor2SlopeType == SlopeType.NONE)
-                                    && height1 > getTileHeight(i)
-                                    && height2 > getTileHeight(i)) {
-                                setTileSlope(i, SlopeType.TOP_DIAGONAL,
-                                        DirectionUtils.clockwise(
-                                        DirectionUtils.getInverse(dir)));
-                            }
-                        }
-                    }
-                }
-            }
+        enablePaging(file, true, residentChunks);
+    }
+    
+    /**
+     * Pages the map's tiles out to the specified file, which is created or
+     * overwritten, exactly like {@code enablePaging(int)}.
+     *
+     * @param file
+     * @param residentChunks The most chunks to keep in memory at once.
+     * @throws SlickException If the file could not be created.
+     */
+    public void enablePaging(File file, int residentChunks)
+            throws SlickException {
+        enablePaging(file, false, residentChunks);
+    }
+    
+    private void enablePaging(File file, boolean temporary,
+            int residentChunks) throws SlickException {
+        try {
+            storage.enablePaging(file, temporary, residentChunks);
+        } catch (IOException e) {
+            throw new SlickException("Failed to page to " + file, e);
         }
-
-        // BOTTOM_DIAGONAL handling, second pass
-        // This pass occurs to patch issues with flat tiles that may be left
-        // flat after the first pass due to TOP_DIAGONAL interpolation as of
-        // then not happening.  Now that TOP_DIAGONAL interpolation has occurred
-        // it's possible to fix these holes, because they have been isolated by
-        // the previous passes.
-        for (int i = 0; i < tiles.length; i++) {
-            if (getTileSlopeType(i) == SlopeType.NONE) {
-                for (Direction dir : Direction.values()) {
-                    if (dir != Direction.UP && dir != Direction.LEFT
-                            && dir != Direction.DOWN
-                            && dir != Direction.RIGHT) {
-                        if (getNeighbor(i, dir) != -1 && getNeighbor(i,
-                                DirectionUtils.clockwise(dir, 2)) != -1) {
-                            // If we're here, we have narrowed the search down
-                            // to tiles that have valid cardinal neighbor pairs.
-                            // Let's check these pairs.
-                            int neighbor1 = getNeighbor(i, dir);
-                            int neighbor2 = getNeighbor(i, DirectionUtils
-                                    .clockwise(dir, 2));
-                            SlopeType neighbor1SlopeType =
-                                    getTileSlopeType(neighbor1);
-                            SlopeType neighbor2SlopeType =
-                                    getTileSlopeType(neighbor2);
-                            int height1 = getTileHeight(neighbor1);
-                            int height2 = getTileHeight(neighbor2);
-                            if (height1 == height2 && (neighbor1SlopeType
-                                    == SlopeType.STANDARD || neighbor1SlopeType
-                                    == SlopeType.TOP_DIAGONAL)
-                                    && (neighbor2SlopeType
-                                    == SlopeType.STANDARD || neighbor2SlopeType
-                                    == SlopeType.TOP_DIAGONAL)
-                                    && neighbor1SlopeType != neighbor2SlopeType
-                                    && height1 == getTileHeight(i)
-                                    && height2 == getTileHeight(i)) {
-                                setTileSlope(i, SlopeType.BOTTOM_DIAGONAL,
-                                        DirectionUtils.getInverse(
-                                        DirectionUtils.clockwise(dir)));
-                            }
-                        }
-                    }
-                }
-            }
+    }
+    
+    /**
+     * Reads every paged-out chunk back into memory and stops paging.
+     *
+     * @throws SlickException If the paging file could not be closed.
+     */
+    public void disablePaging() throws SlickException {
+        try {
+            storage.disablePaging();
+        } catch (IOException e) {
+            throw new SlickException("Failed to close the paging file", e);
         }
-
-        // BOTTOM_DIAGONAL third and final pass
-        // Basically identical to the second pass except it accounts for
-        // extra little inconsistencies left behind by the TOP_DIAGONAL pass.
-        for (int i = 0; i < tiles.length; i++) {
-            if (getTileSlopeType(i) == SlopeType.NONE) {
-                for (Direction dir : Direction.values()) {
-                    if (dir != Direction.UP && dir != Direction.LEFT
-                            && dir != Direction.DOWN
-                            && dir != Direction.RIGHT) {
-                        if (getNeighbor(i, dir) != -1 && getNeighbor(i,
-                                DirectionUtils.clockwise(dir, 2)) != -1) {
-                            int neighbor1 = getNeighbor(i, dir);
-                            int neighbor2 = getNeighbor(i, DirectionUtils
-                                    .clockwise(dir, 2));
-                            SlopeType neighbor1SlopeType =
-                                    getTileSlopeType(neighbor1);
-                            SlopeType neighbor2SlopeType =
-                                    getTileSlopeType(neighbor2);
-                            int height1 = getTileHeight(neighbor1);
-                            int height2 = getTileHeight(neighbor2);
-                            if (height1 == height2
-                                    && height1 == getTileHeight(i)
-                                    && height2 == getTileHeight(i)
-                                    && neighbor1SlopeType
-                                    == SlopeType.TOP_DIAGONAL
-                                    && neighbor1SlopeType
-                                    == neighbor2SlopeType) {
-                                setTileSlope(i, SlopeType.BOTTOM_DIAGONAL,
-                                        DirectionUtils.getInverse(
-                                        DirectionUtils.clockwise(dir)));
-                            }
-                        }
-                    }
-                }
-            }
+    }
+    
+    /**
+     * Returns true if the map's tiles are being paged to a file.
+     */
+    public boolean isPaging() {
+        return storage.getPager() != null;
+    }
+    
+    /**
+     * Changes the most chunks kept in memory at once while paging.  Lowering
+     * it takes effect as chunks are next accessed.
+     *
+     * @param residentChunks
+     */
+    public void setResidentChunkBudget(int residentChunks) {
+        if (storage.getPager() != null) {
+            storage.getPager().setBudget(residentChunks);
         }
     }
     
     /**
-     * Returns the number of tiles contained in this map.
-     * @return 
+     * Returns the number of chunks currently held in memory while paging, or
+     * -1 if paging is disabled.
      */
-    public int getTileCount() {
-        return tiles.length;
+    public int getResidentChunkCount() {
+        ChunkPager pager = storage.getPager();
+        return (pager == null) ? -1 : pager.getResidentCount();
+    }
+    
+    /**
+     * Returns the number of tile accesses that found their chunk in memory
+     * since paging was enabled.
+     */
+    public long getPageHits() {
+        ChunkPager pager = storage.getPager();
+        return (pager == null) ? 0 : pager.getHits();
+    }
+    
+    /**
+     * Returns the number of times a chunk had to be read back from the paging
+     * file since paging was enabled.
+     */
+    public long getPageMisses() {
+        ChunkPager pager = storage.getPager();
+        return (pager == null) ? 0 : pager.getMisses();
+    }
+    
+    /**
+     * Where a prop was placed on the map: the anchor it was indexed under and
+     * the tiles it was registered to.
+     */
+    private static final class Placement {
+        
+        final int anchor;
+        final int[] footprint;
+        
+        Placement(int anchor, int[] footprint) {
+            this.anchor = anchor;
+            this.footprint = footprint;
+        }
     }
 }
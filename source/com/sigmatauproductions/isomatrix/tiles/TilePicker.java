@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+/**
+ * Finds the tile drawn underneath a point on the screen by inverting the
+ * isometric projection of a {@link TileMap}, instead of testing every tile.
+ * 
+ * A tile at coordinate (x, y) is drawn at a horizontal position determined
+ * only by {@code u = x - y}, and a vertical position determined by
+ * {@code v = x + y} and the tile's altitude.  A point therefore falls within
+ * the horizontal span of just two values of {@code u}, and within the
+ * vertical span of a short range of {@code v} bounded by the lowest and
+ * highest tiles of the map.  Exactly one tile of each {@code v} in that range
+ * lines up with one of the two {@code u} values, so only that column of
+ * candidates is tested.
+ * <p>
+ * Candidates are walked front-to-back (from the highest {@code v} down),
+ * which is also descending draw order, so the first tile with an opaque pixel
+ * under the point is the one drawn on top of the others--hills in front
+ * correctly hide the tiles behind them.  Opacity comes from the alpha masks
+ * precomputed by the {@link Tileset}.
+ *
+ * @author sigtau
+ */
+final class TilePicker {
+    
+    /**
+     * The map tiles are picked from.
+     */
+    private final TileMap map;
+    
+    /**
+     * Creates a picker for the specified map.
+     * 
+     * @param map 
+     */
+    TilePicker(TileMap map) {
+        this.map = map;
+    }
+    
+    /**
+     * Returns the index of the topmost tile with an opaque pixel at the
+     * specified local (offset-free) position, or -1 if there is none.
+     * 
+     * @param localX
+     * @param localY
+     * @return The index of the tile, or -1.
+     */
+    int pick(float localX, float localY) {
+        Tileset tileset = map.getTileset();
+        TileStorage storage = map.getStorage();
+        int width = map.getWidth();
+        int height = map.getHeight();
+        int tileWidth = tileset.getTileWidth();
+        int tileHeight = tileset.getTileHeight();
+        int heightOffset = tileset.getHeightOffset();
+        int a = map.getAdjustmentFactorX();
+        int b = map.getAdjustmentFactorY();
+        if (a <= 0 || b <= 0) {
+            return -1;
+        }
+        
+        // Tiles are tested against the point nudged by one pixel, the same
+        // way Tile.isMouseOver() does it.
+        float px = localX + 1;
+        float py = localY + 1;
+        
+        // The two columns of tiles whose horizontal span may hold the point.
+        int u0 = (int) Math.floor(px / a);
+        
+        // The range of rows whose vertical span may hold the point, widened
+        // by how far the lowest and highest tiles are raised or lowered.
+        int lowestZ = -storage.getHighestHeight() * heightOffset;
+        int highestZ = -storage.getLowestHeight() * heightOffset;
+        int vMax = (int) Math.floor((py - lowestZ) / b);
+        int vMin = (int) Math.ceil((py - highestZ - tileHeight) / b);
+        vMax = Math.min(vMax, (width - 1) + (height - 1));
+        vMin = Math.max(vMin, 0);
+        
+        for (int v = vMax; v >= vMin; v--) {
+            // Only one of the two columns has the same parity as the row,
+            // and so only one of them holds an actual tile in this row.
+            int u = ((u0 + v) & 1) == 0 ? u0 : u0 - 1;
+            int x = (u + v) >> 1;
+            int y = (v - u) >> 1;
+            if (x < 0 || y < 0 || x >= width || y >= height) {
+                continue;
+            }
+            
+            int index = (y * width) + x;
+            float relativeX = px - (a * u);
+            float relativeY = py - ((b * v)
+                    - (storage.getHeight(index) * heightOffset));
+            if (relativeX > 0 && relativeY > 0 && relativeX < tileWidth
+                    && relativeY < tileHeight
+                    && tileset.isOpaque(storage.getImage(index),
+                    (int) relativeX, (int) relativeY)) {
+                return index;
+            }
+        }
+        
+        return -1;
+    }
+}
@@ -0,0 +1,984 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+import com.sigmatauproductions.isomatrix.props.Prop;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The primitive-array backing store for the tiles of a {@link TileMap}.
+ *
+ * Rather than keeping one {@link Tile} object (and its {@link Transform},
+ * {@link Slope}, image and color) per tile, each property of a tile is kept in
+ * its own primitive arrays.  Heights, slopes and tileset image indices are
+ * stored as bytes and the color filter as a packed RGB int, which is what
+ * makes the maximum map sizes usable.  {@link Tile} objects handed out by the
+ * map are only views over this storage.
+ * <p>
+ * The map is cut into square chunks of {@code CHUNK_SIZE} tiles a side, and
+ * each property of each chunk is allocated separately, only once its tiles
+ * stop all having the same value.  Until then the chunk costs a single value,
+ * so an untouched map of any size costs next to nothing, and a map that only
+ * has its heights changed never allocates colors.  Tiles are still addressed
+ * by their index in the map; chunks are only an implementation detail.
+ * <p>
+ * Chunks can also be paged out to a file by a {@link ChunkPager}, keeping
+ * only a budget of recently used ones in memory.  Paged-out chunks are read
+ * back in transparently the next time one of their tiles is accessed.  While
+ * paging is enabled, the storage must only be used by one thread at a time.
+ * <p>
+ * A snapshot of the storage can be taken for another thread to read, such as
+ * to save the map in the background.  Taking one only copies the tables of
+ * chunk arrays, not the arrays themselves; instead, the first change to a
+ * chunk after a snapshot copies that chunk's array before writing to it, so
+ * the arrays a snapshot holds never change under it.
+ * <p>
+ * The slope of a tile is packed into a single byte: the ordinal of its
+ * {@link SlopeType} in the upper four bits and the ordinal of its
+ * {@link Direction} in the lower four.
+ *
+ * @author sigtau
+ */
+final class TileStorage {
+    
+    /**
+     * The lowest height a tile can be stored at.
+     */
+    static final int MIN_HEIGHT = Byte.MIN_VALUE;
+    
+    /**
+     * The highest height a tile can be stored at.
+     */
+    static final int MAX_HEIGHT = Byte.MAX_VALUE;
+    
+    /**
+     * The packed RGB value of {@link Tile#NORMAL_COLOR}.
+     */
+    static final int NORMAL_TINT = 0xFFFFFF;
+    
+    /**
+     * The base two logarithm of the width and height of a chunk.
+     */
+    static final int CHUNK_SHIFT = 5;
+    
+    /**
+     * The width and height of a chunk, in tiles.
+     */
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    
+    /**
+     * The number of bits a tile's position within its chunk takes up in a
+     * location, as returned by locate().
+     */
+    private static final int LOCAL_BITS = 2 * CHUNK_SHIFT;
+    
+    private static final int LOCAL_MASK = (1 << LOCAL_BITS) - 1;
+    
+    /**
+     * The number of tiles in a chunk.
+     */
+    private static final int CHUNK_TILES = 1 << LOCAL_BITS;
+    
+    /**
+     * Cached copy of {@code SlopeType.values()}, used for unpacking slopes
+     * without cloning the array every time.
+     */
+    private static final SlopeType[] SLOPE_TYPES = SlopeType.values();
+    
+    /**
+     * Cached copy of {@code Direction.values()}, used for unpacking slopes
+     * without cloning the array every time.
+     */
+    private static final Direction[] DIRECTIONS = Direction.values();
+    
+    /**
+     * The width and height of the map, in tiles.
+     */
+    private final int width;
+    private final int height;
+    
+    /**
+     * The number of tiles held by this storage.
+     */
+    private final int size;
+    
+    /**
+     * The number of chunks across the width of the map.
+     */
+    private final int chunksX;
+    
+    /**
+     * Every tile lookup has to divide the tile's index by the width of the
+     * map, which is done as a multiplication by this rounded-up reciprocal
+     * and a shift instead.  The shift is large enough for the result to be
+     * exact for every non-negative int.
+     */
+    private final long rowReciprocal;
+    private final int rowShift;
+    
+    /**
+     * The normalized height of every tile.
+     */
+    private final ByteLayer heights;
+    
+    /**
+     * The packed {@link SlopeType} and {@link Direction} of every tile.
+     */
+    private final ByteLayer slopes;
+    
+    /**
+     * The index of every tile's image within the map's {@link Tileset}.
+     */
+    private final ByteLayer images;
+    
+    /**
+     * The packed RGB color filter of every tile.
+     */
+    private final IntLayer tints;
+    
+    /**
+     * The props registered to the tiles of every chunk, or null for chunks
+     * without any.  Only allocated once the first prop is registered, since
+     * most maps are largely prop-free.
+     */
+    private Prop[][] props = null;
+    
+    /**
+     * The pager holding chunks that don't fit in memory, or null if paging is
+     * disabled.
+     */
+    private ChunkPager pager = null;
+    
+    /**
+     * A height no tile is lower than.  Only ever widened by setHeight(), so it
+     * may be lower than the actual lowest tile until recomputeHeightBounds()
+     * is called.
+     */
+    private int lowestHeight = 0;
+    
+    /**
+     * A height no tile is higher than.  Only ever widened by setHeight(), so
+     * it may be higher than the actual highest tile until
+     * recomputeHeightBounds() is called.
+     */
+    private int highestHeight = 0;
+    
+    /**
+     * Creates storage for a map of the specified size, all flat, at a height
+     * of zero, using the first tileset image and the normal color.  Nothing
+     * is allocated per tile until tiles are changed.
+     * 
+     * @param width
+     * @param height
+     */
+    TileStorage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.size = width * height;
+        this.rowShift = 31 + (32 - Integer.numberOfLeadingZeros(width - 1));
+        this.rowReciprocal = ((1L << rowShift) + width - 1) / width;
+        this.chunksX = (width + CHUNK_MASK) >> CHUNK_SHIFT;
+        int chunksY = (height + CHUNK_MASK) >> CHUNK_SHIFT;
+        int chunks = chunksX * chunksY;
+        heights = new ByteLayer(chunks, (byte) 0);
+        slopes = new ByteLayer(chunks, (byte) 0);
+        images = new ByteLayer(chunks, (byte) 0);
+        tints = new IntLayer(chunks, NORMAL_TINT);
+    }
+    
+    /**
+     * Used internally to create a snapshot of the specified storage, sharing
+     * its chunk arrays.
+     */
+    private TileStorage(TileStorage source) {
+        this.width = source.width;
+        this.height = source.height;
+        this.size = source.size;
+        this.rowShift = source.rowShift;
+        this.rowReciprocal = source.rowReciprocal;
+        this.chunksX = source.chunksX;
+        this.heights = source.heights.share();
+        this.slopes = source.slopes.share();
+        this.images = source.images.share();
+        this.tints = source.tints.share();
+        this.lowestHeight = source.lowestHeight;
+        this.highestHeight = source.highestHeight;
+    }
+    
+    /**
+     * Returns a snapshot of the heights, slopes, images and tints of every
+     * tile, which later changes to this storage don't affect.  The snapshot
+     * may be read from any one other thread, but must never be written to.
+     * Registered props are not part of it.
+     * 
+     * @throws IllegalStateException If paging is enabled, since paged-out
+     * chunks can only be read back by the thread using the storage.
+     */
+    TileStorage snapshot() {
+        if (pager != null) {
+            throw new IllegalStateException("Cannot take a snapshot of "
+                    + "paged storage.");
+        }
+        return new TileStorage(this);
+    }
+    
+    /**
+     * Returns the number of tiles held by this storage.
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the width of the map, in tiles.
+     */
+    int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the height of the map, in tiles.
+     */
+    int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns where the specified tile is kept: the index of its chunk in the
+     * upper bits, and its position within the chunk in the lower LOCAL_BITS.
+     * An index outside the map would land in the padding of the edge chunks,
+     * so it throws, just as indexing the old array of tiles did.
+     */
+    private int locate(int index) {
+        if (index < 0 || index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        int y = (int) ((index * rowReciprocal) >>> rowShift);
+        int x = index - (y * width);
+        int chunk = ((y >> CHUNK_SHIFT) * chunksX) + (x >> CHUNK_SHIFT);
+        return (chunk << LOCAL_BITS) | ((y & CHUNK_MASK) << CHUNK_SHIFT)
+                | (x & CHUNK_MASK);
+    }
+    
+    /**
+     * Returns the normalized height of the specified tile.
+     */
+    int getHeight(int index) {
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        return heights.get(location);
+    }
+    
+    /**
+     * Sets the normalized height of the specified tile, clamping it between
+     * {@code MIN_HEIGHT} and {@code MAX_HEIGHT}.
+     */
+    void setHeight(int index, int height) {
+        int h = (height < MIN_HEIGHT) ? MIN_HEIGHT : height;
+        h = (h > MAX_HEIGHT) ? MAX_HEIGHT : h;
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        heights.set(location, (byte) h);
+        settle(location >>> LOCAL_BITS);
+        if (h < lowestHeight) { lowestHeight = h; }
+        if (h > highestHeight) { highestHeight = h; }
+    }
+    
+    /**
+     * Returns true if every tile in the chunk of the specified tile is known
+     * to have the same height.
+     */
+    boolean isHeightUniform(int index) {
+        int chunk = locate(index) >>> LOCAL_BITS;
+        touch(chunk);
+        return heights.isUniform(chunk);
+    }
+    
+    /**
+     * Returns a height that no tile is lower than.
+     */
+    int getLowestHeight() {
+        return lowestHeight;
+    }
+    
+    /**
+     * Returns a height that no tile is higher than.
+     */
+    int getHighestHeight() {
+        return highestHeight;
+    }
+    
+    /**
+     * Tightens the height bounds to the actual lowest and highest tiles.
+     * Uniform chunks only have their one height looked at.
+     */
+    void recomputeHeightBounds() {
+        int low = MAX_HEIGHT;
+        int high = MIN_HEIGHT;
+        for (int cy = 0; cy < height; cy += CHUNK_SIZE) {
+            for (int cx = 0; cx < width; cx += CHUNK_SIZE) {
+                int chunk = locate((cy * width) + cx) >>> LOCAL_BITS;
+                touch(chunk);
+                byte[] values = heights.chunks[chunk];
+                if (values == null) {
+                    low = Math.min(low, heights.fills[chunk]);
+                    high = Math.max(high, heights.fills[chunk]);
+                    continue;
+                }
+                int rows = Math.min(CHUNK_SIZE, height - cy);
+                int columns = Math.min(CHUNK_SIZE, width - cx);
+                for (int y = 0; y < rows; y++) {
+                    for (int x = 0; x < columns; x++) {
+                        int h = values[(y << CHUNK_SHIFT) | x];
+                        if (h < low) { low = h; }
+                        if (h > high) { high = h; }
+                    }
+                }
+            }
+        }
+        lowestHeight = (size > 0) ? low : 0;
+        highestHeight = (size > 0) ? high : 0;
+    }
+    
+    /**
+     * Returns the packed slope of the specified tile.
+     */
+    byte getSlope(int index) {
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        return slopes.get(location);
+    }
+    
+    /**
+     * Returns a copy of the packed slopes of every tile, indexed like the map.
+     */
+    byte[] copySlopes() {
+        byte[] copy = new byte[size];
+        copy(slopes, 0, copy);
+        return copy;
+    }
+    
+    /**
+     * Copies the packed slopes of consecutive tiles, starting from the
+     * specified one, into the specified array.
+     */
+    void copySlopes(int from, byte[] destination) {
+        copy(slopes, from, destination);
+    }
+    
+    /**
+     * Returns a copy of the heights of every tile, indexed like the map.
+     */
+    byte[] copyHeights() {
+        byte[] copy = new byte[size];
+        copy(heights, 0, copy);
+        return copy;
+    }
+    
+    /**
+     * Used internally to copy a layer's values of consecutive tiles, starting
+     * from the specified one, into the specified array.  Runs of tiles within
+     * the same chunk are copied at once.
+     */
+    private void copy(ByteLayer layer, int from, byte[] destination) {
+        int copied = 0;
+        while (copied < destination.length) {
+            int index = from + copied;
+            int x = index % width;
+            int run = Math.min(CHUNK_SIZE - (x & CHUNK_MASK), width - x);
+            run = Math.min(run, destination.length - copied);
+            int location = locate(index);
+            int chunk = location >>> LOCAL_BITS;
+            touch(chunk);
+            byte[] values = layer.chunks[chunk];
+            if (values == null) {
+                Arrays.fill(destination, copied, copied + run,
+                        layer.fills[chunk]);
+            } else {
+                System.arraycopy(values, location & LOCAL_MASK, destination,
+                        copied, run);
+            }
+            copied += run;
+        }
+    }
+    
+    /**
+     * Sets the packed slope of the specified tile.
+     */
+    void setSlope(int index, byte slope) {
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        slopes.set(location, slope);
+        settle(location >>> LOCAL_BITS);
+    }
+    
+    /**
+     * Returns the tileset image index of the specified tile.
+     */
+    int getImage(int index) {
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        return images.get(location);
+    }
+    
+    /**
+     * Sets the tileset image index of the specified tile.
+     */
+    void setImage(int index, int image) {
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        images.set(location, (byte) image);
+        settle(location >>> LOCAL_BITS);
+    }
+    
+    /**
+     * Returns the packed RGB color filter of the specified tile.
+     */
+    int getTint(int index) {
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        return tints.get(location);
+    }
+    
+    /**
+     * Sets the packed RGB color filter of the specified tile.
+     */
+    void setTint(int index, int tint) {
+        int location = locate(index);
+        touch(location >>> LOCAL_BITS);
+        tints.set(location, tint);
+        settle(location >>> LOCAL_BITS);
+    }
+    
+    /**
+     * Returns the prop registered to the specified tile, or null if there
+     * isn't one.
+     */
+    Prop getProp(int index) {
+        if (props == null) {
+            return null;
+        }
+        int location = locate(index);
+        Prop[] chunk = props[location >>> LOCAL_BITS];
+        return (chunk == null) ? null : chunk[location & LOCAL_MASK];
+    }
+    
+    /**
+     * Registers the specified prop to the specified tile.  Passing null
+     * unregisters whatever prop the tile held.
+     */
+    void setProp(int index, Prop prop) {
+        int location = locate(index);
+        int chunk = location >>> LOCAL_BITS;
+        if (props == null || props[chunk] == null) {
+            if (prop == null) { return; }
+            if (props == null) {
+                props = new Prop[heights.chunks.length][];
+            }
+            props[chunk] = new Prop[CHUNK_TILES];
+        }
+        props[chunk][location & LOCAL_MASK] = prop;
+    }
+    
+    /**
+     * Returns the number of chunks the map is cut into, in rows of
+     * {@code (width + CHUNK_SIZE - 1) / CHUNK_SIZE}.
+     */
+    int getChunkCount() {
+        return heights.chunks.length;
+    }
+    
+    /**
+     * Returns the array of one of a chunk's byte-sized layers, without
+     * copying it, or null if the chunk is uniform in that layer.  The array
+     * must not be modified.
+     * 
+     * @param chunk
+     * @param layer One of {@code ChunkPager.HEIGHTS}, {@code SLOPES} or
+     * {@code IMAGES}.
+     */
+    byte[] getChunkBytes(int chunk, int layer) {
+        touch(chunk);
+        return byteLayer(layer).chunks[chunk];
+    }
+    
+    /**
+     * Returns the value every tile of a chunk has in one of its byte-sized
+     * layers, if the chunk is uniform in that layer.
+     */
+    byte getChunkFill(int chunk, int layer) {
+        return byteLayer(layer).fills[chunk];
+    }
+    
+    /**
+     * Returns the array of a chunk's tints, without copying it, or null if
+     * the chunk is uniform in its tints.  The array must not be modified.
+     */
+    int[] getChunkTints(int chunk) {
+        touch(chunk);
+        return tints.chunks[chunk];
+    }
+    
+    /**
+     * Returns the tint every tile of a chunk has, if it is uniform in its
+     * tints.
+     */
+    int getChunkTintFill(int chunk) {
+        return tints.fills[chunk];
+    }
+    
+    /**
+     * Replaces every layer of a chunk at once, such as when a map is loaded.
+     * The arrays are taken over, not copied; a null array makes the chunk
+     * uniform in that layer, with the specified fill.  Height bounds are not
+     * updated; call recomputeHeightBounds() once all chunks are in place.
+     */
+    void setChunk(int chunk, byte[] heightValues, byte heightFill,
+            byte[] slopeValues, byte slopeFill, byte[] imageValues,
+            byte imageFill, int[] tintValues, int tintFill) {
+        touch(chunk);
+        heights.chunks[chunk] = heightValues;
+        heights.fills[chunk] = heightFill;
+        slopes.chunks[chunk] = slopeValues;
+        slopes.fills[chunk] = slopeFill;
+        images.chunks[chunk] = imageValues;
+        images.fills[chunk] = imageFill;
+        tints.chunks[chunk] = tintValues;
+        tints.fills[chunk] = tintFill;
+        settle(chunk);
+    }
+    
+    /**
+     * Returns the number of tiles in a chunk, and so the length of the arrays
+     * of its layers.
+     */
+    static int getChunkTiles() {
+        return CHUNK_TILES;
+    }
+    
+    /**
+     * Used internally to look up a byte-sized layer by its
+     * {@link ChunkPager} bit.
+     */
+    private ByteLayer byteLayer(int layer) {
+        switch (layer) {
+            case ChunkPager.HEIGHTS:
+                return heights;
+            case ChunkPager.SLOPES:
+                return slopes;
+            case ChunkPager.IMAGES:
+                return images;
+            default:
+                throw new IllegalArgumentException("Not a byte layer: "
+                        + layer);
+        }
+    }
+    
+    /**
+     * Frees the arrays of every chunk whose tiles have all come to share the
+     * same value again, such as after a stretch of land has been flattened.
+     * Paged-out chunks are left alone.
+     * 
+     * @return The number of arrays freed.
+     */
+    int compact() {
+        int freed = 0;
+        for (int cy = 0; cy < height; cy += CHUNK_SIZE) {
+            for (int cx = 0; cx < width; cx += CHUNK_SIZE) {
+                int chunk = locate((cy * width) + cx) >>> LOCAL_BITS;
+                if (pager != null && pager.isPagedOut(chunk)) {
+                    continue;
+                }
+                int rows = Math.min(CHUNK_SIZE, height - cy);
+                int columns = Math.min(CHUNK_SIZE, width - cx);
+                freed += heights.compact(chunk, rows, columns) ? 1 : 0;
+                freed += slopes.compact(chunk, rows, columns) ? 1 : 0;
+                freed += images.compact(chunk, rows, columns) ? 1 : 0;
+                freed += tints.compact(chunk, rows, columns) ? 1 : 0;
+                if (pager != null) {
+                    pager.setResident(chunk, hasArrays(chunk));
+                }
+            }
+        }
+        return freed;
+    }
+    
+    /**
+     * Returns roughly how many bytes the tiles currently take up in memory,
+     * not counting the props themselves or paged-out chunks.
+     */
+    long getFootprint() {
+        long perChunk = CHUNK_TILES;
+        long bytes = (heights.allocated() + slopes.allocated()
+                + images.allocated()) * perChunk
+                + tints.allocated() * perChunk * Integer.BYTES;
+        if (props != null) {
+            for (Prop[] chunk : props) {
+                // References are assumed to be compressed to four bytes.
+                bytes += (chunk == null) ? 0 : perChunk * 4;
+            }
+        }
+        return bytes;
+    }
+    
+    /**
+     * Starts paging chunks out to the specified file, keeping at most the
+     * specified number of them in memory.  If paging was already enabled,
+     * every chunk is first read back from the old file.
+     * 
+     * @param file The file to page to, which is created or overwritten.
+     * @param temporary Whether to delete the file once paging is disabled.
+     * @param residentChunks The most chunks to keep in memory at once.
+     * @throws IOException 
+     */
+    void enablePaging(File file, boolean temporary, int residentChunks)
+            throws IOException {
+        disablePaging();
+        ChunkPager newPager = new ChunkPager(file, temporary,
+                heights.chunks.length, CHUNK_TILES, residentChunks);
+        for (int chunk = 0; chunk < heights.chunks.length; chunk++) {
+            newPager.setResident(chunk, hasArrays(chunk));
+        }
+        pager = newPager;
+        evictOverBudget(-1);
+    }
+    
+    /**
+     * Reads every paged-out chunk back into memory and stops paging.
+     * 
+     * @throws IOException If the file could not be closed.
+     */
+    void disablePaging() throws IOException {
+        if (pager == null) {
+            return;
+        }
+        pager.setBudget(Integer.MAX_VALUE);
+        for (int chunk = 0; chunk < heights.chunks.length; chunk++) {
+            touch(chunk);
+        }
+        ChunkPager oldPager = pager;
+        pager = null;
+        oldPager.close();
+    }
+    
+    /**
+     * Returns the pager in use, or null if paging is disabled.
+     */
+    ChunkPager getPager() {
+        return pager;
+    }
+    
+    /**
+     * Used internally before any access to a chunk: reads it back in if it
+     * is paged out, and otherwise records the hit.
+     */
+    private void touch(int chunk) {
+        if (pager == null) {
+            return;
+        }
+        if (!pager.isPagedOut(chunk)) {
+            pager.hit(chunk);
+            return;
+        }
+        heights.restore(chunk, pager.readBytes(chunk, ChunkPager.HEIGHTS));
+        slopes.restore(chunk, pager.readBytes(chunk, ChunkPager.SLOPES));
+        images.restore(chunk, pager.readBytes(chunk, ChunkPager.IMAGES));
+        tints.restore(chunk, pager.readTints(chunk));
+        pager.pagedIn(chunk);
+        evictOverBudget(chunk);
+    }
+    
+    /**
+     * Used internally after any change to a chunk, in case it has just
+     * allocated its first layer and pushed the storage over budget.
+     */
+    private void settle(int chunk) {
+        if (pager == null) {
+            return;
+        }
+        pager.setResident(chunk, hasArrays(chunk));
+        evictOverBudget(chunk);
+    }
+    
+    /**
+     * Used internally to page chunks out until the budget is met, never
+     * paging out the specified one.
+     */
+    private void evictOverBudget(int pinned) {
+        while (pager.isOverBudget()) {
+            int victim = pager.nextVictim(pinned);
+            if (victim < 0) {
+                return;
+            }
+            pager.pageOut(victim, heights.chunks[victim],
+                    slopes.chunks[victim], images.chunks[victim],
+                    tints.chunks[victim]);
+            heights.chunks[victim] = null;
+            slopes.chunks[victim] = null;
+            images.chunks[victim] = null;
+            tints.chunks[victim] = null;
+        }
+    }
+    
+    /**
+     * Used internally to check whether a chunk has any layer allocated.
+     */
+    private boolean hasArrays(int chunk) {
+        return heights.chunks[chunk] != null || slopes.chunks[chunk] != null
+                || images.chunks[chunk] != null || tints.chunks[chunk] != null;
+    }
+    
+    /**
+     * Packs the specified slope type and direction into a single byte.
+     */
+    static byte packSlope(SlopeType type, Direction direction) {
+        return (byte) ((type.ordinal() << 4) | direction.ordinal());
+    }
+    
+    /**
+     * Returns the {@link SlopeType} stored in a packed slope.
+     */
+    static SlopeType unpackType(byte slope) {
+        return SLOPE_TYPES[(slope >> 4) & 0x0F];
+    }
+    
+    /**
+     * Returns the {@link Direction} stored in a packed slope.
+     */
+    static Direction unpackDirection(byte slope) {
+        return DIRECTIONS[slope & 0x0F];
+    }
+    
+    /**
+     * Packs a slick2d-style color into an RGB int.
+     */
+    static int packTint(int red, int green, int blue) {
+        return ((red & 0xFF) << 16) | ((green & 0xFF) << 8) | (blue & 0xFF);
+    }
+    
+    /**
+     * One byte-sized property of every tile, kept chunk by chunk.  A chunk
+     * without an array has the same value, its fill, on every tile.
+     */
+    private static final class ByteLayer {
+        
+        private final byte[][] chunks;
+        private final byte[] fills;
+        
+        /**
+         * The number of snapshots taken of this layer so far.
+         */
+        private int epoch = 0;
+        
+        /**
+         * The epoch each chunk's array was allocated or copied in, or null
+         * if no snapshot has ever been taken.  An array from an earlier epoch
+         * may be held by a snapshot, and is copied before being written to.
+         */
+        private int[] copiedIn = null;
+        
+        ByteLayer(int chunkCount, byte fill) {
+            chunks = new byte[chunkCount][];
+            fills = new byte[chunkCount];
+            Arrays.fill(fills, fill);
+        }
+        
+        private ByteLayer(byte[][] chunks, byte[] fills) {
+            this.chunks = chunks;
+            this.fills = fills;
+        }
+        
+        /**
+         * Returns a layer sharing this one's current arrays, and starts a new
+         * epoch so that they are copied before this layer writes to them.
+         */
+        ByteLayer share() {
+            if (copiedIn == null) {
+                copiedIn = new int[chunks.length];
+            }
+            epoch++;
+            return new ByteLayer(chunks.clone(), fills.clone());
+        }
+        
+        byte get(int location) {
+            int chunk = location >>> LOCAL_BITS;
+            byte[] values = chunks[chunk];
+            return (values == null) ? fills[chunk]
+                    : values[location & LOCAL_MASK];
+        }
+        
+        void set(int location, byte value) {
+            int chunk = location >>> LOCAL_BITS;
+            byte[] values = chunks[chunk];
+            if (values == null) {
+                if (value == fills[chunk]) { return; }
+                values = new byte[CHUNK_TILES];
+                Arrays.fill(values, fills[chunk]);
+                chunks[chunk] = values;
+                if (copiedIn != null) { copiedIn[chunk] = epoch; }
+            } else if (copiedIn != null && copiedIn[chunk] != epoch) {
+                if (values[location & LOCAL_MASK] == value) { return; }
+                values = values.clone();
+                chunks[chunk] = values;
+                copiedIn[chunk] = epoch;
+            }
+            values[location & LOCAL_MASK] = value;
+        }
+        
+        boolean isUniform(int chunk) {
+            return chunks[chunk] == null;
+        }
+        
+        /**
+         * Puts back the array of a chunk read from a pager.  A null array
+         * means the chunk was uniform, and its fill still holds.
+         */
+        void restore(int chunk, byte[] values) {
+            chunks[chunk] = values;
+        }
+        
+        /**
+         * Frees the array of the specified chunk if the tiles of the map it
+         * covers all have the same value.  The rest of an edge chunk's array
+         * lies outside the map and doesn't count.
+         */
+        boolean compact(int chunk, int rows, int columns) {
+            byte[] values = chunks[chunk];
+            if (values == null) { return false; }
+            byte first = values[0];
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < columns; x++) {
+                    if (values[(y << CHUNK_SHIFT) | x] != first) {
+                        return false;
+                    }
+                }
+            }
+            fills[chunk] = first;
+            chunks[chunk] = null;
+            return true;
+        }
+        
+        int allocated() {
+            int count = 0;
+            for (byte[] values : chunks) {
+                count += (values == null) ? 0 : 1;
+            }
+            return count;
+        }
+    }
+    
+    /**
+     * One int-sized property of every tile, kept chunk by chunk, exactly like
+     * a {@link ByteLayer}.
+     */
+    private static final class IntLayer {
+        
+        private final int[][] chunks;
+        private final int[] fills;
+        private int epoch = 0;
+        private int[] copiedIn = null;
+        
+        IntLayer(int chunkCount, int fill) {
+            chunks = new int[chunkCount][];
+            fills = new int[chunkCount];
+            Arrays.fill(fills, fill);
+        }
+        
+        private IntLayer(int[][] chunks, int[] fills) {
+            this.chunks = chunks;
+            this.fills = fills;
+        }
+        
+        IntLayer share() {
+            if (copiedIn == null) {
+                copiedIn = new int[chunks.length];
+            }
+            epoch++;
+            return new IntLayer(chunks.clone(), fills.clone());
+        }
+        
+        int get(int location) {
+            int chunk = location >>> LOCAL_BITS;
+            int[] values = chunks[chunk];
+            return (values == null) ? fills[chunk]
+                    : values[location & LOCAL_MASK];
+        }
+        
+        void set(int location, int value) {
+            int chunk = location >>> LOCAL_BITS;
+            int[] values = chunks[chunk];
+            if (values == null) {
+                if (value == fills[chunk]) { return; }
+                values = new int[CHUNK_TILES];
+                Arrays.fill(values, fills[chunk]);
+                chunks[chunk] = values;
+                if (copiedIn != null) { copiedIn[chunk] = epoch; }
+            } else if (copiedIn != null && copiedIn[chunk] != epoch) {
+                if (values[location & LOCAL_MASK] == value) { return; }
+                values = values.clone();
+                chunks[chunk] = values;
+                copiedIn[chunk] = epoch;
+            }
+            values[location & LOCAL_MASK] = value;
+        }
+        
+        void restore(int chunk, int[] values) {
+            chunks[chunk] = values;
+        }
+        
+        boolean compact(int chunk, int rows, int columns) {
+            int[] values = chunks[chunk];
+            if (values == null) { return false; }
+            int first = values[0];
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < columns; x++) {
+                    if (values[(y << CHUNK_SHIFT) | x] != first) {
+                        return false;
+                    }
+                }
+            }
+            fills[chunk] = first;
+            chunks[chunk] = null;
+            return true;
+        }
+        
+        int allocated() {
+            int count = 0;
+            for (int[] values : chunks) {
+                count += (values == null) ? 0 : 1;
+            }
+            return count;
+        }
+    }
+}
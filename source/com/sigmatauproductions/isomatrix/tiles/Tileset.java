@@ -30,9 +30,16 @@
 package com.sigmatauproductions.isomatrix.tiles;
 
 import com.sigmatauproductions.isomatrix.*;
+import com.sigmatauproductions.isomatrix.util.AssetManager;
 import com.sigmatauproductions.isomatrix.util.ConfigFile;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 import org.newdawn.slick.*;
+import org.newdawn.slick.opengl.ImageData;
 
 /**
  * Contains an array of images and their various properties, used to specify the
@@ -40,6 +47,12 @@ import org.newdawn.slick.*;
  * 
  * There is a specific order in which the images must occur, and correspond to
  * the types established in {@link SlopeType}.
+ * <p>
+ * Tilesets normally need a GL context, since their images are loaded as
+ * textures.  A headless tileset, created with {@link #headless(String)},
+ * only reads the metadata of the same directory: the tile size, the offsets
+ * and the opaque pixels used for picking.  Maps using one work as usual,
+ * except that they can't be drawn.
  *
  * @author sigtau
  */
@@ -65,6 +78,36 @@ public final class Tileset {
      */
     private Image[] tiles = new Image[20]; 
     
+    /**
+     * One bitmask per tile image marking which of its pixels are opaque,
+     * stored row by row, used for mouse picking without reading back the
+     * images.
+     * 
+     * @see Tileset#isOpaque(int, int, int)
+     */
+    private long[][] opaqueMasks = new long[20][];
+    
+    /**
+     * The number of transparent pixels left between the images packed into
+     * the atlas, so that filtering never bleeds one image into another.
+     */
+    private static final int ATLAS_GUTTER = 2;
+    
+    /**
+     * A single texture holding all of the tile images, so that a whole map
+     * can be drawn without switching textures.
+     * 
+     * @see Tileset#getAtlas()
+     */
+    private Image atlas;
+    
+    /**
+     * Regions of the atlas matching each tile image, kept separately from
+     * {@code tiles} so that color filters set on the images handed out by
+     * getImage() never leak into batched drawing.
+     */
+    private Image[] atlasRegions = new Image[20];
+    
     /**
      * The actual pixel offset for simulating height with this tileset.
      */
@@ -89,6 +132,11 @@ public final class Tileset {
      */
     private int propOffset = 8;
     
+    /**
+     * Whether this tileset was loaded without its images.
+     */
+    private boolean headless = false;
+    
     /**
      * Creates a new tileset using the default tile images and default height
      * offset.
@@ -96,16 +144,9 @@ public final class Tileset {
      * @throws SlickException 
      */
     public Tileset() throws SlickException {
-        int max = tiles.length;
-        for (int i = 0; i < max; i++) {
-            tiles[i] = new Image(Globals.TILESET_DIR
-                    + Globals.DEFAULT_TILESET + "/" + (""+(i+1)) + ".png");
-        }
-        
-        tileSizeX = tiles[0].getWidth();
-        tileSizeY = tiles[0].getHeight();
         this.heightOffset = DEFAULT_HEIGHT_OFFSET;
         this.directoryName = Globals.DEFAULT_TILESET;
+        loadImages(Globals.TILESET_DIR + Globals.DEFAULT_TILESET);
         
         readConfig(Globals.TILESET_DIR + Globals.DEFAULT_TILESET);
         
@@ -123,18 +164,217 @@ public final class Tileset {
      * @throws SlickException 
      */
     public Tileset(String directory) throws SlickException {
-        int max = tiles.length;
-        for (int i = 0; i < max; i++) {
-            tiles[i] = new Image(Globals.TILESET_DIR 
-                    + directory + "/" + (""+(i+1)) + ".png");
-        }
-        
-        tileSizeX = tiles[0].getWidth();
-        tileSizeY = tiles[0].getHeight();
         this.directoryName = directory;
+        loadImages(Globals.TILESET_DIR + directory);
         readConfig(Globals.TILESET_DIR+directory);
     }
     
+    /**
+     * Used internally to create a headless tileset.
+     */
+    private Tileset(String directory, boolean headless) {
+        this.headless = headless;
+        this.directoryName = directory;
+        try {
+            loadImages(Globals.TILESET_DIR + directory);
+        } catch (SlickException e) {
+            // Headless tilesets never upload anything.
+            throw new IllegalStateException(e);
+        }
+        readConfig(Globals.TILESET_DIR + directory);
+    }
+    
+    /**
+     * Creates a headless tileset from the specified tileset image directory,
+     * which needs no GL context.  The images are only decoded to read their
+     * size and opaque pixels; {@code getImage()}, {@code getAtlas()} and
+     * {@code getAtlasRegion()} return null.
+     * 
+     * @param directory
+     * @return The headless tileset.
+     */
+    public static Tileset headless(String directory) {
+        return new Tileset(directory, true);
+    }
+    
+    /**
+     * Used internally to decode every tile image of the specified directory
+     * at once, on the workers of the shared {@link AssetManager}, and read
+     * the tile size and opaque pixels from them.  Unless this tileset is
+     * headless, they are then packed into the atlas, which is the only
+     * texture uploaded.  Headless tilesets leave missing images fully
+     * transparent, and if the first one is missing, keep the default tile
+     * size.
+     * 
+     * @throws SlickException If a tile image couldn't be loaded.
+     */
+    private void loadImages(String directory) throws SlickException {
+        AssetManager assets = Globals.getAssets();
+        List<Future<ImageData>> decoding = new ArrayList<>(tiles.length);
+        for (int i = 0; i < tiles.length; i++) {
+            decoding.add(assets.decode(directory + "/" + (i + 1) + ".png"));
+        }
+        
+        ImageData[] images = new ImageData[tiles.length];
+        int missing = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            try {
+                images[i] = AssetManager.await(decoding.get(i));
+            } catch (IOException e) {
+                if (!headless) {
+                    throw new SlickException("Failed to load image from: "
+                            + directory + "/" + (i + 1) + ".png", e);
+                }
+                missing++;
+            }
+        }
+        if (missing > 0) {
+            Globals.logWarning(missing + " tile images could not be read from "
+                    + directory + "/ - they will never be picked.");
+        }
+        
+        if (images[0] != null) {
+            tileSizeX = images[0].getWidth();
+            tileSizeY = images[0].getHeight();
+        }
+        buildOpaqueMasks(images);
+        if (!headless) {
+            buildAtlas(images);
+        }
+    }
+    
+    /**
+     * Used internally to read the RGBA color of a pixel of a decoded image,
+     * packed as 0xRRGGBBAA.  Images without an alpha channel are opaque.
+     */
+    private static int getRGBA(ImageData image, int x, int y) {
+        ByteBuffer pixels = image.getImageBufferData();
+        int bytes = image.getDepth() / 8;
+        int offset = ((y * image.getTexWidth()) + x) * bytes;
+        int rgba = ((pixels.get(offset) & 0xFF) << 24)
+                | ((pixels.get(offset + 1) & 0xFF) << 16)
+                | ((pixels.get(offset + 2) & 0xFF) << 8);
+        return rgba | ((bytes == 4) ? (pixels.get(offset + 3) & 0xFF) : 0xFF);
+    }
+    
+    /**
+     * Returns true if this tileset was loaded without its images, and so
+     * can't be drawn.
+     * 
+     * @return 
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+    
+    /**
+     * Used internally to pack every decoded tile image into a single atlas
+     * texture at load time.  The images handed out by getImage() are regions
+     * of the atlas, so the tile images never become textures of their own.
+     * 
+     * @throws SlickException 
+     */
+    private void buildAtlas(ImageData[] images) throws SlickException {
+        int columns = (int) Math.ceil(Math.sqrt(tiles.length));
+        int rows = (tiles.length + columns - 1) / columns;
+        int cellX = tileSizeX + ATLAS_GUTTER;
+        int cellY = tileSizeY + ATLAS_GUTTER;
+        ImageBuffer buffer = new ImageBuffer(columns * cellX, rows * cellY);
+        
+        for (int i = 0; i < tiles.length; i++) {
+            int left = (i % columns) * cellX;
+            int top = (i / columns) * cellY;
+            int width = Math.min(images[i].getWidth(), tileSizeX);
+            int height = Math.min(images[i].getHeight(), tileSizeY);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int c = getRGBA(images[i], x, y);
+                    buffer.setRGBA(left + x, top + y, c >>> 24,
+                            (c >> 16) & 0xFF, (c >> 8) & 0xFF, c & 0xFF);
+                }
+            }
+        }
+        
+        atlas = buffer.getImage();
+        for (int i = 0; i < tiles.length; i++) {
+            int left = (i % columns) * cellX;
+            int top = (i / columns) * cellY;
+            tiles[i] = atlas.getSubImage(left, top, tileSizeX, tileSizeY);
+            atlasRegions[i] = atlas.getSubImage(left, top,
+                    tileSizeX, tileSizeY);
+        }
+    }
+    
+    /**
+     * Returns the atlas texture holding every tile image of this tileset.
+     * 
+     * Used for batched drawing: call {@code startUse()} on the atlas, draw
+     * any number of regions from getAtlasRegion() with
+     * {@code drawEmbedded()}, then call {@code endUse()}.
+     * 
+     * @return The atlas image.
+     */
+    public Image getAtlas() {
+        return atlas;
+    }
+    
+    /**
+     * Returns the region of the atlas holding the specified tile image, for
+     * use with {@code drawEmbedded()} between the atlas' {@code startUse()}
+     * and {@code endUse()}.  The region must not be given a color filter of
+     * its own; bind the desired color before drawing it instead.
+     * 
+     * @param index
+     * @return The atlas region of the tile image.
+     */
+    public Image getAtlasRegion(int index) {
+        return atlasRegions[index];
+    }
+    
+    /**
+     * Used internally to read the alpha channel of every tile image once, at
+     * load time, into {@code opaqueMasks}.  A pixel counts as opaque when it is
+     * at least half opaque, so the faint antialiased edges of a tile never
+     * take the mouse from its neighbor.
+     */
+    private void buildOpaqueMasks(ImageData[] images) {
+        for (int i = 0; i < tiles.length; i++) {
+            long[] mask = new long[((tileSizeX * tileSizeY) + 63) / 64];
+            opaqueMasks[i] = mask;
+            if (images[i] == null) {
+                continue;
+            }
+            int width = Math.min(images[i].getWidth(), tileSizeX);
+            int height = Math.min(images[i].getHeight(), tileSizeY);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if ((getRGBA(images[i], x, y) & 0xFF) >= 128) {
+                        int bit = (y * tileSizeX) + x;
+                        mask[bit >> 6] |= 1L << bit;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns whether the specified pixel of the specified tile image is
+     * opaque, as recorded when the tileset was loaded.
+     * 
+     * @param index The index of the tile image.
+     * @param x The x-position of the pixel within the image.
+     * @param y The y-position of the pixel within the image.
+     * @return true if the pixel is opaque, false if it is transparent or out
+     * of the image's bounds.
+     */
+    public boolean isOpaque(int index, int x, int y) {
+        if (x < 0 || y < 0 || x >= tileSizeX || y >= tileSizeY) {
+            return false;
+        }
+        int bit = (y * tileSizeX) + x;
+        return (opaqueMasks[index][bit >> 6] & (1L << bit)) != 0;
+    }
+    
     /**
      * Returns the width (x-size) of all tiles in this tileset.
      * 
@@ -174,6 +414,29 @@ public final class Tileset {
         return tiles[index];
     }
     
+    /**
+     * Returns the index of the specified image within this tileset, or -1 if
+     * the image is not one of the tileset's images.
+     * 
+     * @param image
+     * @return The index of the image, or -1.
+     */
+    public int indexOf(Image image) {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] == image) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the number of images in this tileset.
+     */
+    public int getImageCount() {
+        return tiles.length;
+    }
+    
     /**
      * Returns the proper name of the tileset according to its tileset.cfg.
      */
@@ -203,20 +466,14 @@ public final class Tileset {
         try {
             config = new ConfigFile(directory + "/tileset.cfg");
             n = config.getValueByProperty("name");
-            pO = Integer.parseInt(config.getValueByProperty("propoffset"));
-            hO = Integer.parseInt(config.getValueByProperty("heightoffset"));
+            pO = config.getInt("propoffset", 8);
+            hO = config.getInt("heightoffset", 8);
         } catch (FileNotFoundException e) {
             Globals.logWarning("tileset.cfg not found in " + directory +  "/ -"
                     + " assuming default config values");
             n = "Invalid";
             pO = 8;
             hO = 8;
-        } catch (NumberFormatException e) {
-            Globals.logWarning("tileset.cfg in tileset directory \""
-                    + directory + "\" does not contain proper "
-                    + "offset values.  Assuming default offsets.");
-            pO = 8;
-            hO = 8;
         }
         
         this.name = n;
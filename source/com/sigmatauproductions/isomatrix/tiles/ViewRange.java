@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.tiles;
+
+/**
+ * Solves which rows and columns of a {@link TileMap} can appear within a
+ * rectangle of the screen, so that drawing only has to visit those tiles
+ * rather than cull every tile of the map.
+ * 
+ * The horizontal screen position of a tile at coordinate (x, y) depends only
+ * on {@code u = x - y}, and its vertical position on {@code v = x + y} plus
+ * its altitude.  The visible area is therefore a range of {@code u} and a
+ * range of {@code v}, the latter widened by the lowest and highest tiles of
+ * the map.  Tiles within both ranges form a diamond-shaped band of the map,
+ * which is walked row by row (the map's draw order) using
+ * {@code getFirstRow()}, {@code getLastRow()}, {@code getFirstColumn(int)}
+ * and {@code getLastColumn(int)}.  The range is conservative; tiles within it
+ * may still be slightly off-screen and should be culled individually.
+ * <p>
+ * A ViewRange is meant to be kept around and solved again every frame, so
+ * that no memory is allocated while drawing.
+ *
+ * @author sigtau
+ */
+final class ViewRange {
+    
+    /**
+     * The lowest and highest visible {@code x - y}.
+     */
+    private int uMin, uMax;
+    
+    /**
+     * The lowest and highest visible {@code x + y}.
+     */
+    private int vMin, vMax;
+    
+    /**
+     * The first and last rows holding visible tiles.
+     */
+    private int firstRow, lastRow;
+    
+    /**
+     * The width of the map the range was last solved for.
+     */
+    private int mapWidth;
+    
+    /**
+     * Solves the range of tiles of the specified map that may be drawn
+     * within the screen rectangle from (0, 0) to ({@code maxX}, {@code maxY}),
+     * when drawn with the specified offset.
+     * 
+     * @param map
+     * @param offsetX
+     * @param offsetY
+     * @param maxX
+     * @param maxY 
+     */
+    void solve(TileMap map, int offsetX, int offsetY, int maxX, int maxY) {
+        Tileset tileset = map.getTileset();
+        TileStorage storage = map.getStorage();
+        int a = map.getAdjustmentFactorX();
+        int b = map.getAdjustmentFactorY();
+        int tileWidth = tileset.getTileWidth();
+        int tileHeight = tileset.getTileHeight();
+        int lowestZ = -storage.getHighestHeight() * tileset.getHeightOffset();
+        int highestZ = -storage.getLowestHeight() * tileset.getHeightOffset();
+        mapWidth = map.getWidth();
+        
+        if (a <= 0 || b <= 0) {
+            firstRow = 0;
+            lastRow = -1;
+            return;
+        }
+        
+        // A tile is on screen when a*u + offsetX lies within
+        // [-tileWidth, maxX], and b*v + z + offsetY within [-tileHeight, maxY]
+        // for its altitude z.
+        uMin = ceilDiv(-tileWidth - offsetX, a);
+        uMax = Math.floorDiv(maxX - offsetX, a);
+        vMin = ceilDiv(-tileHeight - offsetY - highestZ, b);
+        vMax = Math.floorDiv(maxY - offsetY - lowestZ, b);
+        
+        // y = (v - u) / 2, so these are the only rows that can hold a tile
+        // satisfying both ranges.
+        firstRow = Math.max(0, ceilDiv(vMin - uMax, 2));
+        lastRow = Math.min(map.getHeight() - 1, Math.floorDiv(vMax - uMin, 2));
+    }
+    
+    /**
+     * Returns the first row of the map holding visible tiles.
+     */
+    int getFirstRow() {
+        return firstRow;
+    }
+    
+    /**
+     * Returns the last row of the map holding visible tiles, which is less
+     * than the first row if nothing is visible.
+     */
+    int getLastRow() {
+        return lastRow;
+    }
+    
+    /**
+     * Returns the first visible column of the specified row.
+     */
+    int getFirstColumn(int row) {
+        return Math.max(0, Math.max(uMin + row, vMin - row));
+    }
+    
+    /**
+     * Returns the last visible column of the specified row, which is less
+     * than the first column if nothing in the row is visible.
+     */
+    int getLastColumn(int row) {
+        return Math.min(mapWidth - 1, Math.min(uMax + row, vMax - row));
+    }
+    
+    /**
+     * Integer division rounding towards positive infinity.
+     */
+    private static int ceilDiv(int x, int y) {
+        return -Math.floorDiv(-x, y);
+    }
+}
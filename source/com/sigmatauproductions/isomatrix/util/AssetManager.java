@@ -0,0 +1,640 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.util;
+
+import com.sigmatauproductions.isomatrix.Globals;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import org.newdawn.slick.Image;
+import org.newdawn.slick.SlickException;
+import org.newdawn.slick.opengl.ImageData;
+
+/**
+ * Loads images once and shares them between everything that uses them.
+ *
+ * Image files are decoded with ImageIO on a pool of worker threads, and only
+ * turned into textures on the render thread, since that is the only thread
+ * with a GL context.  Each image is loaded once per path: acquiring a path
+ * that is already loaded returns the same {@link Image} and counts another
+ * reference to it.  Once every reference has been released, the texture is
+ * kept around in case it is wanted again, up to a set number of bytes, past
+ * which the least recently released textures are destroyed.
+ * <p>
+ * {@link #acquire(String)}, {@link #acquireAll(List)}, {@link #release(Image)}
+ * and {@link #uploadPending(int)} must only be called from the render thread.
+ * {@link #prefetch(String)} and {@link #decode(String)} may be called from
+ * any thread; prefetched images are uploaded a few at a time by
+ * {@code uploadPending()}, which {@code IsomatrixGame} calls every frame.
+ * Images acquired from the manager must not be destroyed by their users.
+ *
+ * @author sigtau
+ */
+public final class AssetManager {
+    
+    /**
+     * The number of prefetched images uploaded per frame by default.
+     */
+    public static final int UPLOADS_PER_FRAME = 4;
+    
+    static {
+        // ImageIO otherwise buffers every stream it reads in a temporary
+        // file, which only slows decoding down.
+        ImageIO.setUseCache(false);
+    }
+    
+    /**
+     * The number of threads decoding images.
+     */
+    private final int workerCount;
+    
+    /**
+     * The threads decoding images, started on first use.
+     */
+    private ExecutorService workers = null;
+    
+    /**
+     * The number of bytes of unused textures kept loaded.
+     */
+    private final long cacheBytes;
+    
+    /**
+     * Every image that is loaded or being decoded, by its path.
+     */
+    private final Map<String, Asset> assets = new HashMap<>();
+    
+    /**
+     * Every loaded image, for releasing images without their paths.
+     */
+    private final Map<Image, Asset> byImage = new IdentityHashMap<>();
+    
+    /**
+     * The loaded images nothing references, least recently released first.
+     */
+    private final LinkedHashMap<String, Asset> unused = new LinkedHashMap<>();
+    
+    /**
+     * The images being decoded, in the order they were asked for.
+     */
+    private final List<Asset> decoding = new ArrayList<>();
+    
+    /**
+     * The number of bytes of textures loaded, in use or not.
+     */
+    private long residentBytes = 0;
+    
+    /**
+     * The number of bytes of textures loaded but unused.
+     */
+    private long unusedBytes = 0;
+    
+    /**
+     * The number of images uploaded, cache hits, and textures evicted.
+     */
+    private long loads = 0, hits = 0, evictions = 0;
+    
+    /**
+     * Creates an asset manager.
+     * 
+     * @param workerCount The number of threads decoding images.
+     * @param cacheBytes The number of bytes of unused textures kept loaded.
+     */
+    public AssetManager(int workerCount, long cacheBytes) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is needed.");
+        }
+        this.workerCount = workerCount;
+        this.cacheBytes = Math.max(0, cacheBytes);
+    }
+    
+    /**
+     * Decodes the specified image file on a worker thread, without caching
+     * it or uploading it.  Useful for reading pixels, such as when packing
+     * images together; {@code new Image(data)} uploads the result.
+     * 
+     * @param path
+     * @return The decoding image, to be waited for with {@link #await(Future)}.
+     */
+    public Future<ImageData> decode(final String path) {
+        return workers().submit(() -> read(path));
+    }
+    
+    /**
+     * Waits for an image started with {@link #decode(String)}.
+     * 
+     * @param decoding
+     * @return The decoded image.
+     * @throws IOException If the file couldn't be read or isn't an image.
+     */
+    public static ImageData await(Future<ImageData> decoding)
+            throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return decoding.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Starts decoding the specified image in the background, unless it is
+     * already loaded or being decoded.  It is uploaded by a later
+     * {@link #uploadPending(int)}, and kept as an unused image until it is
+     * acquired.
+     * 
+     * @param path
+     */
+    public synchronized void prefetch(String path) {
+        String key = key(path);
+        if (!assets.containsKey(key)) {
+            assets.put(key, new Asset(key));
+        }
+    }
+    
+    /**
+     * Returns the image at the specified path, loading it first if needed,
+     * and counts a reference to it.
+     * 
+     * @param path
+     * @return The shared image.
+     * @throws SlickException If the image couldn't be loaded.
+     */
+    public Image acquire(String path) throws SlickException {
+        return acquireAll(Collections.singletonList(path)).get(0);
+    }
+    
+    /**
+     * Returns the images at the specified paths, in the same order, loading
+     * them first if needed, and counts a reference to each.  Images that
+     * aren't loaded yet are all decoded at once by the workers.  If any of
+     * them fails to load, no references are counted at all.
+     * 
+     * @param paths
+     * @return The shared images.
+     * @throws SlickException If an image couldn't be loaded.
+     */
+    public List<Image> acquireAll(List<String> paths) throws SlickException {
+        Asset[] wanted = new Asset[paths.size()];
+        synchronized (this) {
+            for (int i = 0; i < wanted.length; i++) {
+                String key = key(paths.get(i));
+                Asset asset = assets.get(key);
+                if (asset == null) {
+                    asset = new Asset(key);
+                    assets.put(key, asset);
+                } else if (asset.image != null) {
+                    hits++;
+                }
+                reference(asset);
+                wanted[i] = asset;
+            }
+        }
+        
+        List<Image> images = new ArrayList<>(wanted.length);
+        for (int i = 0; i < wanted.length; i++) {
+            if (wanted[i].image == null) {
+                try {
+                    upload(wanted[i], AssetManager.await(wanted[i].pending));
+                } catch (IOException e) {
+                    synchronized (this) {
+                        for (Asset asset : wanted) {
+                            asset.references--;
+                            if (asset.references == 0 && asset.image != null) {
+                                unuse(asset);
+                            }
+                        }
+                        forget(wanted[i]);
+                        trim();
+                    }
+                    throw new SlickException("Failed to load image from: "
+                            + wanted[i].path, e);
+                }
+            }
+            images.add(wanted[i].image);
+        }
+        return images;
+    }
+    
+    /**
+     * Uploads up to the specified number of prefetched images that are done
+     * decoding, in the order they were asked for.
+     * 
+     * @param max
+     * @return The number of images uploaded.
+     */
+    public int uploadPending(int max) {
+        int uploaded = 0;
+        while (uploaded < max) {
+            Asset next = null;
+            synchronized (this) {
+                for (Asset asset : decoding) {
+                    if (asset.pending.isDone()) {
+                        next = asset;
+                        break;
+                    }
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            try {
+                upload(next, AssetManager.await(next.pending));
+                uploaded++;
+            } catch (IOException e) {
+                Globals.logWarning("Could not load " + next.path + ": "
+                        + e.getMessage());
+                synchronized (this) {
+                    forget(next);
+                }
+            }
+        }
+        return uploaded;
+    }
+    
+    /**
+     * Releases a reference to an image returned by this manager.
+     * 
+     * @param image
+     */
+    public synchronized void release(Image image) {
+        Asset asset = byImage.get(image);
+        if (asset == null || asset.references == 0) {
+            Globals.logWarning("Released an image that isn't referenced.");
+            return;
+        }
+        asset.references--;
+        if (asset.references == 0) {
+            unuse(asset);
+            trim();
+        }
+    }
+    
+    /**
+     * Releases a reference to every one of the specified images.
+     * 
+     * @param images
+     */
+    public synchronized void releaseAll(List<Image> images) {
+        for (Image image : images) {
+            release(image);
+        }
+    }
+    
+    /**
+     * Destroys every loaded image nothing references.
+     */
+    public synchronized void clear() {
+        while (!unused.isEmpty()) {
+            evictEldest();
+        }
+    }
+    
+    /**
+     * Stops the worker threads.  Images already loaded stay usable.
+     */
+    public synchronized void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+    
+    /**
+     * Returns the number of references to the image at the specified path.
+     */
+    public synchronized int getReferenceCount(String path) {
+        Asset asset = assets.get(key(path));
+        return (asset == null) ? 0 : asset.references;
+    }
+    
+    /**
+     * Returns true if the image at the specified path is loaded.
+     */
+    public synchronized boolean isLoaded(String path) {
+        Asset asset = assets.get(key(path));
+        return asset != null && asset.image != null;
+    }
+    
+    /**
+     * Returns the number of bytes of textures loaded, in use or not.
+     */
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+    
+    /**
+     * Returns the number of bytes of textures loaded but unused.
+     */
+    public synchronized long getUnusedBytes() {
+        return unusedBytes;
+    }
+    
+    /**
+     * Returns the number of images uploaded so far.
+     */
+    public synchronized long getLoadCount() {
+        return loads;
+    }
+    
+    /**
+     * Returns the number of times an image was acquired already loaded.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+    
+    /**
+     * Returns the number of unused textures destroyed to stay in budget.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+    
+    /**
+     * Used internally to turn a decoded image into a texture and record it.
+     */
+    private void upload(Asset asset, ImageData data) {
+        Image image = new Image(data);
+        synchronized (this) {
+            asset.image = image;
+            asset.pending = null;
+            asset.bytes = (long) data.getTexWidth() * data.getTexHeight() * 4;
+            decoding.remove(asset);
+            byImage.put(image, asset);
+            residentBytes += asset.bytes;
+            loads++;
+            if (asset.references == 0) {
+                unuse(asset);
+                trim();
+            }
+        }
+    }
+    
+    /**
+     * Used internally to count a reference to an asset, taking it out of
+     * the unused images if it was one.
+     */
+    private void reference(Asset asset) {
+        if (asset.references == 0 && unused.remove(asset.path) != null) {
+            unusedBytes -= asset.bytes;
+        }
+        asset.references++;
+    }
+    
+    /**
+     * Used internally to add an asset to the unused images.
+     */
+    private void unuse(Asset asset) {
+        unused.put(asset.path, asset);
+        unusedBytes += asset.bytes;
+    }
+    
+    /**
+     * Used internally to drop an asset that failed to load.
+     */
+    private void forget(Asset asset) {
+        decoding.remove(asset);
+        if (assets.get(asset.path) == asset && asset.image == null) {
+            assets.remove(asset.path);
+        }
+    }
+    
+    /**
+     * Used internally to evict unused images until they fit the cache.
+     */
+    private void trim() {
+        while (unusedBytes > cacheBytes) {
+            evictEldest();
+        }
+    }
+    
+    /**
+     * Used internally to destroy the least recently released image.
+     */
+    private void evictEldest() {
+        Iterator<Asset> eldest = unused.values().iterator();
+        Asset asset = eldest.next();
+        eldest.remove();
+        unusedBytes -= asset.bytes;
+        residentBytes -= asset.bytes;
+        assets.remove(asset.path);
+        byImage.remove(asset.image);
+        evictions++;
+        try {
+            asset.image.destroy();
+        } catch (SlickException e) {
+            Globals.logWarning("Could not destroy " + asset.path + ": "
+                    + e.getMessage());
+        }
+    }
+    
+    /**
+     * Used internally to start the worker threads if needed.
+     */
+    private synchronized ExecutorService workers() {
+        if (workers == null) {
+            final AtomicInteger count = new AtomicInteger();
+            workers = Executors.newFixedThreadPool(workerCount, (r) -> {
+                Thread thread = new Thread(r,
+                        "Asset decoder " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+    
+    /**
+     * Used internally to turn equivalent paths into the same key.
+     */
+    private static String key(String path) {
+        try {
+            return Paths.get(path).normalize().toString();
+        } catch (InvalidPathException e) {
+            return path;
+        }
+    }
+    
+    /**
+     * Used internally to decode an image file into the same RGBA layout
+     * Slick's own decoder produces: rows from the top, padded to a power of
+     * two each way, without premultiplying the alpha.
+     */
+    private static ImageData read(String path) throws IOException {
+        BufferedImage image;
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(path))) {
+            image = ImageIO.read(in);
+        }
+        if (image == null) {
+            throw new IOException(path + " is not a readable image.");
+        }
+        
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int texWidth = powerOfTwo(width);
+        int texHeight = powerOfTwo(height);
+        ByteBuffer pixels = ByteBuffer.allocateDirect(texWidth * texHeight * 4)
+                .order(ByteOrder.nativeOrder());
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            pixels.position(y * texWidth * 4);
+            for (int x = 0; x < width; x++) {
+                int argb = row[x];
+                pixels.put((byte) (argb >> 16)).put((byte) (argb >> 8))
+                        .put((byte) argb).put((byte) (argb >>> 24));
+            }
+        }
+        pixels.position(0);
+        return new Decoded(width, height, texWidth, texHeight, pixels);
+    }
+    
+    /**
+     * Used internally to find the power of two textures are padded to.
+     */
+    private static int powerOfTwo(int size) {
+        int result = 2;
+        while (result < size) {
+            result *= 2;
+        }
+        return result;
+    }
+    
+    /**
+     * A decoded image, ready to be uploaded.
+     */
+    private static final class Decoded implements ImageData {
+        
+        private final int width, height, texWidth, texHeight;
+        
+        private final ByteBuffer pixels;
+        
+        Decoded(int width, int height, int texWidth, int texHeight,
+                ByteBuffer pixels) {
+            this.width = width;
+            this.height = height;
+            this.texWidth = texWidth;
+            this.texHeight = texHeight;
+            this.pixels = pixels;
+        }
+        
+        @Override
+        public int getDepth() {
+            return 32;
+        }
+        
+        @Override
+        public int getWidth() {
+            return width;
+        }
+        
+        @Override
+        public int getHeight() {
+            return height;
+        }
+        
+        @Override
+        public int getTexWidth() {
+            return texWidth;
+        }
+        
+        @Override
+        public int getTexHeight() {
+            return texHeight;
+        }
+        
+        @Override
+        public ByteBuffer getImageBufferData() {
+            return pixels;
+        }
+    }
+    
+    /**
+     * An image loaded or being loaded.
+     */
+    private final class Asset {
+        
+        private final String path;
+        
+        /**
+         * The image being decoded, until it is uploaded.
+         */
+        private Future<ImageData> pending;
+        
+        /**
+         * The texture, once uploaded.
+         */
+        private Image image = null;
+        
+        private long bytes = 0;
+        
+        private int references = 0;
+        
+        Asset(String path) {
+            this.path = path;
+            this.pending = decode(path);
+            decoding.add(this);
+        }
+    }
+}
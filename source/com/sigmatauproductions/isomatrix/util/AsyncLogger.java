@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A logger that hands messages off to a background thread, so that logging
+ * costs the caller next to nothing.
+ *
+ * Callers only claim a slot in a preallocated ring buffer and store the
+ * time, level and message in it; formatting the date, echoing to the console
+ * and writing to the log file all happen on the logger's own thread.  Any
+ * thread may log.  Logging never blocks: if the buffer is full, the message
+ * is dropped and counted, and the count is written to the log once there is
+ * room again.  Messages below the current level are dropped before they
+ * reach the buffer at all.
+ * <p>
+ * The log file is rotated once it grows past a set size, keeping a set
+ * number of old files named after it with {@code .1}, {@code .2} and so on
+ * appended, the lowest being the newest.  The file of the last session is
+ * rotated away when the logger starts.  The most recent lines are also kept
+ * in memory, for {@link #getRecent()}.
+ *
+ * @author sigtau
+ */
+public final class AsyncLogger {
+    
+    /**
+     * The severity of a logged message.
+     */
+    public enum Level {
+        MESSAGE(" * ", "* "),
+        WARNING(" ** Warning: ", "** Warning: "),
+        ERROR(" *** Error: ", "*** Error: ");
+        
+        private final String filePrefix;
+        private final String consolePrefix;
+        
+        private Level(String filePrefix, String consolePrefix) {
+            this.filePrefix = filePrefix;
+            this.consolePrefix = consolePrefix;
+        }
+    }
+    
+    /**
+     * How long the logger's thread sleeps when there is nothing to write.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    
+    /**
+     * The number of recent lines kept in memory.
+     */
+    private static final int RECENT_LINES = 256;
+    
+    /**
+     * The ring buffer.  Each slot's sequence tells who may use it: equal to
+     * a position, the slot is free for the producer claiming that position;
+     * one more, it holds that position's message for the consumer.
+     */
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] times;
+    private final Level[] levels;
+    private final String[] messages;
+    
+    /**
+     * The next position producers will claim.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    
+    /**
+     * The next position the consumer will read, only written by its thread.
+     */
+    private volatile long head = 0;
+    
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+    
+    private volatile Level level = Level.MESSAGE;
+    private volatile BooleanSupplier echo = () -> true;
+    private volatile boolean running = true;
+    
+    /**
+     * The log file and its rotation, or a null file to only echo.
+     */
+    private final File file;
+    private final long maxBytes;
+    private final int keep;
+    private Writer writer = null;
+    private long written = 0;
+    
+    /**
+     * The most recent lines, as a ring.
+     */
+    private final String[] recent = new String[RECENT_LINES];
+    private long recentCount = 0;
+    
+    private final Date date = new Date();
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread thread;
+    
+    /**
+     * Creates and starts a logger.
+     * @param file The log file, or null to only echo to the console.
+     * @param capacity The number of messages the buffer holds, rounded up to
+     *                 a power of two.
+     * @param maxBytes The size past which the log file is rotated.
+     * @param keep The number of old log files kept.
+     * @param header The first line of the log.
+     */
+    public AsyncLogger(File file, int capacity, long maxBytes, int keep,
+            String header) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.times = new long[size];
+        this.levels = new Level[size];
+        this.messages = new String[size];
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        if (file != null) {
+            rotate();
+        }
+        write(header, false);
+        
+        thread = new Thread(this::run, "Logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Logs the specified message, unless it is below the current level or
+     * the buffer is full.  Never blocks.
+     * @param level
+     * @param message
+     * @return Returns false if the message was dropped.
+     */
+    public boolean log(Level level, String message) {
+        if (level.ordinal() < this.level.ordinal()) {
+            return false;
+        }
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The consumer hasn't freed this slot yet: the buffer is full.
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        times[slot] = System.currentTimeMillis();
+        levels[slot] = level;
+        messages[slot] = message;
+        sequences.set(slot, position + 1);
+        if (position - head == (mask + 1) / 2) {
+            // Filling up faster than the idle sleep; wake the writer early.
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+    
+    /**
+     * Waits until every message logged before the call has been written, or
+     * until the specified time has passed.
+     * @param timeoutMillis
+     * @return Returns false if the time ran out first.
+     */
+    public boolean flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (head < target) {
+            if (!thread.isAlive() || System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.unpark(thread);
+            Thread.yield();
+        }
+        return true;
+    }
+    
+    /**
+     * Writes whatever is left and closes the log file.  Messages logged
+     * afterwards are dropped.
+     */
+    public void close() {
+        flush(1000);
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Sets the lowest level of message that is logged.
+     * @param level 
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+    
+    public Level getLevel() {
+        return level;
+    }
+    
+    /**
+     * Sets what decides whether messages are echoed to the console as well,
+     * which is asked on the logger's thread for every batch of messages.
+     * @param echo 
+     */
+    public void setEcho(BooleanSupplier echo) {
+        this.echo = echo;
+    }
+    
+    /**
+     * Returns the number of messages dropped because the buffer was full.
+     * @return 
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    /**
+     * Returns the most recent lines written, oldest first.
+     * @return 
+     */
+    public synchronized String getRecent() {
+        StringBuilder builder = new StringBuilder();
+        long first = Math.max(0, recentCount - RECENT_LINES);
+        for (long i = first; i < recentCount; i++) {
+            builder.append(recent[(int) (i % RECENT_LINES)]);
+            builder.append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Used internally as the body of the logger's thread.
+     */
+    private void run() {
+        while (running) {
+            if (!drain()) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+        drain();
+        closeWriter();
+    }
+    
+    /**
+     * Used internally to write every message that is ready.
+     * @return Returns false if there were none.
+     */
+    private boolean drain() {
+        boolean any = false;
+        boolean toConsole = echo.getAsBoolean();
+        long position = head;
+        while (true) {
+            int slot = (int) position & mask;
+            if (sequences.get(slot) != position + 1) {
+                break;
+            }
+            long time = times[slot];
+            Level messageLevel = levels[slot];
+            String message = messages[slot];
+            messages[slot] = null;
+            sequences.set(slot, position + mask + 1);
+            position++;
+            head = position;
+            
+            line.setLength(0);
+            date.setTime(time);
+            line.append(date.toString());
+            line.append(messageLevel.filePrefix);
+            line.append(message);
+            write(line.toString(), false);
+            if (toConsole) {
+                System.out.println(messageLevel.consolePrefix + message);
+            }
+            any = true;
+        }
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            write(new Date().toString() + Level.WARNING.filePrefix
+                    + (droppedNow - droppedReported) + " log messages were "
+                    + "dropped.", toConsole);
+            droppedReported = droppedNow;
+            any = true;
+        }
+        if (any && writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return any;
+    }
+    
+    /**
+     * Used internally to write a formatted line to the log file and the
+     * recent lines, rotating the file if it has grown too large.
+     */
+    private void write(String text, boolean toConsole) {
+        synchronized (this) {
+            recent[(int) (recentCount % RECENT_LINES)] = text;
+            recentCount++;
+        }
+        if (toConsole) {
+            System.out.println(text);
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(text);
+            writer.write(System.lineSeparator());
+            written += text.length() + System.lineSeparator().length();
+            if (written > maxBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+    
+    /**
+     * Used internally to move the log file and the old ones along by one,
+     * dropping the oldest, and start a new log file.
+     */
+    private void rotate() {
+        closeWriter();
+        for (int i = keep; i > 0; i--) {
+            File older = new File(file.getPath() + "." + i);
+            File newer = (i == 1) ? file
+                    : new File(file.getPath() + "." + (i - 1));
+            if (newer.exists()) {
+                older.delete();
+                newer.renameTo(older);
+            }
+        }
+        if (keep <= 0) {
+            file.delete();
+        }
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), StandardCharsets.UTF_8));
+            written = 0;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+    
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // Nothing more can be done about it.
+        }
+        writer = null;
+    }
+    
+    /**
+     * Used internally to give up on the log file, carrying on with the
+     * console and the recent lines only.
+     */
+    private void fail(IOException e) {
+        System.err.println("Could not write to the log file " + file + ": "
+                + e.getMessage());
+        closeWriter();
+    }
+}
@@ -29,9 +29,27 @@
 
 package com.sigmatauproductions.isomatrix.util;
 
-import java.io.File;
+import com.sigmatauproductions.isomatrix.Globals;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A utility class used for reading configuration files.  Configuration files
@@ -52,30 +70,51 @@ import java.util.Scanner;
  * Some Random Property=asdf
  * </pre>
  * 
- * All characters can be used in property names and property values <b>except
- * for the pipe (|) character,</b> which is used later for delimiting between
- * entries.
+ * All characters can be used in property names and property values, except
+ * for equal signs in property names.  Property names are not case-sensitive,
+ * and if a property appears more than once, the first one counts.
+ * <p>
+ * The file is parsed once into an index of its properties, so looking a
+ * property up doesn't depend on the size of the file.  The parsed contents
+ * are never changed, only replaced as a whole by {@link #refresh()}, so a
+ * config file can be read from any thread even while it is being reloaded.
+ * {@link #watch()} reloads the file automatically whenever it changes on
+ * disk.
  * 
  * @author Will
  */
 public class ConfigFile {
     
     /**
-     * A {@code Scanner} used internally for reading the config file.
+     * How long a watched file has to go unchanged before it is reloaded.
      */
-    private Scanner scanner;
+    private static final long SETTLE_MILLIS = 100;
     
     /**
-     * A string array used internally for storing all of the lines in the config
-     * file.
+     * The parsed contents of the config file, replaced as a whole on reload.
      */
-    private String[] lines;
+    private volatile Contents contents;
     
     /**
      * A string used internally for grabbing the filename of the config file.
      */
     private String filename = "";
     
+    /**
+     * The number of times the file has been reloaded since it was opened.
+     */
+    private volatile int version = 0;
+    
+    /**
+     * The watch service reloading the file, or null if it isn't watched.
+     */
+    private WatchService watcher = null;
+    
+    /**
+     * Called after every automatic reload, or null.
+     */
+    private volatile Runnable onReload = null;
+    
     /**
      * The default constructor, which opens the config file {@code default.cfg}
      * since no other filename is specified.
@@ -93,19 +132,42 @@ public class ConfigFile {
      */
     public ConfigFile(String filename) throws FileNotFoundException {
         this.filename = filename;
-        scanner = new Scanner(new File(filename), "UTF-8");
-        StringBuilder builder = new StringBuilder();
-            
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine().trim();
-            if (!line.startsWith("#") && !line.startsWith(";")) {
-                builder.append(line);
-                builder.append("|");
+        this.contents = parse(filename);
+    }
+    
+    /**
+     * Used internally to read and index the specified config file.
+     */
+    private static Contents parse(String filename)
+            throws FileNotFoundException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(filename), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (lines.isEmpty() && line.startsWith("\uFEFF")) {
+                    // Skip the byte order mark some editors save.
+                    line = line.substring(1);
+                }
+                line = line.trim();
+                if (!line.startsWith("#") && !line.startsWith(";")) {
+                    lines.add(line);
+                }
             }
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            FileNotFoundException notFound = new FileNotFoundException(
+                    "Could not read " + filename + ": " + e.getMessage());
+            notFound.initCause(e);
+            throw notFound;
+        }
+        
+        // Trailing blank lines never counted as lines.
+        while (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+            lines.remove(lines.size() - 1);
         }
-            
-        scanner.close();
-        lines = builder.toString().split("\\|");
+        return new Contents(lines.toArray(new String[lines.size()]));
     }
     
     /**
@@ -115,86 +177,234 @@ public class ConfigFile {
      * Returns null in the event of an invalid line.
      */
     public String getLine(int line) {
-        try {
-            String ret = lines[line-1];
-            return ret;
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return null;
-        }
+        String[] lines = contents.lines;
+        return (line >= 1 && line <= lines.length) ? lines[line - 1] : null;
     }
     
     /**
-     * Returns the line number of the specified property by searching the
-     * file from top to bottom for the specified property.
+     * Returns the line number of the specified property, or -1 if it isn't
+     * found.
      */
     public int getLineByProperty(String property) {
-        /*
-         * Config files are laid out as such:
-         * 
-         * property=value
-         * property2=value2
-         * etc.
-         * 
-         * Thus, since we have entire lines already stored in lines[], we
-         * iterate through these lines until the part behind the equals sign
-         * is determined to equal what is specified in the property parameter.
-         * 
-         * We then return the line number (index + 1 to account for array zero-
-         * indexing).
-         */
-        for (int i = 0; i < lines.length; i++) {
-            String[] properties = lines[i].split("\\=");
-            if (properties[0].equalsIgnoreCase(property)) {
-                return i+1;
-            }
+        if (property == null) {
+            return -1;
         }
-        
-        // Return -1 if we didn't find the specified property.
-        return -1;
+        Integer line = contents.index.get(property.toLowerCase(Locale.ROOT));
+        return (line == null) ? -1 : line;
     }
     
     /**
      * Returns the specified value of the current line (that is, what comes to
-     * the right of the equals sign).  Returns null in the event of an invalid
-     * line.
+     * the right of the first equals sign).  Returns null in the event of an
+     * invalid line.
      */
     public String getValue(int line) {
-        try {
-            String[] data = lines[line-1].split("\\=");
-            String ret = data[1];
-            return ret;
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return null;
-        }
+        String[] values = contents.values;
+        return (line >= 1 && line <= values.length) ? values[line - 1] : null;
     }
     
     /**
      * Perhaps the most useful function: returns the value of the specified
-     * property by searching the file from top to bottom.  Returns null if the
-     * property is never found.
+     * property.  Returns null if the property is never found.
      */
     public String getValueByProperty(String property) {
-        return getValue(getLineByProperty(property));
+        Contents c = contents;
+        if (property == null) {
+            return null;
+        }
+        Integer line = c.index.get(property.toLowerCase(Locale.ROOT));
+        return (line == null) ? null : c.values[line - 1];
+    }
+    
+    /**
+     * Returns the value of the specified property, or the specified default
+     * if it isn't found.
+     */
+    public String getString(String property, String defaultValue) {
+        String value = getValueByProperty(property);
+        return (value == null) ? defaultValue : value;
+    }
+    
+    /**
+     * Returns the value of the specified property as an int, or the
+     * specified default if it isn't found or isn't an int.
+     */
+    public int getInt(String property, int defaultValue) {
+        String value = getValueByProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            warnInvalid(property, value, "a whole number");
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Returns the value of the specified property as a float, or the
+     * specified default if it isn't found or isn't a number.
+     */
+    public float getFloat(String property, float defaultValue) {
+        String value = getValueByProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            warnInvalid(property, value, "a number");
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Returns the value of the specified property as a boolean, or the
+     * specified default if it isn't found or is neither true nor false.
+     */
+    public boolean getBoolean(String property, boolean defaultValue) {
+        String value = getValueByProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.trim().equalsIgnoreCase("false")) {
+            return false;
+        }
+        warnInvalid(property, value, "true or false");
+        return defaultValue;
     }
     
     /**
-     * Refreshes the config file in case of changes.
+     * Used internally to warn about a property whose value can't be used.
+     */
+    private void warnInvalid(String property, String value, String expected) {
+        Globals.logWarning("Property \"" + property + "\" in " + filename
+                + " should be " + expected + ", not \"" + value
+                + "\".  Using the default instead.");
+    }
+    
+    /**
+     * Refreshes the config file in case of changes.  The new contents replace
+     * the old ones all at once.
      * @throws FileNotFoundException 
      */
     public void refresh() throws FileNotFoundException {
-        scanner = new Scanner(new File(this.filename));
-        StringBuilder builder = new StringBuilder();
-            
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine().trim();
-            if (!line.startsWith("#")) {
-                builder.append(line);
-                builder.append("|");
+        contents = parse(filename);
+        version++;
+    }
+    
+    /**
+     * Returns the number of times the file has been reloaded, so that its
+     * users can tell when to read it again.
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Starts reloading the file whenever it changes on disk, on a background
+     * thread.  Does nothing if the file is already watched.
+     * @return Returns false if the file's directory could not be watched.
+     */
+    public synchronized boolean watch() {
+        if (watcher != null) {
+            return true;
+        }
+        Path path = Paths.get(filename).toAbsolutePath();
+        final Path directory = path.getParent();
+        final Path name = path.getFileName();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            directory.register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Globals.logWarning("Could not watch " + filename + " for changes: "
+                    + e.getMessage());
+            stopWatching();
+            return false;
+        }
+        final WatchService service = watcher;
+        Thread thread = new Thread(() -> watchLoop(service, name),
+                "Config watcher: " + name);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+    
+    /**
+     * Sets what to call after every automatic reload, on the watching thread.
+     * @param onReload The callback, or null for none.
+     */
+    public void setOnReload(Runnable onReload) {
+        this.onReload = onReload;
+    }
+    
+    /**
+     * Stops reloading the file when it changes.
+     */
+    public synchronized void stopWatching() {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            // The watcher is gone either way.
+        }
+        watcher = null;
+    }
+    
+    /**
+     * Used internally as the body of the watching thread.
+     */
+    private void watchLoop(WatchService service, Path name) {
+        try {
+            while (true) {
+                if (!changed(service.take(), name)) {
+                    continue;
+                }
+                
+                // Editors often save in several writes, so wait for the file
+                // to settle instead of reloading it half-written.
+                WatchKey more;
+                while ((more = service.poll(SETTLE_MILLIS,
+                        TimeUnit.MILLISECONDS)) != null) {
+                    changed(more, name);
+                }
+                try {
+                    refresh();
+                } catch (FileNotFoundException e) {
+                    // Likely caught mid-save; the next event will retry.
+                    continue;
+                }
+                Globals.logMessage("Reloaded " + filename + ".");
+                Runnable callback = onReload;
+                if (callback != null) {
+                    callback.run();
+                }
             }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watching was stopped.
         }
-            
-        scanner.close();
-        lines = builder.toString().split("\\|");
+    }
+    
+    /**
+     * Used internally to consume a watch key, returning whether any of its
+     * events were for the watched file.
+     */
+    private static boolean changed(WatchKey key, Path name) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (name.equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
     }
     
     /**
@@ -208,6 +418,41 @@ public class ConfigFile {
      * Returns the raw line data in the form of a string array.
      */
     public String[] getLines() {
-        return lines;
+        return contents.lines.clone();
+    }
+    
+    /**
+     * The parsed contents of a config file, which never change.
+     */
+    private static final class Contents {
+        
+        /**
+         * Every line that isn't a comment, trimmed.
+         */
+        private final String[] lines;
+        
+        /**
+         * The value of every line, or null for lines without an equals sign.
+         */
+        private final String[] values;
+        
+        /**
+         * The line number of every property, by its lowercase name.
+         */
+        private final Map<String, Integer> index;
+        
+        Contents(String[] lines) {
+            this.lines = lines;
+            this.values = new String[lines.length];
+            this.index = new HashMap<>(lines.length * 2);
+            for (int i = 0; i < lines.length; i++) {
+                int equals = lines[i].indexOf('=');
+                String property = (equals < 0) ? lines[i]
+                        : lines[i].substring(0, equals);
+                values[i] = (equals < 0) ? null
+                        : lines[i].substring(equals + 1);
+                index.putIfAbsent(property.toLowerCase(Locale.ROOT), i + 1);
+            }
+        }
     }
 }
@@ -1,7 +1,9 @@
 package com.sigmatauproductions.isomatrix.util;
 
 import org.newdawn.slick.*;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
 
 /*
  * This file is part of 3DzzD http://dzzd.net/.
@@ -40,124 +42,8 @@ public final class FastNoise {
         int sy = (int) ((y) * frequence256);
         int octave = nbOctave;
         while (octave != 0) {
-            int bX = sx & 0xFF;
-            int bY = sy & 0xFF;
-
-            int sxp = sx >> 8;
-            int syp = sy >> 8;
-
-
-            //Compute noise for each corner of current cell
-            int Y1376312589_00 = syp * 1376312589;
-            int Y1376312589_01 = Y1376312589_00 + 1376312589;
-
-            int XY1376312589_00 = sxp + Y1376312589_00;
-            int XY1376312589_10 = XY1376312589_00 + 1;
-            int XY1376312589_01 = sxp + Y1376312589_01;
-            int XY1376312589_11 = XY1376312589_01 + 1;
-
-            int XYBASE_00 = (XY1376312589_00 << 13) ^ XY1376312589_00;
-            int XYBASE_10 = (XY1376312589_10 << 13) ^ XY1376312589_10;
-            int XYBASE_01 = (XY1376312589_01 << 13) ^ XY1376312589_01;
-            int XYBASE_11 = (XY1376312589_11 << 13) ^ XY1376312589_11;
-
-            int alt1 = (XYBASE_00 * (XYBASE_00 * XYBASE_00 * 15731 + 789221) + 1376312589);
-            int alt2 = (XYBASE_10 * (XYBASE_10 * XYBASE_10 * 15731 + 789221) + 1376312589);
-            int alt3 = (XYBASE_01 * (XYBASE_01 * XYBASE_01 * 15731 + 789221) + 1376312589);
-            int alt4 = (XYBASE_11 * (XYBASE_11 * XYBASE_11 * 15731 + 789221) + 1376312589);
-
-            /*
-             *NOTE : on  for true grandiant noise uncomment following block
-             * for true gradiant we need to perform scalar product here, gradiant vector are created/deducted using
-             * the above pseudo random values (alt1...alt4) : by cutting thoses values in twice values to get for each a fixed x,y vector 
-             * gradX1= alt1&0xFF 
-             * gradY1= (alt1&0xFF00)>>8
-             *
-             * the last part of the PRN (alt1&0xFF0000)>>8 is used as an offset to correct one of the gradiant problem wich is zero on cell edge
-             *
-             * source vector (sXN;sYN) for scalar product are computed using (bX,bY)
-             *
-             * each four values  must be replaced by the result of the following 
-             * altN=(gradXN;gradYN) scalar (sXN;sYN)
-             *
-             * all the rest of the code (interpolation+accumulation) is identical for value & gradiant noise
-             */
-
-
-            /*START BLOCK FOR TRUE GRADIANT NOISE*/
-
-            int grad1X = (alt1 & 0xFF) - 128;
-            int grad1Y = ((alt1 >> 8) & 0xFF) - 128;
-            int grad2X = (alt2 & 0xFF) - 128;
-            int grad2Y = ((alt2 >> 8) & 0xFF) - 128;
-            int grad3X = (alt3 & 0xFF) - 128;
-            int grad3Y = ((alt3 >> 8) & 0xFF) - 128;
-            int grad4X = (alt4 & 0xFF) - 128;
-            int grad4Y = ((alt4 >> 8) & 0xFF) - 128;
-
-
-            int sX1 = bX >> 1;
-            int sY1 = bY >> 1;
-            int sX2 = 128 - sX1;
-            int sY2 = sY1;
-            int sX3 = sX1;
-            int sY3 = 128 - sY1;
-            int sX4 = 128 - sX1;
-            int sY4 = 128 - sY1;
-            alt1 = (grad1X * sX1 + grad1Y * sY1) + 16384 + ((alt1 & 0xFF0000) >> 9); //to avoid seams to be 0 we use an offset
-            alt2 = (grad2X * sX2 + grad2Y * sY2) + 16384 + ((alt2 & 0xFF0000) >> 9);
-            alt3 = (grad3X * sX3 + grad3Y * sY3) + 16384 + ((alt3 & 0xFF0000) >> 9);
-            alt4 = (grad4X * sX4 + grad4Y * sY4) + 16384 + ((alt4 & 0xFF0000) >> 9);
-
-            /*END BLOCK FOR TRUE GRADIANT NOISE */
-
-
-            /*START BLOCK FOR VALUE NOISE*/
-            /*
-             alt1&=0xFFFF;
-             alt2&=0xFFFF;
-             alt3&=0xFFFF;
-             alt4&=0xFFFF;
-             */
-            /*END BLOCK FOR VALUE NOISE*/
-
-
-            /*START BLOCK FOR LINEAR INTERPOLATION*/
-            //BiLinear interpolation 
-         /*
-             int f24=(bX*bY)>>8;
-             int f23=bX-f24;
-             int f14=bY-f24;
-             int f13=256-f14-f23-f24;
-
-             int val=(alt1*f13+alt2*f23+alt3*f14+alt4*f24);
-             */
-            /*END BLOCK FOR LINEAR INTERPOLATION*/
-
-
-
-            //BiCubic interpolation ( in the form alt(bX) = alt[n] - (3*bX^2 - 2*bX^3) * (alt[n] - alt[n+1]) )
-         /*START BLOCK FOR BICUBIC INTERPOLATION*/
-            int bX2 = (bX * bX) >> 8;
-            int bX3 = (bX2 * bX) >> 8;
-            int _3bX2 = 3 * bX2;
-            int _2bX3 = 2 * bX3;
-            int alt12 = alt1 - (((_3bX2 - _2bX3) * (alt1 - alt2)) >> 8);
-            int alt34 = alt3 - (((_3bX2 - _2bX3) * (alt3 - alt4)) >> 8);
-
-
-            int bY2 = (bY * bY) >> 8;
-            int bY3 = (bY2 * bY) >> 8;
-            int _3bY2 = 3 * bY2;
-            int _2bY3 = 2 * bY3;
-            int val = alt12 - (((_3bY2 - _2bY3) * (alt12 - alt34)) >> 8);
-
-            val *= 256;
-            /*END BLOCK FOR BICUBIC INTERPOLATION*/
-
-
             //Accumulate in result
-            result += (val << octave);
+            result += (cell(sx, sy) << octave);
 
             octave--;
             sx <<= 1;
@@ -167,58 +53,366 @@ public final class FastNoise {
         return result >>> (16 + nbOctave + 1);
     }
 
+    /**
+     * Computes the noise of a single octave, given the position scaled by 256
+     * (the upper bits select the cell, the lower eight the position within
+     * it).
+     */
+    private static int cell(int sx, int sy) {
+        int bX = sx & 0xFF;
+        int bY = sy & 0xFF;
+
+        int sxp = sx >> 8;
+        int syp = sy >> 8;
+
+
+        //Compute noise for each corner of current cell
+        int alt1 = gradient(sxp, syp);
+        int alt2 = gradient(sxp + 1, syp);
+        int alt3 = gradient(sxp, syp + 1);
+        int alt4 = gradient(sxp + 1, syp + 1);
+
+        /*
+         *NOTE : on  for true grandiant noise uncomment following block
+         * for true gradiant we need to perform scalar product here, gradiant vector are created/deducted using
+         * the above pseudo random values (alt1...alt4) : by cutting thoses values in twice values to get for each a fixed x,y vector 
+         * gradX1= alt1&0xFF 
+         * gradY1= (alt1&0xFF00)>>8
+         *
+         * the last part of the PRN (alt1&0xFF0000)>>8 is used as an offset to correct one of the gradiant problem wich is zero on cell edge
+         *
+         * source vector (sXN;sYN) for scalar product are computed using (bX,bY)
+         *
+         * each four values  must be replaced by the result of the following 
+         * altN=(gradXN;gradYN) scalar (sXN;sYN)
+         *
+         * all the rest of the code (interpolation+accumulation) is identical for value & gradiant noise
+         */
+
+
+        /*START BLOCK FOR TRUE GRADIANT NOISE*/
+
+        int grad1X = (alt1 & 0xFF) - 128;
+        int grad1Y = ((alt1 >> 8) & 0xFF) - 128;
+        int grad2X = (alt2 & 0xFF) - 128;
+        int grad2Y = ((alt2 >> 8) & 0xFF) - 128;
+        int grad3X = (alt3 & 0xFF) - 128;
+        int grad3Y = ((alt3 >> 8) & 0xFF) - 128;
+        int grad4X = (alt4 & 0xFF) - 128;
+        int grad4Y = ((alt4 >> 8) & 0xFF) - 128;
+
+
+        int sX1 = bX >> 1;
+        int sY1 = bY >> 1;
+        int sX2 = 128 - sX1;
+        int sY2 = sY1;
+        int sX3 = sX1;
+        int sY3 = 128 - sY1;
+        int sX4 = 128 - sX1;
+        int sY4 = 128 - sY1;
+        alt1 = (grad1X * sX1 + grad1Y * sY1) + 16384 + ((alt1 & 0xFF0000) >> 9); //to avoid seams to be 0 we use an offset
+        alt2 = (grad2X * sX2 + grad2Y * sY2) + 16384 + ((alt2 & 0xFF0000) >> 9);
+        alt3 = (grad3X * sX3 + grad3Y * sY3) + 16384 + ((alt3 & 0xFF0000) >> 9);
+        alt4 = (grad4X * sX4 + grad4Y * sY4) + 16384 + ((alt4 & 0xFF0000) >> 9);
+
+        /*END BLOCK FOR TRUE GRADIANT NOISE */
+
+
+        /*START BLOCK FOR VALUE NOISE*/
+        /*
+         alt1&=0xFFFF;
+         alt2&=0xFFFF;
+         alt3&=0xFFFF;
+         alt4&=0xFFFF;
+         */
+        /*END BLOCK FOR VALUE NOISE*/
+
+
+        /*START BLOCK FOR LINEAR INTERPOLATION*/
+        //BiLinear interpolation 
+     /*
+         int f24=(bX*bY)>>8;
+         int f23=bX-f24;
+         int f14=bY-f24;
+         int f13=256-f14-f23-f24;
+
+         int val=(alt1*f13+alt2*f23+alt3*f14+alt4*f24);
+         */
+        /*END BLOCK FOR LINEAR INTERPOLATION*/
+
+
+
+        //BiCubic interpolation ( in the form alt(bX) = alt[n] - (3*bX^2 - 2*bX^3) * (alt[n] - alt[n+1]) )
+     /*START BLOCK FOR BICUBIC INTERPOLATION*/
+        int bX2 = (bX * bX) >> 8;
+        int bX3 = (bX2 * bX) >> 8;
+        int _3bX2 = 3 * bX2;
+        int _2bX3 = 2 * bX3;
+        int alt12 = alt1 - (((_3bX2 - _2bX3) * (alt1 - alt2)) >> 8);
+        int alt34 = alt3 - (((_3bX2 - _2bX3) * (alt3 - alt4)) >> 8);
+
+
+        int bY2 = (bY * bY) >> 8;
+        int bY3 = (bY2 * bY) >> 8;
+        int _3bY2 = 3 * bY2;
+        int _2bY3 = 2 * bY3;
+        int val = alt12 - (((_3bY2 - _2bY3) * (alt12 - alt34)) >> 8);
+
+        val *= 256;
+        /*END BLOCK FOR BICUBIC INTERPOLATION*/
+        return val;
+    }
+
+    /**
+     * Fills a whole grid with noise at once, row by row.
+     *
+     * The value at column {@code i} and row {@code j} is exactly
+     * {@code noise(i / factor, j / factor, nbOctave)}, but the work is shared
+     * out differently: the pseudo-random gradients of each cell are only
+     * worked out once per row and octave, rather than four times per pixel,
+     * and everything that depends on the column alone is worked out once
+     * for the whole grid.  What is left per pixel is a branch-free blend of
+     * table lookups.  Rows are filled in parallel on the common fork/join
+     * pool.
+     *
+     * @param out The array to fill, row by row; at least
+     *            {@code width * height} long.
+     * @param width
+     * @param height
+     * @param factor The zoom factor; each unit of noise spans this many
+     *               cells of the grid.
+     * @param nbOctave
+     */
+    public static void noise(int[] out, int width, int height, float factor,
+            int nbOctave) {
+        if (out.length < width * height) {
+            throw new IllegalArgumentException("Output is too small for a "
+                    + width + "x" + height + " grid.");
+        }
+        NoiseGrid grid = new NoiseGrid(width, factor, nbOctave);
+        IntStream.range(0, height).parallel()
+                .forEach(j -> grid.fillRow(out, j));
+    }
+
+    /**
+     * The column-only parts of a batch noise request, shared by every row.
+     */
+    private static final class NoiseGrid {
+
+        private final int width;
+        private final float factor;
+        private final int octaves;
+        /** The position of each column, scaled by 256. */
+        private final int[] columns;
+        /** Per octave: the first cell any column falls in. */
+        private final int[] cellBase;
+        /** Per octave: how many cells are hashed per row, or -1 if the
+         * columns are spread too thin for that to pay off. */
+        private final int[] cellSpan;
+        /** Per octave and column: the cell, relative to the base. */
+        private final int[][] cellX;
+        /** Per octave and column: the distance from the cell's left edge. */
+        private final int[][] halfX;
+        /** Per octave and column: the bicubic weight across the cell. */
+        private final int[][] weightX;
+        private final int widestSpan;
+
+        NoiseGrid(int width, float factor, int octaves) {
+            this.width = width;
+            this.factor = factor;
+            this.octaves = octaves;
+            columns = new int[width];
+            for (int i = 0; i < width; i++) {
+                columns[i] = scale(i);
+            }
+            cellBase = new int[octaves];
+            cellSpan = new int[octaves];
+            cellX = new int[octaves][];
+            halfX = new int[octaves][];
+            weightX = new int[octaves][];
+            int widest = 0;
+            for (int s = 0; s < octaves; s++) {
+                int lowest = Integer.MAX_VALUE;
+                int highest = Integer.MIN_VALUE;
+                int[] cells = new int[width];
+                int[] halves = new int[width];
+                int[] weights = new int[width];
+                for (int i = 0; i < width; i++) {
+                    int sx = columns[i] << s;
+                    int bX = sx & 0xFF;
+                    int bX2 = (bX * bX) >> 8;
+                    int bX3 = (bX2 * bX) >> 8;
+                    cells[i] = sx >> 8;
+                    halves[i] = bX >> 1;
+                    weights[i] = 3 * bX2 - 2 * bX3;
+                    lowest = Math.min(lowest, cells[i]);
+                    highest = Math.max(highest, cells[i]);
+                }
+                long span = (long) highest - lowest + 2;
+                if (width == 0 || span > 2L * width + 2) {
+                    cellSpan[s] = -1;
+                    continue;
+                }
+                for (int i = 0; i < width; i++) {
+                    cells[i] -= lowest;
+                }
+                cellBase[s] = lowest;
+                cellSpan[s] = (int) span;
+                cellX[s] = cells;
+                halfX[s] = halves;
+                weightX[s] = weights;
+                widest = Math.max(widest, (int) span);
+            }
+            widestSpan = widest;
+        }
+
+        /** Scales a row or column index the same way noise() does. */
+        private int scale(int index) {
+            return (int) ((double) (index / factor) * 256);
+        }
+
+        void fillRow(int[] out, int j) {
+            int row = j * width;
+            int sy = scale(j);
+            int[] topX = new int[widestSpan];
+            int[] topC = new int[widestSpan];
+            int[] bottomX = new int[widestSpan];
+            int[] bottomC = new int[widestSpan];
+            Arrays.fill(out, row, row + width, 0);
+
+            for (int s = 0; s < octaves; s++) {
+                int octave = octaves - s;
+                int syS = sy << s;
+                int syp = syS >> 8;
+                int bY = syS & 0xFF;
+                int sY1 = bY >> 1;
+                int sY3 = 128 - sY1;
+                int bY2 = (bY * bY) >> 8;
+                int bY3 = (bY2 * bY) >> 8;
+                int wy = 3 * bY2 - 2 * bY3;
+
+                int span = cellSpan[s];
+                if (span < 0) {
+                    for (int i = 0; i < width; i++) {
+                        out[row + i] += cell(columns[i] << s, syS) << octave;
+                    }
+                    continue;
+                }
+
+                // The gradients along the cell edges above and below this
+                // row, with their vertical part already applied.
+                int base = cellBase[s];
+                for (int c = 0; c < span; c++) {
+                    int top = gradient(base + c, syp);
+                    int bottom = gradient(base + c, syp + 1);
+                    topX[c] = (top & 0xFF) - 128;
+                    topC[c] = (((top >> 8) & 0xFF) - 128) * sY1 + 16384
+                            + ((top & 0xFF0000) >> 9);
+                    bottomX[c] = (bottom & 0xFF) - 128;
+                    bottomC[c] = (((bottom >> 8) & 0xFF) - 128) * sY3 + 16384
+                            + ((bottom & 0xFF0000) >> 9);
+                }
+
+                int[] cells = cellX[s];
+                int[] halves = halfX[s];
+                int[] weights = weightX[s];
+                int shift = 8 + octave;
+                for (int i = 0; i < width; i++) {
+                    int c = cells[i];
+                    int sX1 = halves[i];
+                    int sX2 = 128 - sX1;
+                    int alt1 = topX[c] * sX1 + topC[c];
+                    int alt2 = topX[c + 1] * sX2 + topC[c + 1];
+                    int alt3 = bottomX[c] * sX1 + bottomC[c];
+                    int alt4 = bottomX[c + 1] * sX2 + bottomC[c + 1];
+                    int wx = weights[i];
+                    int alt12 = alt1 - ((wx * (alt1 - alt2)) >> 8);
+                    int alt34 = alt3 - ((wx * (alt3 - alt4)) >> 8);
+                    int val = alt12 - ((wy * (alt12 - alt34)) >> 8);
+                    out[row + i] += val << shift;
+                }
+            }
+
+            int finalShift = 16 + octaves + 1;
+            for (int i = row; i < row + width; i++) {
+                out[i] >>>= finalShift;
+            }
+        }
+    }
+
+    /**
+     * The pseudo-random value cell() derives a corner's gradient from.
+     */
+    private static int gradient(int sxp, int syp) {
+        int xy = sxp + syp * 1376312589;
+        int xyBase = (xy << 13) ^ xy;
+        return xyBase * (xyBase * xyBase * 15731 + 789221) + 1376312589;
+    }
+
     public static Image getNoiseImage(int x, int y, float factor, int oct,
             boolean doInvert) {
-        ImageBuffer buffer = new ImageBuffer(x, y);
-        // The minimum is enforced because heightmaps generated using a number
-        // lower than the minimum tend to produce more artifacts.
-        // TODO: If necessary, create an override for this when generating noise
-        // that isn't going to be applied to a heightmap.
-        float factorMinimum = 15f;
-        factor = (factor >= factorMinimum) ? factor : factorMinimum;
-        int minX = 16;
-        int minY = 16;
-        int finalX = (x > minX) ? x : minX;
-        int finalY = (y > minY) ? y : minY;
-        int maxX = finalX;
-        int maxY = finalY;
-        int randX = minX + (int) (Math.random() * ((maxX - minX) + 1));
-        int randY = minY + (int) (Math.random() * ((maxY - minY) + 1));
-        int randomRotation = new Random().nextInt(3);
+        return getNoiseImage(x, y, factor, oct, doInvert,
+                new SplittableRandom());
+    }
+    
+    /**
+     * Generates the same noise as getNoiseImage(), but takes its rotation and
+     * inversion from the given generator, so that a seeded generator always
+     * produces the same image.
+     */
+    public static Image getNoiseImage(int x, int y, float factor, int oct,
+            boolean doInvert, SplittableRandom random) {
+        int randomRotation = random.nextInt(3);
+        int[] raster = getNoiseRaster(x, y, factor, oct, doInvert, random);
         ImageBuffer noiseBuffer = new ImageBuffer(x, y);
-        for (int i = 0; i < noiseBuffer.getWidth(); i++) {
-            for (int j = 0; j < noiseBuffer.getHeight(); j++) {
-                int col = FastNoise.noise(i/factor, j/factor, 8);
+        for (int j = 0; j < y; j++) {
+            for (int i = 0; i < x; i++) {
+                int col = raster[j * x + i];
                 noiseBuffer.setRGBA(i, j, col, col, col, 255);
             }
         }
         
-        if (!new Random().nextBoolean()
-                && doInvert){noiseBuffer=invert(noiseBuffer,false);}
         Image heightmap = noiseBuffer.getImage().getScaledCopy(x, y);
         heightmap.rotate(90+(randomRotation*90));
         
         return heightmap;
     }
     
-    private static ImageBuffer invert(ImageBuffer im, boolean doAlpha) {
-        if (im == null) { return null; }
-        Image imageVersion = im.getImage();
-        ImageBuffer buffer = im;
-        for (int x = 0; x < im.getWidth(); x++) {
-            for (int y = 0; y < im.getHeight(); y++) {
-                int red = imageVersion.getColor(x, y).getRed();
-                int green = imageVersion.getColor(x, y).getGreen();
-                int blue = imageVersion.getColor(x, y).getBlue();
-                int alpha = imageVersion.getColor(x, y).getAlpha();
-                if (doAlpha) {
-                    buffer.setRGBA(x,y,255-red,255-green,255-blue,255-alpha);
-                } else {
-                    buffer.setRGBA(x, y, 255-red, 255-green, 255-blue, alpha);
-                }
+    /**
+     * Generates the same noise as getNoiseImage(), but as plain gray values
+     * between 0 and 255, stored row by row, rather than as a texture.  This
+     * can be called from any thread.
+     */
+    public static int[] getNoiseRaster(int x, int y, float factor, int oct,
+            boolean doInvert) {
+        return getNoiseRaster(x, y, factor, oct, doInvert,
+                new SplittableRandom());
+    }
+    
+    /**
+     * Generates the same noise as getNoiseRaster(), but decides whether to
+     * invert it with the given generator.
+     */
+    public static int[] getNoiseRaster(int x, int y, float factor, int oct,
+            boolean doInvert, SplittableRandom random) {
+        // The minimum is enforced because heightmaps generated using a number
+        // lower than the minimum tend to produce more artifacts.
+        // TODO: If necessary, create an override for this when generating noise
+        // that isn't going to be applied to a heightmap.
+        float factorMinimum = 15f;
+        factor = (factor >= factorMinimum) ? factor : factorMinimum;
+        int[] raster = new int[x * y];
+        noise(raster, x, y, factor, oct);
+        for (int i = 0; i < raster.length; i++) {
+            raster[i] = Math.min(raster[i], 255);
+        }
+        
+        if (!random.nextBoolean() && doInvert) {
+            for (int i = 0; i < raster.length; i++) {
+                raster[i] = 255 - raster[i];
             }
         }
         
-        return buffer;
+        return raster;
     }
 }
\ No newline at end of file
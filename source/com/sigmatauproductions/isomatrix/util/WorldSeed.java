@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013, Sigma-Tau Productions.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: 
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are those
+ * of the authors and should not be interpreted as representing official policies, 
+ * either expressed or implied, of the FreeBSD Project.
+ */
+
+package com.sigmatauproductions.isomatrix.util;
+
+import java.util.SplittableRandom;
+
+/**
+ * The seed a generated world is built from.  Every stage of world generation
+ * draws its random numbers from its own generator, derived from this seed and
+ * the stage alone, so the same seed and parameters always produce the same
+ * map, and adding or reordering stages never changes what the others produce.
+ * 
+ * @author sigtau
+ */
+public final class WorldSeed {
+    
+    /**
+     * The stages of world generation, each of which gets its own generator.
+     * Generators are keyed on the stage's name rather than its position, so
+     * new stages can be added anywhere.
+     */
+    public enum Stage {
+        /** The noise the heightmap is generated from. */
+        TERRAIN,
+        /** The variations of the flat tiles. */
+        FLATS,
+        /** The placement of forests and their trees. */
+        FORESTS
+    }
+    
+    /**
+     * Spreads the stage keys apart before they're combined with the seed.
+     */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    
+    private final long seed;
+    
+    /**
+     * Creates a world seed from a known value, such as one logged by an
+     * earlier run.
+     * @param seed
+     */
+    public WorldSeed(long seed) {
+        this.seed = seed;
+    }
+    
+    /**
+     * Creates a new, randomly chosen world seed.
+     */
+    public WorldSeed() {
+        this(new SplittableRandom().nextLong());
+    }
+    
+    /**
+     * Returns the value of this seed.
+     * @return 
+     */
+    public long getSeed() {
+        return seed;
+    }
+    
+    /**
+     * Returns a fresh generator for the given stage.  Each call starts the
+     * stage's sequence over from the beginning, so a stage should ask for its
+     * generator once and pass it along to everything it calls.
+     * @param stage
+     * @return 
+     */
+    public SplittableRandom forStage(Stage stage) {
+        long key = stage.name().hashCode() * GOLDEN_GAMMA;
+        return new SplittableRandom(seed ^ key);
+    }
+    
+    /**
+     * Reads a seed back from the form {@code toString()} writes.
+     * @param text
+     * @return The seed.
+     * @throws NumberFormatException If the text is not a hexadecimal seed.
+     */
+    public static WorldSeed parse(String text) {
+        return new WorldSeed(Long.parseUnsignedLong(text.trim(), 16));
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof WorldSeed)
+                && ((WorldSeed) other).seed == seed;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Long.hashCode(seed);
+    }
+    
+    /**
+     * Returns the seed as hexadecimal, which {@code parse()} reads back.
+     * @return 
+     */
+    @Override
+    public String toString() {
+        return Long.toHexString(seed);
+    }
+}
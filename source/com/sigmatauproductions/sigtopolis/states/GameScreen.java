@@ -33,13 +33,15 @@ import com.sigmatauproductions.isomatrix.game.*;
 import com.sigmatauproductions.isomatrix.props.Prop;
 import com.sigmatauproductions.isomatrix.tiles.*;
 import com.sigmatauproductions.isomatrix.util.*;
+import com.sigmatauproductions.isomatrix.util.Transform;
 import com.sigmatauproductions.sigtopolis.util.FontHandler;
 import java.io.*;
 import java.lang.management.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.SplittableRandom;
 import org.newdawn.slick.*;
 
 /**
@@ -64,6 +66,16 @@ public final class GameScreen extends IsomatrixState {
      */
     public static final float scaleStepSize = .2f;
     
+    /**
+     * The file the map is autosaved to.
+     */
+    public static final String AUTOSAVE_FILE = "autosave.ism";
+    
+    /**
+     * The number of milliseconds between autosaves.
+     */
+    public static final int AUTOSAVE_INTERVAL = 5 * 60 * 1000;
+    
     /**
      * An internal handler for the game's isomatrix.cfg file.
      */
@@ -136,6 +148,28 @@ public final class GameScreen extends IsomatrixState {
      */
     private boolean doMouseover = true;
     
+    /**
+     * The props every prop on the map was copied from, which saves refer to.
+     */
+    private List<Prop> propTemplates = new ArrayList<>();
+    
+    /**
+     * The tree images of every tree directory of the tileset named by
+     * {@code treeTileset}, shared through the asset manager.
+     */
+    private List<Image[]> trees = null;
+    
+    /**
+     * The directory name of the tileset the trees were loaded for.
+     */
+    private String treeTileset = null;
+    
+    /**
+     * Saves the map in the background every {@code AUTOSAVE_INTERVAL}
+     * milliseconds, or null while there's no map.
+     */
+    private MapAutosaver autosaver = null;
+    
     /**
      * Initializes a new session, taking the current config file, input
      * variable, and {@link IsomatrixGame} used to switch between game states.
@@ -190,6 +224,7 @@ public final class GameScreen extends IsomatrixState {
         this.delta = delta;
         if (ready) {
             map.update(input, scale);
+            autosaver.update(delta);
             doScroll(input.getAbsoluteMouseX(), input.getAbsoluteMouseY(),
                     gc.getWidth(), gc.getHeight());
             doTileMouseOver();
@@ -281,43 +316,97 @@ public final class GameScreen extends IsomatrixState {
     protected final void generateMap(int width, int height, int min, int max,
             String tileset, int treeFreq, int treeMin,
             int treeMax, int numForests) throws SlickException {
-        float randomFactor = (new Random().nextFloat() * 100f);
+        generateMap(new WorldSeed(), width, height, min, max, tileset,
+                treeFreq, treeMin, treeMax, numForests);
+    }
+    
+    /**
+     * Generates a new TileMap for gameplay use from the given seed.  The same
+     * seed and parameters always generate the same map.  Warning: This method
+     * wipes the current map from memory.
+     * @param seed The seed every stage of generation draws from.
+     * @param width The width of the TileMap.
+     * @param height The height of the TileMap.
+     * @param min The lowest possible height value on the map (black on the
+     *            heightmap).
+     * @param max The highest possible height value on the map (white on the
+     *            heightmap)
+     * @param tileset The internal name of the tileset to be used.
+     * @param treeFreq The number of times trees will occur in a forest.
+     * @param treeMin The minimum size of a forest.
+     * @param treeMax The maximum size of a forest.
+     * @param numForests The number of forests to be considered for generation.
+     * @throws SlickException 
+     */
+    protected final void generateMap(WorldSeed seed, int width, int height,
+            int min, int max, String tileset, int treeFreq, int treeMin,
+            int treeMax, int numForests) throws SlickException {
+        SplittableRandom terrain = seed.forStage(WorldSeed.Stage.TERRAIN);
+        float randomFactor = ((float) terrain.nextDouble() * 100f);
 
-        System.out.println("Generating heightmap...");
+        System.out.println("Generating heightmap from seed " + seed + "...");
         RuntimeMXBean rb = ManagementFactory.getRuntimeMXBean();
         long uptime = rb.getUptime();
-        Image heightmap = FastNoise.getNoiseImage(width, height, randomFactor, 8,
-                true);
+        Heightmap heightmap = Heightmap.fromNoise(width, height, randomFactor,
+                8, true, terrain);
         long newUptime = rb.getUptime() - uptime;
 
         Tileset set = new Tileset(tileset);
 
+        if (autosaver != null) {
+            autosaver.close();
+        }
+        propTemplates = new ArrayList<>();
         map = new TileMap(set, width, height);
-        map.loadHeightmap(heightmap, min, max);
-        map.randomizeFlats();
+        map.applyHeightmap(heightmap, min, max);
+        map.randomizeFlats(seed.forStage(WorldSeed.Stage.FLATS));
         System.out.println("Generation complete, took " + newUptime + "ms");
 
+        // Every forest is grown from the same templates, one per tree image.
+        List<Prop[]> treeProps = new ArrayList<>();
+        for (Image[] images : loadTrees(set)) {
+            Prop[] props = new Prop[images.length];
+            for (int j = 0; j < images.length; j++) {
+                props[j] = new Prop(images[j], 1, 1, 0, false);
+            }
+            propTemplates.addAll(Arrays.asList(props));
+            treeProps.add(props);
+        }
+
+        SplittableRandom forests = seed.forStage(WorldSeed.Stage.FORESTS);
         for (int i = 0; i < numForests; i++) {
             uptime = rb.getUptime();
             System.out.println("Generating forest #" + (i + 1));
-            placeForest(set, treeFreq, treeMin, treeMax);
+            placeForest(treeProps, treeFreq, treeMin, treeMax, forests);
             newUptime = rb.getUptime() - uptime;
             System.out.println("Generated forest, took " + newUptime + "ms");
         }
 
+        autosaver = new MapAutosaver(map, new File(AUTOSAVE_FILE),
+                propTemplates, AUTOSAVE_INTERVAL);
         ready = true;
     }
     
     /**
-     * Used internally to place a forest cluster on the map.
+     * Used internally to load the images of every tree directory of the
+     * specified tileset, one array per directory, sorted by name.  They are
+     * only listed and loaded again when the tileset changes.
      * @param set
-     * @param frequency
-     * @param min
-     * @param max
+     * @return The tree images.
      * @throws SlickException 
      */
-    private void placeForest(Tileset set, int frequency, int min,
-            int max) throws SlickException {
+    private List<Image[]> loadTrees(Tileset set) throws SlickException {
+        if (trees != null && set.getDirectoryName().equals(treeTileset)) {
+            return trees;
+        }
+        AssetManager assets = Globals.getAssets();
+        if (trees != null) {
+            for (Image[] images : trees) {
+                assets.releaseAll(Arrays.asList(images));
+            }
+            trees = null;
+        }
+
         // Firstly, list all of the available tree directories available to this
         // tileset.
         String treeDir = Globals.PROP_DIR + "trees/" + set.getDirectoryName()
@@ -330,38 +419,62 @@ public final class GameScreen extends IsomatrixState {
                 return new File(dir, name).isDirectory();
             }
         });
+        if (directories == null) {
+            directories = new String[0];
+        }
 
-        // Now, iterate through all of the valid directories.
-        if (directories != null) {
-            for (int i = 0; i < directories.length; i++) {
-                String currentDirectory = treeDir + directories[i] + "/";
-                // Get the file listing of the current directory.
-                File d = new File(currentDirectory);
-                ArrayList<String> names =
-                        new ArrayList<>(Arrays.asList(d.list()));
-
-                // ArrayList that will hold the prop listing later.
-                List<Prop> props = new ArrayList<>();
-
-                // Iterate through this listing and create props for each one.
-                for (int j = 0; j < names.size(); j++) {
-                    if (names.get(j).toLowerCase().endsWith(".png")) {
-                        props.add(new Prop(new Image(currentDirectory + names.get(j)),
-                                1, 1, 0, false));
-                    }
-                }
-
-                Prop[] propArray = new Prop[props.size()];
-                for (int j = 0; j < props.size(); j++) {
-                    propArray[j] = props.get(j);
+        // Directory listings come back in no particular order, which would
+        // make the same seed place different trees.
+        Arrays.sort(directories);
+        List<String> paths = new ArrayList<>();
+        int[] counts = new int[directories.length];
+        for (int i = 0; i < directories.length; i++) {
+            String currentDirectory = treeDir + directories[i] + "/";
+            ArrayList<String> names = new ArrayList<>(
+                    Arrays.asList(new File(currentDirectory).list()));
+            Collections.sort(names);
+            for (String name : names) {
+                if (name.toLowerCase().endsWith(".png")) {
+                    paths.add(currentDirectory + name);
+                    counts[i]++;
                 }
+            }
+        }
 
-                // Add the forest cluster to the map.
-                int location = new Random().nextInt(map.getTileCount());
-                int radius = new Random().nextInt((max - min) + 1) + min;
-                Prop.createCluster(map, propArray, frequency,
-                        location, radius);
+        // Decode every tree at once, then split them up by directory.
+        List<Image> images = assets.acquireAll(paths);
+        List<Image[]> loaded = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < directories.length; i++) {
+            Image[] group = new Image[counts[i]];
+            for (int j = 0; j < group.length; j++) {
+                group[j] = images.get(next++);
             }
+            loaded.add(group);
+        }
+        trees = loaded;
+        treeTileset = set.getDirectoryName();
+        return trees;
+    }
+    
+    /**
+     * Used internally to place a forest on the map: one cluster for every
+     * tree directory, made of copies of its templates.
+     * @param treeProps The templates of every tree directory.
+     * @param frequency
+     * @param min
+     * @param max
+     * @param random The generator the forest is placed with.
+     * @throws SlickException 
+     */
+    private void placeForest(List<Prop[]> treeProps, int frequency, int min,
+            int max, SplittableRandom random) throws SlickException {
+        for (Prop[] propArray : treeProps) {
+            // Add the forest cluster to the map.
+            int location = random.nextInt(map.getTileCount());
+            int radius = random.nextInt((max - min) + 1) + min;
+            Prop.createCluster(map, propArray, frequency,
+                    location, radius, random);
         }
     }
     
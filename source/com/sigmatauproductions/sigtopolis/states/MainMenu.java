@@ -50,6 +50,8 @@ public final class MainMenu extends IsomatrixState {
     
     private TitleMenu activeMenu;
     
+    private Image background;
+    
     
     public MainMenu(IsomatrixGame game, ConfigFile strings, Input input)
         throws SlickException {
@@ -65,6 +67,8 @@ public final class MainMenu extends IsomatrixState {
         
         text = new FontHandler(Globals.GUI_DIR + "fonts/" + fontDir + "/");
         text.processLanguage(strings.getLines());
+        background = Globals.getAssets().acquire(Globals.RESOURCE_DIR
+                + "TransparencyTest.png");
         
         main = new TitleMenu(
             new String[] { strings.getValueByProperty("name"),
@@ -186,7 +190,7 @@ public final class MainMenu extends IsomatrixState {
     public final void render(GameContainer gc, Graphics g)
             throws SlickException {
         this.g = g;
-        new Image("resources/TransparencyTest.png").draw(0,0);
+        background.draw(0,0);
         main.draw(0, gc, g, input);
         optionsMenu.draw(1, gc, g, input);
         newGameMenu.draw(1, gc, g, input);